@@ -0,0 +1,73 @@
+package ca.canada.inspection.benchmarks;
+
+import ca.canada.inspection.commandpcr.CommandMethods;
+import ca.canada.inspection.insilicopcr.Sample;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+// Parsing and filtering blastn tabular reports of several samples into their hits
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BlastOutputBenchmark {
+
+	private static final int SAMPLES = 8;
+
+	// Rows per sample report
+	@Param({"10000", "100000", "1000000"})
+	public int rows;
+
+	private File dir;
+	private File detailedDir;
+	private HashMap<String, String> panel;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		Synthetic synthetic = new Synthetic(42);
+		dir = Synthetic.tempDir("blast");
+		detailedDir = new File(dir, "detailed_report");
+		panel = synthetic.primerPanel(200, true);
+		for(int i = 0; i < SAMPLES; i++) {
+			File sampleDir = new File(detailedDir, "sample" + i);
+			sampleDir.mkdirs();
+			synthetic.writeBlastReport(panel, rows, 500, new File(sampleDir, "sample" + i + ".tsv"));
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		Synthetic.delete(dir);
+	}
+
+	@Benchmark
+	public HashMap<String, Sample> parseBlastOutput() {
+		HashMap<String, Sample> sampleDict = new HashMap<String, Sample>();
+		for(int i = 0; i < SAMPLES; i++) {
+			Sample sample = new Sample();
+			sample.setName("sample" + i);
+			sampleDict.put(sample.getName(), sample);
+		}
+		CommandMethods.parseBlastOutput(new File(dir, "consolidated_report"), detailedDir, panel, 1, sampleDict);
+		return sampleDict;
+	}
+}
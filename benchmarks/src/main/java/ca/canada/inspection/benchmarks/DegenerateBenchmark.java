@@ -0,0 +1,73 @@
+package ca.canada.inspection.benchmarks;
+
+import ca.canada.inspection.commandpcr.CommandMethods;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+// Expansion of degenerate primers into every concrete sequence, and processPrimers over a panel with them
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DegenerateBenchmark {
+
+	// Degenerate bases per primer, every one of them multiplies the expansions
+	@Param({"2", "4", "6"})
+	public int degenerate;
+
+	@Param({"100", "1000"})
+	public int assays;
+
+	private String primer;
+	private HashMap<String, String> panel;
+	private File outDir;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		Synthetic synthetic = new Synthetic(42);
+		outDir = Synthetic.tempDir("degenerate");
+		primer = synthetic.degeneratePrimer(22, degenerate);
+		panel = new HashMap<String, String>();
+		for(int i = 0; i < assays; i++) {
+			panel.put("assay" + i + "-F", synthetic.degeneratePrimer(20, i % 4 == 0 ? degenerate : 0));
+			panel.put("assay" + i + "-R", synthetic.degeneratePrimer(20, 0));
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		Synthetic.delete(outDir);
+	}
+
+	@Benchmark
+	public ArrayList<String> expandDegenerated() {
+		return CommandMethods.expandDegenerated(primer, 0, new ArrayList<String>());
+	}
+
+	@Benchmark
+	public HashMap<String, String> processPrimers() {
+		HashMap<String, String> primerDict = new HashMap<String, String>(panel);
+		CommandMethods.processPrimers(primerDict, outDir, File.separator, true);
+		return primerDict;
+	}
+}
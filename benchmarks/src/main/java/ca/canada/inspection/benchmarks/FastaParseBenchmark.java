@@ -0,0 +1,65 @@
+package ca.canada.inspection.benchmarks;
+
+import ca.canada.inspection.commandpcr.CommandMethods;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+// Parsing primer panels and contig sets into a dictionary
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FastaParseBenchmark {
+
+	@Param({"100", "1000", "10000"})
+	public int records;
+
+	private File dir;
+	private File panel;
+	private File contigs;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		Synthetic synthetic = new Synthetic(42);
+		dir = Synthetic.tempDir("fasta");
+		panel = new File(dir, "primers.fasta");
+		synthetic.writeFasta(synthetic.primerPanel(records / 2, false), panel);
+		// Contigs of a few kb, so the largest set is a small bacterial genome's worth of sequence per 1000 records
+		contigs = new File(dir, "contigs.fasta");
+		synthetic.writeContigs(records, 5000, contigs);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		Synthetic.delete(dir);
+	}
+
+	@Benchmark
+	public HashMap<String, String> primerPanel() {
+		return CommandMethods.parseFastaToDictionary(panel);
+	}
+
+	@Benchmark
+	public HashMap<String, String> contigSet() {
+		return CommandMethods.parseFastaToDictionary(contigs);
+	}
+}
@@ -0,0 +1,92 @@
+package ca.canada.inspection.benchmarks;
+
+import ca.canada.inspection.commandpcr.HammingKernel;
+import ca.canada.inspection.commandpcr.NativePrimerSearch;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// Mismatch counts of degenerate primers at every window of a contig, both strands, by the scalar and the vector kernel.
+// The fork adds the incubator module so both kernels can be measured in the same run. The vector kernel is only there
+// when the program jar was built with -Pvector, otherwise both measure the scalar kernel
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class HammingBenchmark {
+
+	private static final int BLOCK = 4096;
+
+	@Param({"scalar", "vector"})
+	public String kernel;
+
+	@Param({"3"})
+	public int mismatches;
+
+	@Param({"100000"})
+	public int length;
+
+	private HammingKernel hamming;
+	private byte[] target;
+	private byte[][] patterns;
+	private byte[] counts;
+	private byte[] threePrime;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		Synthetic synthetic = new Synthetic(42);
+		hamming = kernel.equals("scalar") ? HammingKernel.scalar() : HammingKernel.get();
+		byte[] contig = synthetic.sequence(length).getBytes();
+		target = HammingKernel.baseMasks(contig, contig.length);
+		patterns = new byte[20][];
+		for(int i = 0; i < 10; i++) {
+			byte[] primer = synthetic.degeneratePrimer(22, 6).getBytes();
+			patterns[2 * i] = masks(primer);
+			patterns[2 * i + 1] = masks(NativePrimerSearch.reverseComplement(primer));
+		}
+		counts = new byte[BLOCK];
+		threePrime = new byte[BLOCK];
+	}
+
+	@Benchmark
+	public int scan() {
+		int sites = 0;
+		for(int index = 0; index < patterns.length; index++) {
+			byte[] pattern = patterns[index];
+			int threePrimeFrom = index % 2 == 0 ? pattern.length - 5 : 0;
+			int starts = target.length - pattern.length + 1;
+			for(int from = 0; from < starts; from += BLOCK) {
+				int to = Math.min(starts, from + BLOCK);
+				hamming.count(target, pattern, from, to, mismatches, counts, threePrimeFrom, threePrimeFrom + 5, threePrime);
+				for(int i = 0; i < to - from; i++) {
+					sites += counts[i] <= mismatches ? 1 : 0;
+				}
+			}
+		}
+		return sites;
+	}
+
+	// Pattern bitmasks, A=1, C=2, G=4, T=8 and the IUPAC codes their unions
+	private static byte[] masks(byte[] primer) {
+		String codes = "ACMGRSVTWYHKDBN";
+		byte[] masks = new byte[primer.length];
+		for(int i = 0; i < primer.length; i++) {
+			masks[i] = (byte)(codes.indexOf(primer[i]) + 1);
+		}
+		return masks;
+	}
+}
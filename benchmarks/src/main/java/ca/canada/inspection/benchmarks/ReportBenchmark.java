@@ -0,0 +1,65 @@
+package ca.canada.inspection.benchmarks;
+
+import ca.canada.inspection.commandpcr.CommandMethods;
+import ca.canada.inspection.insilicopcr.Sample;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+// Pairing the hits of every sample into amplicons and writing the consolidated report
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReportBenchmark {
+
+	@Param({"10", "100", "1000"})
+	public int samples;
+
+	// qPCR assays, forward, reverse and probe primers
+	@Param({"50", "500"})
+	public int assays;
+
+	private File dir;
+	private HashMap<String, String> panel;
+	private HashMap<String, Sample> sampleDict;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		Synthetic synthetic = new Synthetic(42);
+		dir = Synthetic.tempDir("report");
+		panel = synthetic.primerPanel(assays, true);
+		sampleDict = new HashMap<String, Sample>();
+		for(int i = 0; i < samples; i++) {
+			sampleDict.put("sample" + i, synthetic.sampleWithHits("sample" + i, panel, 50));
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		Synthetic.delete(dir);
+	}
+
+	@Benchmark
+	public void makeConsolidatedReport() {
+		CommandMethods.makeConsolidatedReport(dir, File.separator, sampleDict, panel);
+	}
+}
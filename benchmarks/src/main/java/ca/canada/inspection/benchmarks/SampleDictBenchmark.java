@@ -0,0 +1,71 @@
+package ca.canada.inspection.benchmarks;
+
+import ca.canada.inspection.commandpcr.CommandMethods;
+import ca.canada.inspection.insilicopcr.Sample;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+// Discovery of the samples of an input folder: paired gzipped fastq files, and assemblies
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SampleDictBenchmark {
+
+	// Files in the input folder, half of them R1/R2 pairs
+	@Param({"100", "1000", "10000"})
+	public int files;
+
+	private File dir;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		Synthetic synthetic = new Synthetic(42);
+		dir = Synthetic.tempDir("samples");
+		for(int i = 0; i < files / 4; i++) {
+			for(String read : new String[] {"_R1_001", "_R2_001"}) {
+				try(OutputStream out = new GZIPOutputStream(new FileOutputStream(new File(dir, "reads" + i + read + ".fastq.gz")))) {
+					out.write(("@read\n" + synthetic.sequence(150) + "\n+\n" + "I".repeat(150) + "\n").getBytes());
+				}
+			}
+		}
+		for(int i = 0; i < files / 2; i++) {
+			try(FileWriter writer = new FileWriter(new File(dir, "assembly" + i + ".fasta"))) {
+				writer.write(">contig_1\n" + synthetic.sequence(1000) + "\n");
+			}
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		Synthetic.delete(dir);
+	}
+
+	@Benchmark
+	public HashMap<String, Sample> createSampleDict() {
+		return CommandMethods.createSampleDict(dir);
+	}
+}
@@ -0,0 +1,138 @@
+package ca.canada.inspection.benchmarks;
+
+import ca.canada.inspection.commandpcr.BlastReportParser;
+import ca.canada.inspection.insilicopcr.BlastResult;
+import ca.canada.inspection.insilicopcr.Sample;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.stream.Stream;
+
+// Generators of synthetic inputs for the benchmarks, seeded so every run measures the same data
+public class Synthetic {
+
+	private static final char[] BASES = {'A', 'C', 'G', 'T'};
+	private static final char[] DEGENERATES = {'R', 'Y', 'S', 'W', 'K', 'M', 'B', 'D', 'H', 'V', 'N'};
+
+	private final Random random;
+
+	public Synthetic(long seed) {
+		this.random = new Random(seed);
+	}
+
+	public String sequence(int length) {
+		char[] seq = new char[length];
+		for(int i = 0; i < length; i++) {
+			seq[i] = BASES[random.nextInt(4)];
+		}
+		return new String(seq);
+	}
+
+	// A primer with degenerate bases at random positions
+	public String degeneratePrimer(int length, int degenerate) {
+		char[] seq = sequence(length).toCharArray();
+		for(int i = 0; i < degenerate; i++) {
+			seq[random.nextInt(length)] = DEGENERATES[random.nextInt(DEGENERATES.length)];
+		}
+		return new String(seq);
+	}
+
+	// A panel of assays named assay<i>-F, -R and, for qPCR, -P
+	public HashMap<String, String> primerPanel(int assays, boolean probes) {
+		HashMap<String, String> panel = new HashMap<String, String>();
+		for(int i = 0; i < assays; i++) {
+			panel.put("assay" + i + "-F", sequence(18 + random.nextInt(7)));
+			panel.put("assay" + i + "-R", sequence(18 + random.nextInt(7)));
+			if(probes) {
+				panel.put("assay" + i + "-P", sequence(22 + random.nextInt(7)));
+			}
+		}
+		return panel;
+	}
+
+	public void writeFasta(HashMap<String, String> records, File file) throws IOException {
+		try(FileWriter writer = new FileWriter(file)) {
+			for(String key : records.keySet()) {
+				writer.write(">" + key + "\n" + records.get(key) + "\n");
+			}
+		}
+	}
+
+	// A set of contigs wrapped at 80 columns, as assemblers write them
+	public void writeContigs(int contigs, int length, File file) throws IOException {
+		try(FileWriter writer = new FileWriter(file)) {
+			for(int i = 0; i < contigs; i++) {
+				writer.write(">contig_" + i + " length=" + length + "\n");
+				String seq = sequence(length);
+				for(int j = 0; j < length; j += 80) {
+					writer.write(seq, j, Math.min(80, length - j));
+					writer.write("\n");
+				}
+			}
+		}
+	}
+
+	// A blastn tabular report of the panel against a sample's contigs, with rows that pass and fail the filters
+	public void writeBlastReport(HashMap<String, String> panel, int rows, int contigs, File file) throws IOException {
+		String[] primers = panel.keySet().toArray(new String[0]);
+		try(FileWriter writer = new FileWriter(file)) {
+			writer.write(BlastReportParser.HEADER + "\n");
+			for(int i = 0; i < rows; i++) {
+				String primer = primers[random.nextInt(primers.length)];
+				int slen = panel.get(primer).length();
+				int length = slen - random.nextInt(4);
+				int start = random.nextInt(100000);
+				boolean forward = random.nextBoolean();
+				writer.write("contig_" + random.nextInt(contigs) + "\t" + primer + "\t" + length + "\t" + random.nextInt(3) + "\t0\t1e-3\t30.1\t"
+						+ slen + "\t" + length + "\t" + start + "\t" + (start + length - 1) + "\t" + sequence(length) + "\t"
+						+ (forward ? 1 : slen) + "\t" + (forward ? slen : 1) + "\t" + sequence(length) + "\n");
+			}
+		}
+	}
+
+	// A sample whose contigs carry a facing forward and reverse hit, and a probe hit between them, for every assay
+	public Sample sampleWithHits(String name, HashMap<String, String> panel, int contigs) {
+		Sample sample = new Sample();
+		sample.setName(name);
+		sample.setFileType("fasta");
+		for(int i = 0; i < contigs; i++) {
+			sample.addContig("contig_" + i, "");
+			sample.addContigLength("contig_" + i, 100000);
+		}
+		// Every primer of an assay lands on the same contig, around the same place
+		HashMap<String, int[]> placements = new HashMap<String, int[]>();
+		for(String primer : panel.keySet()) {
+			int[] placement = placements.computeIfAbsent(primer.substring(0, primer.lastIndexOf('-')),
+					assay -> new int[] {random.nextInt(contigs), 1000 + random.nextInt(50000)});
+			String contig = "contig_" + placement[0];
+			int start = placement[1];
+			int length = panel.get(primer).length();
+			String type = primer.substring(primer.lastIndexOf('-') + 1);
+			int offset = type.equals("F") ? 0 : type.equals("P") ? 200 : 400;
+			BlastResult result = new BlastResult(name, contig, primer, 0, start + offset, start + offset + length - 1, length,
+					panel.get(primer), type.equals("R") ? -1 : 1);
+			if(sample.getBlastResults().containsKey(primer)) {
+				sample.addBlastResult(primer, result);
+			}else {
+				sample.addNewBlastResult(primer, result);
+			}
+		}
+		return sample;
+	}
+
+	public static File tempDir(String prefix) throws IOException {
+		return Files.createTempDirectory(prefix).toFile();
+	}
+
+	public static void delete(File dir) throws IOException {
+		try(Stream<Path> paths = Files.walk(dir.toPath())) {
+			paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+}
@@ -0,0 +1,241 @@
+package ca.canada.inspection.commandpcr;
+
+import ca.canada.inspection.insilicopcr.Sample;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+// Original search path: builds a BLAST database from the primers and runs one blastn-short process per sample file.
+// blastn's rows are filtered as they arrive, the full report is only written to detailed_report when asked for.
+// With batching, the sample files searched at the same time are packed into one query, their contig ids prefixed with
+// the index of their sample in the batch, and searched by a single blastn with one thread per sample waiting on it.
+// That saves a process start and a load of the primer database per file, which dominate for small assemblies.
+public class BlastPrimerSearch implements PrimerSearch {
+	
+	// Bounds of the query size of a batch, in bases
+	public static final long MIN_BATCH_BASES = 1000000L;
+	public static final long MAX_BATCH_BASES = 100000000L;
+	// How long a batch waits for more samples before it is searched as it is
+	private static final long LINGER_MS = 500;
+	
+	private final File BLASTLocation;
+	private final File detailedDir;
+	private final double evalue;
+	private final int mismatches;
+	private final boolean keepReports;
+	private HashMap<String, String> primerDict;
+	private File primerFasta;
+	private long batchBases = 0;
+	private int batchThreads = 1;
+	private Batch open = null;
+	private int batchCount = 0;
+	
+	public BlastPrimerSearch(File BLASTLocation, File detailedDir, double evalue, int mismatches, boolean keepReports) {
+		this.BLASTLocation = BLASTLocation;
+		this.detailedDir = detailedDir;
+		this.evalue = evalue;
+		this.mismatches = mismatches;
+		this.keepReports = keepReports;
+	}
+	
+	// Search sample files in batches of about batchBases bases, with at most threads samples per batch
+	public void setBatching(long batchBases, int threads) {
+		this.batchBases = batchBases;
+		this.batchThreads = threads;
+	}
+	
+	// An equal share of the fasta input per thread, so even a small run is spread over every core, within the bounds
+	public static long batchBases(HashMap<String, Sample> sampleDict, int threads) {
+		long total = 0;
+		for(Sample sample : sampleDict.values()) {
+			if(!sample.getFileType().equals("fastq")) {
+				for(String file : sample.getFiles()) {
+					total += SampleStore.bases(file);
+				}
+			}
+		}
+		return Math.max(MIN_BATCH_BASES, Math.min(MAX_BATCH_BASES, total / Math.max(threads, 1)));
+	}
+	
+	public void prepare(HashMap<String, String> primerDict, File primerFasta) {
+		this.primerDict = primerDict;
+		this.primerFasta = primerFasta;
+		if(!System.getProperty("os.name").contains("Windows")) {
+			CommandMethods.makeExecutable(BLASTLocation);
+		}
+		CommandMethods.makeBlastDB(primerFasta, BLASTLocation);
+	}
+	
+	public void search(Sample sample, String query) {
+		search(sample, query, detailedDir);
+	}
+	
+	// Batches are numbered per search and stay in the detailed folder the search was created with
+	public void search(Sample sample, String query, File detailedDir) {
+		if(batchBases > 0) {
+			searchBatched(sample, query);
+			return;
+		}
+		// blastn reads files, so a stored sample is written out as fasta for the length of its search
+		File stored = null;
+		String file = query;
+		if(SampleStore.isQuery(query)) {
+			stored = new File(detailedDir.getAbsolutePath() + CommandMain.sep + sample.getName() + CommandMain.sep + sample.getName() + ".fasta");
+			try {
+				SampleStore.writeFasta(query, stored);
+			}catch(IOException e) {
+				e.printStackTrace();
+				return;
+			}
+			file = stored.getAbsolutePath();
+		}
+		CommandMain.BlastTask task = new CommandMain.BlastTask(primerFasta.getAbsolutePath(), file, detailedDir, CommandMain.sep,
+				BLASTLocation, evalue);
+		if(keepReports) {
+			task.run();
+			CommandMethods.parseBlastReport(task.getOutputFile(), sample, primerDict, mismatches);
+		}else {
+			task.stream(new BlastReportParser(primerDict, mismatches), sample);
+		}
+		if(stored != null) {
+			stored.delete();
+		}
+		CommandMethods.addContigs(sample, query);
+	}
+	
+	// Joins the open batch and returns once it has been searched. The sample that fills the batch, or the first one
+	// tired of waiting for it to fill, runs it
+	private void searchBatched(Sample sample, String query) {
+		Batch batch;
+		boolean full;
+		synchronized(this) {
+			if(open == null) {
+				open = new Batch(++batchCount);
+			}
+			batch = open;
+			batch.add(sample, query);
+			full = batch.bases >= batchBases || batch.samples.size() >= batchThreads;
+			if(full) {
+				open = null;
+			}
+		}
+		if(!full && !batch.awaitDone(LINGER_MS)) {
+			synchronized(this) {
+				if(open == batch) {
+					open = null;
+				}
+			}
+		}
+		if(batch.claim()) {
+			try {
+				run(batch);
+			}finally {
+				batch.finish();
+			}
+		}
+		batch.awaitDone(0);
+	}
+	
+	private void run(Batch batch) {
+		Sample[] samples = batch.samples.toArray(new Sample[0]);
+		File fasta = new File(detailedDir.getAbsolutePath() + CommandMain.sep + "blast_batch_" + batch.number + ".fasta");
+		try {
+			writeBatchQuery(batch, fasta);
+		}catch(IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		CommandMain.BlastTask task = new CommandMain.BlastTask(primerFasta.getAbsolutePath(), fasta.getAbsolutePath(), detailedDir,
+				CommandMain.sep, BLASTLocation, evalue);
+		task.setThreads(samples.length);
+		BlastReportParser parser = new BlastReportParser(primerDict, mismatches);
+		if(keepReports) {
+			task.run();
+			try {
+				parser.parse(task.getOutputFile(), samples);
+			}catch(IOException e) {
+				e.printStackTrace();
+			}
+		}else {
+			task.stream(parser, samples);
+			fasta.delete();
+		}
+	}
+	
+	// Copies every file of the batch into one query, collecting the contigs of each sample on the way
+	private void writeBatchQuery(Batch batch, File fasta) throws IOException {
+		try(OutputStream out = new BufferedOutputStream(new FileOutputStream(fasta), 1 << 16)) {
+			for(int i = 0; i < batch.samples.size(); i++) {
+				Sample sample = batch.samples.get(i);
+				byte[] prefix = (">" + BlastReportParser.batchID(i, "")).getBytes();
+				try(SequenceReader reader = SequenceReader.open(batch.queries.get(i))) {
+					while(reader.next()) {
+						CommandMethods.addContig(sample, reader);
+						out.write(prefix);
+						out.write(reader.getHeader(), 0, reader.getHeaderLength());
+						out.write('\n');
+						out.write(reader.getSequence(), 0, reader.getSequenceLength());
+						out.write('\n');
+					}
+				}
+			}
+		}
+	}
+	
+	// Sample files searched by the same blastn call
+	private static class Batch {
+		
+		private final int number;
+		private final ArrayList<Sample> samples = new ArrayList<Sample>();
+		private final ArrayList<String> queries = new ArrayList<String>();
+		private long bases = 0;
+		private boolean claimed = false;
+		private boolean done = false;
+		
+		Batch(int number) {
+			this.number = number;
+		}
+		
+		void add(Sample sample, String query) {
+			samples.add(sample);
+			queries.add(query);
+			bases += SampleStore.bases(query);
+		}
+		
+		synchronized boolean claim() {
+			if(claimed) {
+				return false;
+			}
+			claimed = true;
+			return true;
+		}
+		
+		synchronized void finish() {
+			done = true;
+			notifyAll();
+		}
+		
+		// Waits until the batch has been searched or timeout ms have passed, 0 waits for as long as it takes
+		synchronized boolean awaitDone(long timeout) {
+			long deadline = System.currentTimeMillis() + timeout;
+			while(!done) {
+				long left = timeout == 0 ? 0 : deadline - System.currentTimeMillis();
+				if(timeout != 0 && left <= 0) {
+					return false;
+				}
+				try {
+					wait(left);
+				}catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return done;
+				}
+			}
+			return true;
+		}
+	}
+}
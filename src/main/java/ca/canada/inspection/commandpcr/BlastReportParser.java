@@ -0,0 +1,211 @@
+package ca.canada.inspection.commandpcr;
+
+import ca.canada.inspection.insilicopcr.BlastResult;
+import ca.canada.inspection.insilicopcr.Sample;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+
+// Parses the blastn tabular reports (-outfmt "6 qseqid sseqid positive mismatch gaps evalue bitscore slen length qstart
+// qend qseq sstart send sseq") straight from bytes. Fields are located by their tabs and numbers are parsed in place, so
+// the only Strings made are the ids, reused while consecutive lines share them, and the sequence of kept hits.
+// Every report is read by the thread that parses it, so reports of different samples are parsed in parallel.
+// Reports of a batch of samples searched together have query ids prefixed with "s<index>_", which picks the sample of
+// each row and is removed from the contig id, see BlastPrimerSearch.
+public class BlastReportParser {
+
+	public static final String HEADER = String.join("\t", new String[] {"qseqid", "sseqid", "positive", "mismatch", "gaps",
+			"evalue", "bitscore", "slen", "length", "qstart", "qend", "qseq", "sstart", "send", "sseq"});
+
+	private static final int FIELDS = 15;
+	private static final int QSEQID = 0;
+	private static final int SSEQID = 1;
+	private static final int MISMATCH = 3;
+	private static final int LENGTH = 8;
+	private static final int QSTART = 9;
+	private static final int QEND = 10;
+	private static final int SSTART = 12;
+	private static final int SEND = 13;
+	private static final int SSEQ = 14;
+
+	private final HashMap<String, String> primerDict;
+	private final int mismatches;
+	private final int[] fieldStart = new int[FIELDS + 1];
+	private byte[] buffer = new byte[1 << 20];
+	private byte[] lastQuery = new byte[0];
+	private String lastQueryID = null;
+	private byte[] lastSubject = new byte[0];
+	private String lastSubjectID = null;
+	private Sample[] batch = null;
+
+	public BlastReportParser(HashMap<String, String> primerDict, int mismatches) {
+		this.primerDict = primerDict;
+		this.mismatches = mismatches;
+	}
+
+	// Adds the hits of a report that cover (nearly) the whole primer within the mismatch limit to the sample
+	public void parse(File report, Sample sample) throws IOException {
+		try(FileChannel channel = FileChannel.open(report.toPath(), StandardOpenOption.READ)) {
+			parse(channel, sample);
+		}
+	}
+
+	// Same for rows arriving from a running blastn, which are filtered as they come without being written anywhere
+	public void parse(InputStream rows, Sample sample) throws IOException {
+		try(ReadableByteChannel channel = Channels.newChannel(rows)) {
+			parse(channel, sample);
+		}
+	}
+
+	// Rows of a batch of samples, demultiplexed on their query id prefix
+	public void parse(File report, Sample[] batch) throws IOException {
+		this.batch = batch;
+		parse(report, (Sample)null);
+	}
+
+	public void parse(InputStream rows, Sample[] batch) throws IOException {
+		this.batch = batch;
+		parse(rows, (Sample)null);
+	}
+
+	// The id blastn gets for a contig of the sample at index in a batch
+	public static String batchID(int index, String contigID) {
+		return "s" + index + "_" + contigID;
+	}
+
+	private void parse(ReadableByteChannel channel, Sample sample) throws IOException {
+		int filled = 0;
+		while(true) {
+			if(filled == buffer.length) {
+				buffer = Arrays.copyOf(buffer, buffer.length * 2); // A line longer than the buffer
+			}
+			int n = channel.read(ByteBuffer.wrap(buffer, filled, buffer.length - filled));
+			if(n < 0) {
+				if(filled > 0) {
+					parseLine(sample, 0, filled);
+				}
+				return;
+			}
+			filled += n;
+
+			// Parse every complete line, and keep the partial last one for the next read
+			int lineStart = 0;
+			for(int i = 0; i < filled; i++) {
+				if(buffer[i] == '\n') {
+					parseLine(sample, lineStart, i);
+					lineStart = i + 1;
+				}
+			}
+			System.arraycopy(buffer, lineStart, buffer, 0, filled - lineStart);
+			filled -= lineStart;
+		}
+	}
+
+	private void parseLine(Sample sample, int start, int end) {
+		if(end > start && buffer[end - 1] == '\r') {
+			end--;
+		}
+		if(end == start || buffer[start] == 'q' && startsWith(start, end, "qseqid\t")) {
+			return;
+		}
+		int field = 0;
+		fieldStart[0] = start;
+		for(int i = start; i < end && field < FIELDS - 1; i++) {
+			if(buffer[i] == '\t') {
+				fieldStart[++field] = i + 1;
+			}
+		}
+		if(field < FIELDS - 1) {
+			return; // Truncated line
+		}
+		fieldStart[FIELDS] = end + 1;
+
+		int queryStart = fieldStart[QSEQID];
+		if(batch != null) {
+			// "s<index>_" in front of the contig id
+			int index = 0;
+			int i = queryStart + 1;
+			while(i < fieldEnd(QSEQID) && buffer[i] >= '0' && buffer[i] <= '9') {
+				index = index * 10 + (buffer[i++] - '0');
+			}
+			if(buffer[queryStart] != 's' || i == fieldEnd(QSEQID) || buffer[i] != '_' || index >= batch.length) {
+				return;
+			}
+			sample = batch[index];
+			queryStart = i + 1;
+		}
+		
+		String sseqid = subjectID(fieldStart[SSEQID], fieldEnd(SSEQID));
+		String primer = primerDict.get(sseqid);
+		if(primer == null) {
+			return;
+		}
+		int length = parseInt(LENGTH);
+		int weightedLength = primer.length();
+		int actualMismatches = parseInt(MISMATCH);
+		if(length > weightedLength || length < weightedLength - 2 || actualMismatches > mismatches) {
+			return;
+		}
+
+		// The primer aligned on the reverse strand of the contig when its own coordinates run backwards
+		int strand = parseInt(SSTART) <= parseInt(SEND) ? 1 : -1;
+		String qseqid = queryID(queryStart, fieldEnd(QSEQID));
+		String sseq = new String(buffer, fieldStart[SSEQ], fieldEnd(SSEQ) - fieldStart[SSEQ]);
+		CommandMethods.addResult(sample, new BlastResult(sample.getName(), qseqid, sseqid, actualMismatches, parseInt(QSTART),
+				parseInt(QEND), length, sseq, strand));
+	}
+
+	private int fieldEnd(int field) {
+		return fieldStart[field + 1] - 1;
+	}
+
+	private int parseInt(int field) {
+		int value = 0;
+		int i = fieldStart[field];
+		boolean negative = buffer[i] == '-';
+		if(negative) {
+			i++;
+		}
+		for(int end = fieldEnd(field); i < end; i++) {
+			value = value * 10 + (buffer[i] - '0');
+		}
+		return negative ? -value : value;
+	}
+
+	// Consecutive lines usually share their ids, so the last String made for each is reused while the bytes match
+	private String queryID(int start, int end) {
+		if(!Arrays.equals(buffer, start, end, lastQuery, 0, lastQuery.length)) {
+			lastQuery = Arrays.copyOfRange(buffer, start, end);
+			lastQueryID = new String(lastQuery);
+		}
+		return lastQueryID;
+	}
+
+	private String subjectID(int start, int end) {
+		if(!Arrays.equals(buffer, start, end, lastSubject, 0, lastSubject.length)) {
+			lastSubject = Arrays.copyOfRange(buffer, start, end);
+			lastSubjectID = new String(lastSubject);
+		}
+		return lastSubjectID;
+	}
+
+	private boolean startsWith(int start, int end, String prefix) {
+		if(end - start < prefix.length()) {
+			return false;
+		}
+		for(int i = 0; i < prefix.length(); i++) {
+			if(buffer[start + i] != prefix.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
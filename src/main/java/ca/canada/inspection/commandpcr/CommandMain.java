@@ -1,21 +1,21 @@
 package ca.canada.inspection.commandpcr;
 
-import ca.canada.inspection.insilicopcr.Find;
+import ca.canada.inspection.insilicopcr.BlastResult;
 import ca.canada.inspection.insilicopcr.Sample;
 import ca.canada.inspection.dispatchpcr.Dispatcher;
 
-import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public class CommandMain {
@@ -31,53 +31,97 @@ public class CommandMain {
 	private String javaCall;
 	private int mismatches = 0;
     private HashMap<String, String> primerDict = new HashMap<String, String>();
+	private HashMap<String, String> expandedPrimers;
 	private HashMap<String, Sample> sampleDict = new HashMap<String, Sample>();
 	private boolean fastqPresent = false;
+	private String searchEngine = "native";
+	private PrimerSearch primerSearch;
+	private ResourceBudget budget;
+	private ReportWriter report;
+	private final AtomicInteger finishedSamples = new AtomicInteger();
+	private boolean embedded = false;
+	private EmbeddedBBTools embeddedTools;
+	private boolean combinedBait = false;
+	private File cacheDir;
+	private int maxAmplicon = CommandMethods.DEFAULT_MAX_AMPLICON;
+	private boolean keepBlastReports = false;
+	private boolean blastBatch = false;
+	private boolean readPairs = false;
+	private boolean resume = false;
+	private int shardIndex = 0, shardCount = 0;
+	private NativePrimerSearch readPairSearch;
+	private ResultCache cache;
+	private String primerSetDigest;
+	private final HashMap<String, PrimerSearch> subsetSearches = new HashMap<String, PrimerSearch>();
+	private Telemetry telemetry = new Telemetry();
+	// The read caches and kmer tables of combined baiting live in this JVM's heap whatever the budget above is sized to,
+	// so they have a budget of their own, in MB, over three quarters of the heap and shared by every instance
+	private static final ResourceBudget heapBudget = new ResourceBudget(1, (int)Math.min(Runtime.getRuntime().maxMemory() / 4 * 3 / 1000000L, Integer.MAX_VALUE));
 
-    public CommandMain(File inputFile, File outDir, File primerFile, int threads, int mismatches, double evalue) {
+    public CommandMain(File inputFile, File outDir, File primerFile, int threads, int mismatches, double evalue, String searchEngine) {
 		this.inputFile = inputFile;
 		this.outDir = outDir;
 		this.primerFile = primerFile;
 		this.threads = threads;
 		this.mismatches = mismatches;
         this.evalue = evalue;
+        this.searchEngine = searchEngine;
+	}
+	
+	// Run BBDuk and Tadpole inside this JVM instead of starting a java process for every call
+	public void setEmbedded(boolean embedded) {
+		this.embedded = embedded;
+	}
+	
+	// Do both rounds of baiting in one pass over the reads instead of two BBDuk calls
+	public void setCombinedBait(boolean combinedBait) {
+		this.combinedBait = combinedBait;
+	}
+	
+	// Keep primer hits in this cache directory instead of result_cache in the output folder. Only the (sample, primer)
+	// combinations it does not hold yet are searched
+	public void setCacheDir(File cacheDir) {
+		this.cacheDir = cacheDir;
+	}
+	
+	// Write the full blastn report of every sample to detailed_report instead of only keeping the hits that pass
+	public void setKeepBlastReports(boolean keepBlastReports) {
+		this.keepBlastReports = keepBlastReports;
+	}
+	
+	// Search the samples with shared multi-threaded blastn calls instead of one single-threaded call per sample file
+	public void setBlastBatch(boolean blastBatch) {
+		this.blastBatch = blastBatch;
+	}
+	
+	// Find the amplicons of paired fastq samples on their read pairs, and only bait and assemble for longer targets
+	public void setReadPairs(boolean readPairs) {
+		this.readPairs = readPairs;
+	}
+	
+	// Skip the stages a stopped run into the same output folder finished, see StageJournal
+	public void setResume(boolean resume) {
+		this.resume = resume;
+	}
+	
+	// Only run shard index (1 to count) of the samples, see CommandMethods.shardSamples
+	public void setShard(int index, int count) {
+		this.shardIndex = index;
+		this.shardCount = count;
+	}
+	
+	// Kill BBTools and blastn calls running longer than this, 0 for no limit
+	public void setProcessTimeout(int minutes) {
+		ProcessRunner.setTimeout(TimeUnit.MINUTES.toMillis(minutes));
+	}
+	
+	// Longest PCR product to report, in bp
+	public void setMaxAmplicon(int maxAmplicon) {
+		this.maxAmplicon = maxAmplicon;
 	}
 	
 	public void run() {
-
-        if(System.getProperties().getProperty("os.name").contains("Windows")) {
-			String[] command = {"wmic", "computersystem", "get", "TotalPhysicalMemory"};
-			try {
-				String line;
-				ArrayList<String> output = new ArrayList<String>();
-				Process p = Runtime.getRuntime().exec(command);
-				BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
-				while((line = reader.readLine()) != null) {
-					output.add(line);
-				}
-				String fullOutput = String.join("", output);
-				String trimmedOutput = fullOutput.split("\\s+")[1];
-				memJava = Integer.parseInt(trimmedOutput) / 1000000 / 2;  // G
-			}catch(IOException e) {
-				e.printStackTrace();
-			}
-		}else {
-			String[] command = {"grep", "MemTotal", "/proc/meminfo"};
-			try {
-				String line;
-				ArrayList<String> output = new ArrayList<String>();
-				Process p = new ProcessBuilder(command).start();
-				BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
-				while((line = reader.readLine()) != null) {
-					output.add(line);
-				}
-				String fullOutput = String.join("",output);
-				String trimmedOutput = fullOutput.split("\\s+")[1];
-				memJava = Integer.parseInt(trimmedOutput) / 1000000 / 2;  // G
-			}catch(IOException e) {
-				e.printStackTrace();
-			}
-		}
+		detectMemory();
 		
 		RunPCRTask task = new RunPCRTask();
 		Thread t = new Thread(task);
@@ -90,6 +134,11 @@ public class CommandMain {
 		}
 	}
 	
+	// Half of the memory, in G, is what the BBTools JVMs get to share. Within a container that is half its limit
+	public void detectMemory() {
+		memJava = (int)(DependencyManifest.probeMemory() / 1000000000L / 2);
+	}
+	
 	// Makes directories within the output directory
 	public void makeDirectories() {
 		detailedDir = new File(outDir.getAbsolutePath() + sep + "detailed_report");
@@ -102,66 +151,23 @@ public class CommandMain {
 	public void findDependencies() {
 		File jarDir = new File(Dispatcher.class.getProtectionDomain().getCodeSource().getLocation().getPath());
 		String codeLocation = jarDir.getParent(); // to get the parent dir name
-//		String codeParent = codeLocation;
-		String codeParent = "/media/marco/marco/insilicoPCR_v0.5";  // debug
-//		System.out.println(codeParent);  // Print location
-//		try{
-//			codeParent = (new File(codeLocation)).getCanonicalPath();
-//		}catch(IOException e) {
-//			e.printStackTrace();
-//		}
-		Path dir = Paths.get(codeParent);
-		Find.Finder finder = new Find.Finder("**bbmap", dir);
-		for(Path path: finder.run()) {
-			File directory = path.toFile();
-			for(File file : Objects.requireNonNull(directory.listFiles())) {
-                if (file.getName().contains("tadpole.sh")) {
-                    BBToolsLocation = path.toFile();
-                    break;
-                }
-			}
-		}
-//		System.out.println(BBToolsLocation);  // Print location
-		
-		Find.Finder finder2;
-		if(System.getProperties().getProperty("os.name").contains("Windows")) {
-			finder2 = new Find.Finder("**makeblastdb.exe", dir);
-		}else {
-			finder2 = new Find.Finder("**makeblastdb", dir);
-		}
-		for(Path path : finder2.run()) {
-			File blastdbpath = path.toFile();
-			BLASTLocation = blastdbpath.getParentFile();
+		String codeParent = codeLocation;
+		try{
+			codeParent = (new File(codeLocation)).getCanonicalPath();
+		}catch(IOException e) {
+			e.printStackTrace();
 		}
+		// Found by walking the install folder on the first start, and read from its manifest after that
+		DependencyManifest manifest = DependencyManifest.load(new File(codeParent));
+		BBToolsLocation = manifest.getBBToolsLocation();
+		BLASTLocation = manifest.getBLASTLocation();
+		JavaLocation = manifest.getJavaLocation();
 		if(BBToolsLocation == null || BLASTLocation == null) {
 			System.out.println("BBToolsLocation or BLASTLocation is null");
 		}
-		
-		Find.Finder finder3;
-		if(System.getProperties().getProperty("os.name").contains("Windows")) {
-			finder3 = new Find.Finder("**windows/jdk-21.0.3", dir);
-		}else {
-			finder3 = new Find.Finder("**linux/jdk-21.0.3", dir);
-		}
-		for(Path path : finder3.run()) {
-			File javapath = path.toFile();
-			if(javapath.isDirectory()) {
-				for(File item : Objects.requireNonNull(javapath.listFiles())) {
-					if(item.isDirectory()) {
-						for(File item2 : Objects.requireNonNull(item.listFiles())) {
-							if(System.getProperties().getProperty("os.name").contains("Windows")) {
-								if(item2.getName().equals("java.exe")) {
-									JavaLocation = item.getAbsoluteFile();
-								}
-							}else {
-								if(item2.getName().equals("java")) {
-									JavaLocation = item.getAbsoluteFile();
-								}
-							}
-						}
-					}
-				}
-			}
+		// Without a bundled JDK, as when run from a build tree, BBTools run on this JVM's
+		if(JavaLocation == null) {
+			JavaLocation = new File(System.getProperty("java.home"), "bin");
 		}
 		if(System.getProperties().getProperty("os.name").contains("Windows")) {
 			javaCall = JavaLocation.getAbsolutePath() + sep + "java.exe";
@@ -170,7 +176,8 @@ public class CommandMain {
 		}
 	}
 	
-	// Main body of the pipeline, runs the contained methods in order
+	// Main body of the pipeline. Global setup runs once, then every sample moves through its own stages
+	// (bait -> rebait -> assemble -> search -> report) independently, throttled by the shared resource budget
 	public class RunPCRTask implements Runnable {
 		
 		public RunPCRTask() {
@@ -180,18 +187,25 @@ public class CommandMain {
 		public void run() {
 			
 			long startTime = System.nanoTime();
+			telemetry = new Telemetry();
+			Telemetry.Stage runStage = telemetry.start(Telemetry.NO_SAMPLE, "run");
 			
 			System.out.println("Beginning Program Run");
 			findDependencies();
 			System.out.println("Found Dependencies");
 			makeDirectories();
 			System.out.println("Created Directories");
+			Telemetry.Stage stage = telemetry.start(Telemetry.NO_SAMPLE, "discover_samples");
 			sampleDict = CommandMethods.createSampleDict(inputFile);
+			File shardList = new File(outDir.getAbsolutePath() + sep + CommandMethods.SHARD_LIST);
+			int batchSize = sampleDict.size();
+			if(shardCount > 0) {
+				shardList.delete();
+				sampleDict = CommandMethods.shardSamples(sampleDict, shardIndex, shardCount);
+				System.out.println("Shard " + shardIndex + "/" + shardCount + ": " + sampleDict.size() + " of " + batchSize + " samples");
+			}
+			telemetry.end(stage);
 			System.out.println("Created Sample Dictionary");
-			primerDict = CommandMethods.parseFastaToDictionary(primerFile);
-			System.out.println("Created Primer Dictionary");
-			CommandMethods.processPrimers(primerDict, outDir, sep);
-			System.out.println("Finished Formatting Primers");
 			// Check if any fastq files are present
 			for(String key : sampleDict.keySet()) {
 				if(sampleDict.get(key).getFileType().equals("fastq")) {
@@ -200,36 +214,41 @@ public class CommandMain {
 					break;
 				}
 			}
-			if(fastqPresent) {
-				runBaitTask();
-				System.out.println("Completed First Baiting");
-				runSecondBaitTask();
-				System.out.println("Completed Second Baiting");
-				runAssembleTask();
-				System.out.println("Completed Assembly");
+			preparePrimers();
+			
+			// Reruns into the same output folder only search primers that were added or changed since the last run
+			File panelFile = new File(outDir.getAbsolutePath() + sep + PrimerPanel.FILE_NAME);
+			if(panelFile.exists()) {
+				System.out.println(PrimerPanel.describeChanges(PrimerPanel.read(panelFile), primerDict));
 			}
-			if(!System.getProperty("os.name").contains("Windows")) {
-				CommandMethods.makeExecutable(BLASTLocation);
+			budget = createBudget();
+			report = new ReportWriter(consolidatedDir, sep, primerDict, maxAmplicon);
+			ThreadPoolExecutor mainPool = new ThreadPoolExecutor(threads, Integer.MAX_VALUE, Long.MAX_VALUE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+			for(String key : sampleDict.keySet()) {
+				mainPool.submit(new SampleTask(key, sampleDict.get(key), report, finishedSamples, sampleDict.size()));
 			}
-			CommandMethods.makeBlastDB(new File(outDir.getAbsolutePath() + sep + "primer_tmp.fasta"), BLASTLocation);
-			System.out.println("Completed Database Creation");
-			// If files were fastq, need to use the assembly file instead of raw files
-			runBLASTTask task = new runBLASTTask();
-			Thread t = new Thread(task);
-			t.setDaemon(true);
-			t.start();
 			try {
-				t.join();
+				mainPool.shutdown();
+				mainPool.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
 			}catch(InterruptedException e) {
 				e.printStackTrace();
 			}
-			System.out.println("Completed BLAST");
-			CommandMethods.addContigDict(sampleDict);
-			CommandMethods.parseBlastOutput(consolidatedDir, detailedDir, primerDict, mismatches, sampleDict);
-			System.out.println("Parsed BLAST output");
-			CommandMethods.makeConsolidatedReport(consolidatedDir, sep, sampleDict, primerDict);
+			stage = telemetry.start(Telemetry.NO_SAMPLE, "report");
+			report.close();
+			telemetry.end(stage);
+			PrimerPanel.write(primerDict, panelFile);
 			System.out.println("Created Consolidated Report");
-			CommandMethods.makeQALog(new File(outDir.getAbsolutePath() + sep + "QAlog.txt"), Dispatcher.version, outDir, inputFile, primerFile, BBToolsLocation, BLASTLocation);
+			telemetry.end(runStage);
+			telemetry.write(new File(outDir.getAbsolutePath() + sep + Telemetry.FILE_NAME));
+			CommandMethods.makeQALog(new File(outDir.getAbsolutePath() + sep + "QAlog.txt"), Dispatcher.version, outDir, inputFile, primerFile, BBToolsLocation, BLASTLocation,
+					report.getFailed());
+			if(!report.getFailed().isEmpty()) {
+				System.out.println(report.getFailed().size() + " sample(s) failed, see QAlog.txt");
+			}
+			// A shard with failed samples is not done, so the merge does not go ahead without them
+			if(shardCount > 0 && report.getFailed().isEmpty()) {
+				CommandMethods.writeShardList(shardList, shardIndex, shardCount, batchSize, sampleDict.keySet());
+			}
 			
 			long endTime = System.nanoTime();
 			
@@ -237,125 +256,423 @@ public class CommandMain {
 		}
 	}
 	
-	//Method to make a thread to run the FirstBaitTask to prevent UI from hanging
-	public void runBaitTask() {
-		BaitTask task = new BaitTask();
-		Thread t = new Thread(task);
-		t.setDaemon(true);
-		t.start();
+	// Screens every genome of the input against the whole panel at once, into the specificity folder of the output,
+	// instead of the consolidated report. Always uses the native search, see SpecificityScreen
+	public void runSpecificity(boolean dense, File targetsFile) {
+		long startTime = System.nanoTime();
+		outDir.mkdirs();
+		sampleDict = CommandMethods.createSampleDict(inputFile);
+		primerDict = CommandMethods.parseFastaToDictionary(primerFile);
+		CommandMethods.processPrimers(primerDict, outDir, sep, false);
+		NativePrimerSearch search = new NativePrimerSearch(mismatches);
+		search.prepare(primerDict, null);
+		SpecificityScreen screen = new SpecificityScreen(primerDict, search, maxAmplicon);
 		try {
-			t.join();
-		}catch(InterruptedException e) {
+			screen.run(sampleDict, threads);
+			screen.write(new File(outDir.getAbsolutePath() + sep + "specificity"), dense, SpecificityScreen.readTargets(targetsFile));
+		}catch(InterruptedException | IOException e) {
 			e.printStackTrace();
 		}
+		System.out.println("Done in " + Long.toString((System.nanoTime() - startTime) / 1000000000) + " seconds");
 	}
 	
-	//Method to make a thread to run the SecondBaitTask to prevent UI from hanging
-	public void runSecondBaitTask() {
-		SecondBaitTask task = new SecondBaitTask();
-		Thread t = new Thread(task);
-		t.setDaemon(true);
-		t.start();
-		try {
-			t.join();
-		}catch(InterruptedException e) {
-			e.printStackTrace();
+	// Parses and formats the primers, prepares the primer search over them and opens the result cache. A run does this
+	// once, and a server once per panel, keeping the prepared search for every job on that panel
+	public void preparePrimers() {
+		primerDict = CommandMethods.parseFastaToDictionary(primerFile);
+		expandedPrimers = null;
+		System.out.println("Created Primer Dictionary");
+		CommandMethods.processPrimers(primerDict, outDir, sep, searchEngine.equals("blast"));
+		System.out.println("Finished Formatting Primers");
+		Telemetry.Stage stage = telemetry.start(Telemetry.NO_SAMPLE, "prepare_search");
+		primerSearch = createPrimerSearch();
+		primerSearch.prepare(primerDict, new File(outDir.getAbsolutePath() + sep + "primer_tmp.fasta"));
+		telemetry.end(stage);
+		System.out.println("Prepared " + searchEngine + " primer search");
+		if(cacheDir == null) {
+			cacheDir = new File(outDir.getAbsolutePath() + sep + "result_cache");
 		}
+		// Hits found on read pairs are not those of an assembly, so they are cached apart
+		cache = new ResultCache(cacheDir, readPairs ? searchEngine + "\treadpairs" : searchEngine, mismatches, evalue);
+		primerSetDigest = ResultCache.primerDigest(primerDict);
 	}
 	
-	//Method to make a thread to run the AssemblyTask to prevent UI from hanging
-	public void runAssembleTask() {
-		AssembleTask task = new AssembleTask();
-		Thread t = new Thread(task);
-		t.setDaemon(true);
-		t.start();
+	// The primers with every degenerate one expanded into its concrete sequences, as BBDuk and the kmers of combined
+	// baiting only take A, C, G and T, and written to primer_tmp.fasta for BBDuk. BLAST runs have them from the start,
+	// other runs only expand them once a sample is baited
+	public synchronized HashMap<String, String> expandedPrimers() {
+		if(expandedPrimers == null) {
+			if(searchEngine.equals("blast")) {
+				expandedPrimers = primerDict;
+			}else {
+				expandedPrimers = CommandMethods.expandPrimers(primerDict);
+				CommandMethods.writePrimerFasta(expandedPrimers, new File(outDir.getAbsolutePath() + sep + "primer_tmp.fasta"));
+			}
+		}
+		return expandedPrimers;
+	}
+	
+	// Physical memory minus some headroom for this JVM and the overhead of the BBTools JVMs on top of their heap.
+	// Embedded BBTools share this JVM's heap instead, so that is all the budget there is
+	public ResourceBudget createBudget() {
+		if(embedded) {
+			embeddedTools = new EmbeddedBBTools(BBToolsLocation);
+			return new ResourceBudget(threads, (int)(Runtime.getRuntime().maxMemory() / 1000000000L) - 1);
+		}
+		return new ResourceBudget(threads, memJava * 2 - 1);
+	}
+	
+	// Lets several instances share one budget, as the panels of a server do
+	public void setBudget(ResourceBudget budget) {
+		this.budget = budget;
+	}
+	
+	public HashMap<String, String> getPrimerDict() {
+		return this.primerDict;
+	}
+	
+	// The samples of the last run that failed, which makes its exit status non-zero
+	public ArrayList<String> getFailedSamples() {
+		return report != null ? report.getFailed() : new ArrayList<String>();
+	}
+	
+	// Runs the samples of a job on a shared pool, with the search prepared by preparePrimers, and writes their rows to
+	// report.tsv in jobDir. Every stage of the job works in jobDir too, so jobs with samples of the same name never share
+	// a file, and the job's metrics go to its own metrics.tsv. Returns the report once every sample is done
+	public File runJob(HashMap<String, Sample> samples, File jobDir, ExecutorService pool) throws InterruptedException, ExecutionException {
+		jobDir.mkdirs();
+		ReportWriter jobReport = new ReportWriter(jobDir, sep, primerDict, maxAmplicon);
+		Telemetry jobTelemetry = new Telemetry();
+		AtomicInteger finished = new AtomicInteger();
+		ArrayList<SampleTask> tasks = new ArrayList<SampleTask>();
+		ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+		for(String key : samples.keySet()) {
+			SampleTask task = new SampleTask(key, samples.get(key), jobReport, finished, samples.size(), jobDir, jobTelemetry);
+			tasks.add(task);
+			futures.add(pool.submit(task));
+		}
 		try {
-			t.join();
+			for(Future<?> future : futures) {
+				future.get();
+			}
 		}catch(InterruptedException e) {
-			e.printStackTrace();
+			// The job was cancelled, which stops its samples. Their child processes are killed too, as a thread reading
+			// the output of one does not notice the interrupt
+			for(Future<?> future : futures) {
+				future.cancel(true);
+			}
+			for(SampleTask task : tasks) {
+				ProcessRunner.cancel(task);
+			}
+			throw e;
+		}finally {
+			jobReport.close();
+			jobTelemetry.write(new File(jobDir.getAbsolutePath() + sep + Telemetry.FILE_NAME));
+		}
+		if(!jobReport.getFailed().isEmpty()) {
+			throw new IllegalStateException("Sample(s) failed: " + String.join(", ", jobReport.getFailed()));
 		}
+		return new File(jobDir.getAbsolutePath() + sep + "report.tsv");
 	}
 	
-	public class runBLASTTask implements Runnable {
+	// Runs every stage of a single sample in order. BBTools stages reserve the cores and heap StageSizer gives them,
+	// searches reserve a single core, and the sample's report rows are written as soon as its search is done
+	public class SampleTask implements Runnable {
+		
+		private final String key;
+		private final Sample sample;
+		private final ReportWriter report;
+		private final AtomicInteger finished;
+		private final int count;
+		private final File workDir;
+		private final Telemetry telemetry;
+		
+		// finished counts the samples done out of the count of the run or job the sample is part of
+		public SampleTask(String key, Sample sample, ReportWriter report, AtomicInteger finished, int count) {
+			this(key, sample, report, finished, count, outDir, CommandMain.this.telemetry);
+		}
 		
-		public runBLASTTask() {
+		// The stages write to the detailed_report and journal folders of workDir, and their metrics go to telemetry
+		public SampleTask(String key, Sample sample, ReportWriter report, AtomicInteger finished, int count, File workDir, Telemetry telemetry) {
+			this.key = key;
+			this.sample = sample;
+			this.report = report;
+			this.finished = finished;
+			this.count = count;
+			this.workDir = workDir;
+			this.telemetry = telemetry;
 		}
 		
 		public void run() {
-            ThreadPoolExecutor mainPool = new ThreadPoolExecutor(threads, Integer.MAX_VALUE, Long.MAX_VALUE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
-			for(String key : sampleDict.keySet()) {
-				if(sampleDict.get(key).getFileType().equals("fastq")) {
-					BlastTask task = new BlastTask(outDir.getAbsolutePath() + sep + "primer_tmp.fasta", sampleDict.get(key).getAssemblyFile(),
-                            detailedDir, sep, BLASTLocation, evalue);
-					mainPool.submit(task);
-				}else {
-					for(String file : sampleDict.get(key).getFiles()) {
-						BlastTask task = new BlastTask(outDir.getAbsolutePath() + sep + "primer_tmp.fasta", file,
-                                detailedDir, sep, BLASTLocation, evalue);
-						mainPool.submit(task);
+			Telemetry.Stage total = telemetry.start(sample.getName(), "total");
+			ProcessRunner.setOwner(this);
+			try {
+				// Only the primers the cache has no hits for are searched, and a sample with none left is done here
+				ResultCache.Entry entry = loadCacheEntry(sample);
+				HashMap<String, String> toSearch = primerDict;
+				if(entry != null) {
+					toSearch = entry.missing(primerDict);
+					if(toSearch.isEmpty()) {
+						entry.restore(sample, primerDict);
+						report.addSample(key, sample);
+						System.out.println("Completed sample " + sample.getName() + " from cache (" + telemetry.progress(finished.incrementAndGet(), count) + ")");
+						return;
 					}
+					if(sample.getFileType().equals("fastq")) {
+						toSearch = primerDict;
+					}
+				}
+				
+				ArrayList<String> queries = new ArrayList<String>();
+				File sampleDetailedDir = new File(workDir.getAbsolutePath() + sep + "detailed_report");
+				File sampleDir = new File(sampleDetailedDir.getAbsolutePath() + sep + sample.getName());
+				// Products found on the read pairs are contigs of the sample already, with their hits, and leave nothing to search
+				boolean detected = false;
+				if(readPairs && sample.getFileType().equals("fastq") && sample.getFiles().size() == 2) {
+					ReadPairTask task = new ReadPairTask(sample, sampleDir);
+					runStage(sample, "read_pairs", task, 1, 0);
+					detected = task.isResolved();
+				}
+				if(sample.getFileType().equals("fastq") && !detected) {
+					String matches = sampleDir.getAbsolutePath() + sep + sample.getName() + "_targetMatches.fastq.gz";
+					String doubleMatches = sampleDir.getAbsolutePath() + sep + sample.getName() + "_doubleTargetMatches.fastq.gz";
+					String assembly = sampleDir.getAbsolutePath() + sep + sample.getName() + "_assembly.fasta";
+					StageJournal journal = new StageJournal(new File(workDir.getAbsolutePath() + sep + StageJournal.DIR_NAME), sample,
+							"m=" + mismatches + "\tprimers=" + primerSetDigest, resume);
+					
+					// Each stage is sized from its own input, so this has to happen right before the stage runs
+					StageSizer.StageSize size;
+					boolean baited = false;
+					if(combinedBait) {
+						// Every sample that can run at the same time gets an equal share of the heap budget
+						int share = heapBudget.getTotalMemory() / Math.max(1, Math.min(budget.getTotalCores(), count));
+						CombinedBaitTask task = new CombinedBaitTask(sample, sampleDir, share * 1000000L);
+						heapBudget.acquire(0, share);
+						try {
+							runStage(sample, "combined_bait", task, 1, 0, journal, doubleMatches);
+						}finally {
+							heapBudget.release(0, share);
+						}
+						baited = !task.declined();
+					}
+					if(!baited) {
+						size = StageSizer.bait(sample.getFiles(), threads, budget.getTotalMemory());
+						runStage(sample, "bait", new BaitTask(sample, sampleDir, size), size.getThreads(), size.getMemory(), journal, matches);
+						size = StageSizer.rebait(sample.getFiles(), matches, mismatches, threads, budget.getTotalMemory());
+						runStage(sample, "rebait", new SecondBaitTask(sample, sampleDir, size), size.getThreads(), size.getMemory(), journal, doubleMatches);
+					}
+					size = StageSizer.assemble(doubleMatches, threads, budget.getTotalMemory());
+					sample.setAssemblyFile(assembly);
+					runStage(sample, "assemble", new AssembleTask(sample, sampleDir, size), size.getThreads(), size.getMemory(), journal, assembly);
+					queries.add(assembly);
+				}else if(!detected) {
+					queries.addAll(sample.getFiles());
+				}
+				PrimerSearch search = searchFor(toSearch);
+				for(String query : queries) {
+					runStage(sample, "search", new SearchTask(search, sample, query, sampleDetailedDir), 1, 0);
 				}
+				if(entry != null) {
+					entry.restore(sample, primerDict);
+					entry.update(sample, toSearch);
+				}
+				report.addSample(key, sample);
+				System.out.println("Completed sample " + sample.getName() + " (" + telemetry.progress(finished.incrementAndGet(), count) + ")");
+			}catch(InterruptedException | RuntimeException e) {
+				// Counted as done, or the progress would never reach the count
+				report.addFailed(sample.getName());
+				System.out.println("Sample " + sample.getName() + " failed (" + telemetry.progress(finished.incrementAndGet(), count) + ")");
+				e.printStackTrace();
+			}finally {
+				ProcessRunner.setOwner(null);
+				telemetry.end(total);
 			}
+		}
+		
+		// Runs a stage once the resource budget allows it, and records its metrics under name
+		private void runStage(Sample sample, String name, Runnable stage, int cores, int memory) throws InterruptedException {
+			long queued = System.nanoTime();
+			budget.acquire(cores, memory);
+			Telemetry.Stage metrics = telemetry.start(sample.getName(), name, System.nanoTime() - queued);
 			try {
-				mainPool.shutdown();
-				mainPool.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
-			}catch(InterruptedException e) {
-				e.printStackTrace();
+				stage.run();
+			}finally {
+				telemetry.end(metrics);
+				budget.release(cores, memory);
+			}
+		}
+		
+		// Runs a stage that writes artifact and journals it once it returned without being cancelled, or skips it when a
+		// resumed run finds it done already
+		private void runStage(Sample sample, String name, Runnable stage, int cores, int memory, StageJournal journal, String artifact) throws InterruptedException {
+			if(journal.isDone(name, artifact)) {
+				System.out.println("Sample " + sample.getName() + ": " + name + " already done, resuming after it");
+				return;
+			}
+			runStage(sample, name, stage, cores, memory);
+			// A stage cut short by a cancel may have left part of its file
+			if(Thread.interrupted()) {
+				throw new InterruptedException(name + " cancelled");
 			}
+			journal.complete(name, artifact);
 		}
 	}
 	
-	// Bait FastQ reads from input files using BBDuk and the primer file as the target
-	public class BaitTask implements Runnable {
+	// Search a single sample file with the selected primer search backend
+	public class SearchTask implements Runnable {
 		
-		public BaitTask() {
+		private final PrimerSearch search;
+		private final Sample sample;
+		private final String query;
+		private final File detailedDir;
+		
+		// Searches that write files, as blastn does, write them to detailedDir
+		public SearchTask(PrimerSearch search, Sample sample, String query, File detailedDir) {
+			this.search = search;
+			this.sample = sample;
+			this.query = query;
+			this.detailedDir = detailedDir;
 		}
 		
 		public void run() {
-			
-			// Need to make sure that whatever k-value is being used is no longer than the shortest primer length
-			int klength = Integer.MAX_VALUE;
-			for(String key : primerDict.keySet()) {
-				if(primerDict.get(key).length() < klength) {
-					klength = primerDict.get(key).length();
+			// The contigs and hits this search added to the sample
+			long[] before = counts();
+			Telemetry.read(query);
+			search.search(sample, query, detailedDir);
+			long[] after = counts();
+			Telemetry.reads(after[0] - before[0], after[1] - before[1]);
+			Telemetry.hits(after[2] - before[2]);
+		}
+		
+		private long[] counts() {
+			long[] counts = new long[3];
+			synchronized(sample) {
+				counts[0] = sample.getContigLengths().size();
+				for(int length : sample.getContigLengths().values()) {
+					counts[1] += length;
+				}
+				for(ArrayList<BlastResult> results : sample.getBlastResults().values()) {
+					counts[2] += results.size();
 				}
 			}
-			
+			return counts;
+		}
+	}
+	
+	public PrimerSearch createPrimerSearch() {
+		if(searchEngine.equals("blast")) {
+			BlastPrimerSearch search = new BlastPrimerSearch(BLASTLocation, detailedDir, evalue, mismatches, keepBlastReports);
+			if(blastBatch) {
+				search.setBatching(BlastPrimerSearch.batchBases(sampleDict, threads), threads);
+			}
+			return search;
+		}
+		return new NativePrimerSearch(mismatches);
+	}
+	
+	// The search for a subset of the primers, prepared once per distinct subset as samples usually miss the same ones
+	public synchronized PrimerSearch searchFor(HashMap<String, String> primers) {
+		if(primers.size() == primerDict.size()) {
+			return primerSearch;
+		}
+		String digest = ResultCache.primerDigest(primers);
+		PrimerSearch search = subsetSearches.get(digest);
+		if(search == null) {
+			File fasta = new File(outDir.getAbsolutePath() + sep + "primer_tmp_" + digest.substring(0, 12) + ".fasta");
+			CommandMethods.writePrimerFasta(primers, fasta);
+			search = createPrimerSearch();
+			search.prepare(primers, fasta);
+			subsetSearches.put(digest, search);
+		}
+		return search;
+	}
+	
+	// The cache entry of a sample, or null when the sample files cannot be read
+	public ResultCache.Entry loadCacheEntry(Sample sample) {
+		try {
+			return cache.load(cache.digest(sample), sample.getFileType().equals("fastq") ? primerSetDigest : null);
+		}catch(IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	// Need to make sure that whatever k-value is being used is no longer than the shortest primer length
+	public int shortestPrimerLength() {
+		int klength = Integer.MAX_VALUE;
+		for(String key : primerDict.keySet()) {
+			if(primerDict.get(key).length() < klength) {
+				klength = primerDict.get(key).length();
+			}
+		}
+		return klength;
+	}
+	
+	// Runs a BBTools program either embedded in this JVM or as a separate java process started from the BBTools folder.
+	// Throws when the program fails or is cancelled, so the stage running it is not journaled as done
+	public void runBBTool(String className, String[] args, StageSizer.StageSize size, File log) {
+		if(embeddedTools != null) {
+			// Failed like a child process that exited with an error
+			if(!embeddedTools.run(className, args, log)) {
+				throw new IllegalStateException(className + " failed, see " + log.getAbsolutePath());
+			}
+			return;
+		}
+		String[] fullProcessCall = new String[args.length + 6];
+		String[] javaArgs = {javaCall, "-ea", String.format("-Xmx%sg", size.getMemory()), "-cp", "./current", className};
+		System.arraycopy(javaArgs, 0, fullProcessCall, 0, javaArgs.length);
+		System.arraycopy(args, 0, fullProcessCall, javaArgs.length, args.length);
+		try {
+			// BBTools report their statistics on stderr, kept in the log as with embedded runs
+			ProcessRunner.run(new ProcessBuilder(fullProcessCall).directory(BBToolsLocation).redirectErrorStream(true), log).check();
+			// To write stdout to terminal (Debug)
+//			ProcessBuilder pb = new ProcessBuilder(fullProcessCall);
+//			pb.directory(BBToolsLocation);
+//			pb.inheritIO();
+//			Process p = pb.start();
+		}catch(InterruptedException e) {
+			// Cancelled, the child was killed and the sample stops here
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(className + " cancelled", e);
+		}catch(IOException e) {
+			throw new IllegalStateException(className + " could not be started", e);
+		}
+	}
+	
+	// Bait FastQ reads from input files using BBDuk and the primer file as the target
+	public class BaitTask implements Runnable {
+		
+		private final Sample currentSample;
+		private final File sampleDir;
+		private final StageSizer.StageSize size;
+		
+		public BaitTask(Sample currentSample, File sampleDir, StageSizer.StageSize size) {
+			this.currentSample = currentSample;
+			this.sampleDir = sampleDir;
+			this.size = size;
+		}
+		
+		public void run() {
+			int klength = shortestPrimerLength();
+			expandedPrimers();
 			String ref = outDir.getAbsolutePath() + sep + "primer_tmp.fasta";
-			
-			for(String key : sampleDict.keySet()) {
-				if(sampleDict.get(key).getFileType().equals("fastq")) {
-					Sample currentSample = sampleDict.get(key);
-					File sampleDir = new File(detailedDir.getAbsolutePath() + sep + currentSample.getName());
-					sampleDir.mkdirs();
-					String[] fullProcessCall;
-					if(currentSample.getFiles().size() == 2) {
-                        fullProcessCall = new String[] {javaCall, "-ea", String.format("-Xmx%sg", memJava), "-cp", "./current", "jgi.BBDuk", "ref=" + ref, "k=" + klength,
-								"in1=" + currentSample.getFiles().getFirst(), "in2=" + currentSample.getFiles().get(1), "hdist=" + mismatches,
-								"threads=" + threads, "overwrite=t", "interleaved=t", "outm=" + sampleDir.getAbsolutePath() + sep + currentSample.getName() +
-								"_targetMatches.fastq.gz"};
-					}else {
-						fullProcessCall = new String[] {javaCall, "-ea", String.format("-Xmx%sg", memJava), "-cp", "./current", "jgi.BBDuk", "ref=" + ref, "k=" + klength,
-								"in=" + currentSample.getFiles().getFirst(), "hdist=" + mismatches, "threads=" + threads, "overwrite=t", "interleaved=t",
-								"outm=" + sampleDir.getAbsolutePath() + sep + currentSample.getName() + "_targetMatches.fastq.gz"};
-					}
-					try {
-						Process p = new ProcessBuilder(fullProcessCall).directory(BBToolsLocation).start();
-						// To write stdout to terminal (Debug)
-//						ProcessBuilder pb = new ProcessBuilder(fullProcessCall);
-//						pb.directory(BBToolsLocation);
-//						pb.inheritIO();
-//						Process p = pb.start();
-						try {
-							p.waitFor();
-						}catch(InterruptedException e) {
-							e.printStackTrace();
-						}
-					}catch(IOException e) {
-						e.printStackTrace();
-					}
-				}
+			sampleDir.mkdirs();
+			String[] args;
+			if(currentSample.getFiles().size() == 2) {
+				args = new String[] {"ref=" + ref, "k=" + klength,
+						"in1=" + currentSample.getFiles().getFirst(), "in2=" + currentSample.getFiles().get(1), "hdist=" + mismatches,
+						"threads=" + size.getThreads(), "overwrite=t", "interleaved=t", "outm=" + sampleDir.getAbsolutePath() + sep + currentSample.getName() +
+						"_targetMatches.fastq.gz"};
+			}else {
+				args = new String[] {"ref=" + ref, "k=" + klength,
+						"in=" + currentSample.getFiles().getFirst(), "hdist=" + mismatches, "threads=" + size.getThreads(), "overwrite=t", "interleaved=t",
+						"outm=" + sampleDir.getAbsolutePath() + sep + currentSample.getName() + "_targetMatches.fastq.gz"};
 			}
+			File log = new File(sampleDir.getAbsolutePath() + sep + currentSample.getName() + "_bait.log");
+			runBBTool("jgi.BBDuk", args, size, log);
+			Telemetry.read(currentSample.getFiles());
+			Telemetry.written(sampleDir.getAbsolutePath() + sep + currentSample.getName() + "_targetMatches.fastq.gz");
+			Telemetry.readsFromLog(log);
 		}
 	}
 	
@@ -364,79 +681,147 @@ public class CommandMain {
 	// Conducting mutations on query instead of reference? Dramatically reduces memory usage. 
 	public class SecondBaitTask implements Runnable {
 		
-		public SecondBaitTask() {
+		private final Sample currentSample;
+		private final File sampleDir;
+		private final StageSizer.StageSize size;
+		
+		public SecondBaitTask(Sample currentSample, File sampleDir, StageSizer.StageSize size) {
+			this.currentSample = currentSample;
+			this.sampleDir = sampleDir;
+			this.size = size;
 		}
 		
 		public void run() {
-			for(String key : sampleDict.keySet()) {
-				if(sampleDict.get(key).getFileType().equals("fastq")) {
-					Sample currentSample = sampleDict.get(key);
-					File sampleDir = new File(detailedDir.getAbsolutePath() + sep + currentSample.getName());
-					String ref = sampleDir.getAbsolutePath() + sep + currentSample.getName() + "_targetMatches.fastq.gz";
-					String[] fullProcessCall;
-					if(currentSample.getFiles().size() == 2) {
-						fullProcessCall = new String[] {javaCall, "-ea", String.format("-Xmx%sg", memJava), "-cp", "./current", "jgi.BBDuk", "ref=" + ref,
-								"in1=" + currentSample.getFiles().getFirst(), "in2=" + currentSample.getFiles().get(1), "hdist=" + mismatches,
-								"threads=" + threads, "overwrite=t", "interleaved=t", "outm=" + sampleDir.getAbsolutePath() + sep + currentSample.getName() +
-								"_doubleTargetMatches.fastq.gz"};
-					}else {
-						fullProcessCall = new String[] {javaCall, "-ea", String.format("-Xmx%sg", memJava), "-cp", "./current", "jgi.BBDuk", "ref=" + ref,
-								"in=" + currentSample.getFiles().getFirst(), "hdist=" + mismatches, "threads=" + threads, "overwrite=t", "interleaved=t",
-								"outm=" + sampleDir.getAbsolutePath() + sep + currentSample.getName() + "_doubleTargetMatches.fastq.gz"};
-					}
-					try {
-						Process p = new ProcessBuilder(fullProcessCall).directory(BBToolsLocation).start();
-						try {
-							p.waitFor();
-						}catch(InterruptedException e) {
-							e.printStackTrace();
-						}
-					}catch(IOException e) {
-						e.printStackTrace();
-					}
+			String ref = sampleDir.getAbsolutePath() + sep + currentSample.getName() + "_targetMatches.fastq.gz";
+			String[] args;
+			if(currentSample.getFiles().size() == 2) {
+				args = new String[] {"ref=" + ref,
+						"in1=" + currentSample.getFiles().getFirst(), "in2=" + currentSample.getFiles().get(1), "hdist=" + mismatches,
+						"threads=" + size.getThreads(), "overwrite=t", "interleaved=t", "outm=" + sampleDir.getAbsolutePath() + sep + currentSample.getName() +
+						"_doubleTargetMatches.fastq.gz"};
+			}else {
+				args = new String[] {"ref=" + ref,
+						"in=" + currentSample.getFiles().getFirst(), "hdist=" + mismatches, "threads=" + size.getThreads(), "overwrite=t", "interleaved=t",
+						"outm=" + sampleDir.getAbsolutePath() + sep + currentSample.getName() + "_doubleTargetMatches.fastq.gz"};
+			}
+			File log = new File(sampleDir.getAbsolutePath() + sep + currentSample.getName() + "_rebait.log");
+			runBBTool("jgi.BBDuk", args, size, log);
+			Telemetry.read(currentSample.getFiles());
+			Telemetry.read(ref);
+			Telemetry.written(sampleDir.getAbsolutePath() + sep + currentSample.getName() + "_doubleTargetMatches.fastq.gz");
+			Telemetry.readsFromLog(log);
+		}
+	}
+	
+	// Both rounds of baiting in a single pass over the raw reads, without BBDuk or the intermediate _targetMatches file
+	public class CombinedBaitTask implements Runnable {
+		
+		private final Sample currentSample;
+		private final File sampleDir;
+		private final long heapLimit;
+		private boolean declined = false;
+		
+		public CombinedBaitTask(Sample currentSample, File sampleDir, long heapLimit) {
+			this.currentSample = currentSample;
+			this.sampleDir = sampleDir;
+			this.heapLimit = heapLimit;
+		}
+		
+		// True when the kmer table did not fit the sample's share of the heap, or the primers are too long for a single
+		// table, and the sample is left to BBDuk
+		public boolean declined() {
+			return declined;
+		}
+		
+		public void run() {
+			sampleDir.mkdirs();
+			File out = new File(sampleDir.getAbsolutePath() + sep + currentSample.getName() + "_doubleTargetMatches.fastq.gz");
+			File log = new File(sampleDir.getAbsolutePath() + sep + currentSample.getName() + "_bait.log");
+			try {
+				declined = !new TwoStageBaiter(expandedPrimers(), shortestPrimerLength(), mismatches, heapLimit).run(currentSample.getFiles(), out, log);
+				Telemetry.read(currentSample.getFiles());
+				if(!declined) {
+					Telemetry.written(out.getAbsolutePath());
 				}
+			}catch(IOException e) {
+				throw new IllegalStateException("Baiting " + currentSample.getName() + " failed", e);
 			}
 		}
 	}
 	
-	// Assemble reads from both rounds of baiting to attempt to get long enough contigs to ensure as many primer hits are contained on the same contigs as possible
-	public class AssembleTask implements Runnable {
+	// Look for the products on the read pairs of a sample. Unresolved when a target is longer than the fragments
+	public class ReadPairTask implements Runnable {
 		
-		public AssembleTask() {
+		private final Sample currentSample;
+		private final File sampleDir;
+		private boolean resolved = false;
+		
+		public ReadPairTask(Sample currentSample, File sampleDir) {
+			this.currentSample = currentSample;
+			this.sampleDir = sampleDir;
 		}
 		
 		public void run() {
-			for(String key : sampleDict.keySet()) {
-				if(sampleDict.get(key).getFileType().equals("fastq")) {
-					
-					Sample currentSample = sampleDict.get(key);
-					File sampleDir = new File(detailedDir.getAbsolutePath() + sep + currentSample.getName());
-					
-					String in = sampleDir.getAbsolutePath() + sep + currentSample.getName() + "_doubleTargetMatches.fastq.gz";
-					String out = sampleDir.getAbsolutePath() + sep + currentSample.getName() + "_assembly.fasta";
-					
-					// Make sure that the sample contains a reference to its own assembly file
-					currentSample.setAssemblyFile(out);
-					String[] fullProcessCall = {javaCall, "-ea", String.format("-Xmx%sg", memJava), "-cp", "./current", "assemble.Tadpole",
-							"in=" + in, "out=" + out, "overwrite=t", "threads=" + threads};
-				
-					try {
-						Process p = new ProcessBuilder(fullProcessCall).directory(BBToolsLocation).start();
-						try {
-							p.waitFor();
-						}catch(InterruptedException e) {
-							e.printStackTrace();
-						}
-					}catch(IOException e) {
-						e.printStackTrace();
-					}
-					
+			sampleDir.mkdirs();
+			File log = new File(sampleDir.getAbsolutePath() + sep + currentSample.getName() + "_read_pairs.log");
+			ReadPairDetector detector = new ReadPairDetector(readPairSearch(), maxAmplicon);
+			try {
+				detector.run(currentSample.getFiles(), log);
+				Telemetry.read(currentSample.getFiles());
+				resolved = detector.resolve(currentSample);
+				if(!resolved) {
+					System.out.println("Sample " + currentSample.getName() + " has targets longer than its read pairs, conducting baiting and assembly");
 				}
+			}catch(IOException e) {
+				e.printStackTrace();
+			}
+		}
+		
+		public boolean isResolved() {
+			return resolved;
+		}
+	}
+	
+	// The native search over the whole panel, which read pairs are always searched with
+	public synchronized NativePrimerSearch readPairSearch() {
+		if(readPairSearch == null) {
+			if(primerSearch instanceof NativePrimerSearch) {
+				readPairSearch = (NativePrimerSearch)primerSearch;
+			}else {
+				readPairSearch = new NativePrimerSearch(mismatches);
+				readPairSearch.prepare(primerDict, null);
 			}
 		}
+		return readPairSearch;
+	}
+	
+	// Assemble reads from both rounds of baiting to attempt to get long enough contigs to ensure as many primer hits are contained on the same contigs as possible
+	public class AssembleTask implements Runnable {
+		
+		private final Sample currentSample;
+		private final File sampleDir;
+		private final StageSizer.StageSize size;
+		
+		public AssembleTask(Sample currentSample, File sampleDir, StageSizer.StageSize size) {
+			this.currentSample = currentSample;
+			this.sampleDir = sampleDir;
+			this.size = size;
+		}
+		
+		public void run() {
+			String in = sampleDir.getAbsolutePath() + sep + currentSample.getName() + "_doubleTargetMatches.fastq.gz";
+			String out = sampleDir.getAbsolutePath() + sep + currentSample.getName() + "_assembly.fasta";
+			
+			// Make sure that the sample contains a reference to its own assembly file
+			currentSample.setAssemblyFile(out);
+			String[] args = {"in=" + in, "out=" + out, "overwrite=t", "threads=" + size.getThreads()};
+			runBBTool("assemble.Tadpole", args, size, new File(sampleDir.getAbsolutePath() + sep + currentSample.getName() + "_assemble.log"));
+			Telemetry.read(in);
+			Telemetry.written(out);
+		}
 	}
 	
-	// Run Blast on the provided primers and query, calls addHeaderToTSV on the resulting .tsv file
+	// Run Blast on the provided primers and query. The header is written first and blastn appends its rows behind it
 	public static class BlastTask implements Runnable {
 		
 		private final String primers;
@@ -445,6 +830,7 @@ public class CommandMain {
 		private final String sep;
 		private final File BLASTLocation;
 		private final double evalue;
+		private int threads = 1;
 
 
 		public BlastTask(String primers, String query, File detailedDir, String sep, File BLASTLocation, double evalue) {
@@ -456,40 +842,85 @@ public class CommandMain {
             this.evalue = evalue;
         }
 		
-		public void run() {
-			
+		// Threads of the blastn call, 1 unless it searches a batch of samples
+		public void setThreads(int threads) {
+			this.threads = threads;
+		}
+		
+		// The report is written to detailed_report/<name>/<name>.tsv, where name is the query file name without extension
+		public File getOutputFile() {
 			File file = new File(query);
 			String name = file.getName().split("_assembly\\.fasta")[0];
 			name = name.split("\\.fasta")[0];
 			name = name.split("\\.fna")[0];
 			name = name.split("\\.ffn")[0];
-			File blastOutput = new File(detailedDir.getAbsolutePath() + sep + name);
-			blastOutput.mkdirs();
-			File blastTSV = new File(blastOutput.getAbsolutePath() + sep + name + ".tsv");
+			return new File(detailedDir.getAbsolutePath() + sep + name + sep + name + ".tsv");
+		}
+		
+		// blastn's warnings and errors go next to the report, only when it has any
+		public File getLogFile() {
+			File report = getOutputFile();
+			return new File(report.getParent() + sep + report.getName().replace(".tsv", "_blastn.log"));
+		}
+		
+		// The blastn call, which writes its tabular report to stdout
+		public String[] getCommand() {
 			String[] windowsFullProcessCall = {BLASTLocation.getAbsolutePath() + sep + "ca/canada/inspection/insilicopcr/blastn.exe", "-task", "blastn-short", "-query",
-					query, "-db", primers, "-evalue", Double.toString(evalue), "-num_alignments", "1000000", "-num_threads", "1", "-outfmt",
-					"6 qseqid sseqid positive mismatch gaps evalue bitscore slen length qstart qend qseq sstart send sseq",
-					"-out", blastTSV.getAbsolutePath()};
+					query, "-db", primers, "-evalue", Double.toString(evalue), "-num_alignments", "1000000", "-num_threads", Integer.toString(threads), "-outfmt",
+					"6 qseqid sseqid positive mismatch gaps evalue bitscore slen length qstart qend qseq sstart send sseq"};
 			String[] linuxFullProcessCall = {BLASTLocation.getAbsolutePath() + sep + "blastn", "-task", "blastn-short", "-query",
-					query, "-db", primers, "-evalue", Double.toString(evalue), "-num_alignments", "1000000", "-num_threads", "1", "-outfmt",
-					"6 qseqid sseqid positive mismatch gaps evalue bitscore slen length qstart qend qseq sstart send sseq",
-					"-out", blastTSV.getAbsolutePath()};
+					query, "-db", primers, "-evalue", Double.toString(evalue), "-num_alignments", "1000000", "-num_threads", Integer.toString(threads), "-outfmt",
+					"6 qseqid sseqid positive mismatch gaps evalue bitscore slen length qstart qend qseq sstart send sseq"};
+			if(System.getProperty("os.name").contains("Windows")) {
+				return windowsFullProcessCall;
+			}
+			return linuxFullProcessCall;
+		}
+		
+		// Feed blastn's rows straight into the parser instead of writing the report, only the kept hits reach memory
+		public void stream(BlastReportParser parser, Sample sample) {
+			stream(parser, new Sample[] {sample}, false);
+		}
+		
+		// Same for a batch of samples, whose rows the parser hands back to each sample
+		public void stream(BlastReportParser parser, Sample[] batch) {
+			stream(parser, batch, true);
+		}
+		
+		private void stream(BlastReportParser parser, Sample[] samples, boolean batch) {
 			try {
-				Process p;
-				if(System.getProperty("os.name").contains("Windows")) {
-					p = new ProcessBuilder(windowsFullProcessCall).start();
-				}else {
-					p = new ProcessBuilder(linuxFullProcessCall).start();
-				}
+				ProcessRunner.Child child = ProcessRunner.start(new ProcessBuilder(getCommand()), getLogFile());
 				try {
-					p.waitFor();
-				}catch(InterruptedException e) {
-					e.printStackTrace();
+					if(batch) {
+						parser.parse(child.getInputStream(), samples);
+					}else {
+						parser.parse(child.getInputStream(), samples[0]);
+					}
+				}finally {
+					// The parser closed blastn's output, so it cannot be left blocked on it
+					child.waitFor().check();
+				}
+			}catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}catch(IOException e) {
+				e.printStackTrace();
+			}
+		}
+		
+		public void run() {
+			
+			File blastTSV = getOutputFile();
+			blastTSV.getParentFile().mkdirs();
+			try {
+				try(FileWriter writer = new FileWriter(blastTSV)) {
+					writer.write(BlastReportParser.HEADER + System.lineSeparator());
 				}
+				ProcessRunner.run(new ProcessBuilder(getCommand()).redirectOutput(ProcessBuilder.Redirect.appendTo(blastTSV)), getLogFile()).check();
+			}catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
 			}catch(IOException e) {
 				e.printStackTrace();
 			}
-			CommandMethods.addHeaderToTSV(blastTSV);
 		}
 	}
 }
@@ -4,6 +4,7 @@ import ca.canada.inspection.dispatchpcr.Dispatcher;
 import ca.canada.inspection.insilicopcr.Sample;
 import ca.canada.inspection.insilicopcr.BlastResult;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
@@ -12,14 +13,17 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Writer;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.file.Files;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.IntStream;
 import java.util.zip.GZIPInputStream;
 
 
@@ -34,19 +38,38 @@ public class CommandMethods {
 		return Arrays.stream(extn).anyMatch(s::endsWith);
 	}
 
+	// Longest PCR product reported unless set otherwise, in bp
+	public static final int DEFAULT_MAX_AMPLICON = 10000;
+
+	// Written into the folder of a shard once it is done, see writeShardList
+	public static final String SHARD_LIST = "shard.tsv";
+
+	// Naming of sample files, see sampleName
+	private static final Pattern GZ_EXTENSION = Pattern.compile("\\.gz");
+	private static final Pattern SEQUENCE_EXTENSION = Pattern.compile("\\.(?:fastq|fq|fna|ffn|fa|fsa)");
+	private static final Pattern[] READ_SUFFIXES = {Pattern.compile("_R1$"), Pattern.compile("_R2$"), Pattern.compile("_R1_001"),
+			Pattern.compile("_R2_001")};
+
 	private static final HashMap<Character, Character[]> degenerates = new HashMap<Character, Character[]>();
-	private static Pattern degenRegex;
+	private static final Pattern degenRegex = Pattern.compile("[RYSWKMBDHVN]");
+	static {
+		degenerates.put('R', new Character[] {'A', 'G'});
+		degenerates.put('Y', new Character[] {'C', 'T'});
+		degenerates.put('S', new Character[] {'G', 'C'});
+		degenerates.put('W', new Character[] {'A', 'T'});
+		degenerates.put('K', new Character[] {'G', 'T'});
+		degenerates.put('M', new Character[] {'A', 'C'});
+		degenerates.put('B', new Character[] {'G', 'C', 'T'});
+		degenerates.put('D', new Character[] {'A', 'G', 'T'});
+		degenerates.put('H', new Character[] {'A', 'C', 'T'});
+		degenerates.put('V', new Character[] {'A', 'C', 'G'});
+		degenerates.put('N', new Character[] {'A', 'C', 'G', 'T'});
+	}
 	
 	// Input directory must contain at least one fastq/fasta format file
 	public static boolean noFastaFile(File inputFile) {
-		for(File file : Objects.requireNonNull(inputFile.listFiles())) {
-			if(checkIfFileHasExtension(file.getName(), accepted_ext) && verifyFastaFormat(file)){
-//			if((file.getName().contains(".fasta") || file.getName().contains(".ffn") || file.getName().contains(".fna") || file.getName().contains(".fastq")) &&
-//					verifyFastaFormat(file)) {
-				return false;
-			}
-		}
-		return true;
+		return Arrays.stream(Objects.requireNonNull(inputFile.listFiles())).parallel()
+				.noneMatch(file -> checkIfFileHasExtension(file.getName(), accepted_ext) && verifyFastaFormat(file));
 	}
 	
 	public static boolean verifyPrimerFile(File primerFile) {
@@ -84,107 +107,98 @@ public class CommandMethods {
 		return true;
 	}
 	
-	// Used to ensure a file is in fasta format, at least that it starts with a ">"
+	// Used to ensure a file is in fasta format, at least that it starts with a ">" (or a "@" for fastq)
 	public static boolean verifyFastaFormat(File checkFile) {
-		String line;
-		BufferedReader reader;
+		return sniffFormat(checkFile) != null;
+	}
+	
+	// The format of a file from its first bytes, decompressed first when they are the gzip magic bytes.
+	// Returns "fasta", "fastq", or null when the file is neither or cannot be read
+	public static String sniffFormat(File file) {
+		InputStream in = null;
 		try {
-			String[] fileParts = checkFile.getName().split("\\.");
-			
-			// User can submit gzipped files, so if they do, read it appropriately
-			if(fileParts[fileParts.length - 1].equals("gz")) {
-				reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(checkFile))));
-			}else {
-				reader = new BufferedReader(new FileReader(checkFile));
+			in = new BufferedInputStream(new FileInputStream(file), 512);
+			in.mark(2);
+			int first = in.read();
+			int second = in.read();
+			in.reset();
+			if(first == 0x1F && second == 0x8B) {
+				in = new GZIPInputStream(in, 512);
 			}
-			try {
-				line = reader.readLine();
-				char[] characters = line.toCharArray();
-				if(characters[0] == '>' || characters[0] == '@') {
-					reader.close();
-					return true;
+			int b;
+			while((b = in.read()) == '\n' || b == '\r' || b == ' ') {
+				// Leading blank lines
+			}
+			return b == '>' ? "fasta" : b == '@' ? "fastq" : null;
+		}catch(IOException e) {
+			return null;
+		}finally {
+			if(in != null) {
+				try {
+					in.close();
+				}catch(IOException e) {
+					e.printStackTrace();
 				}
-				reader.close();
-			}catch(IOException e) {
-				e.printStackTrace();
 			}
-		}catch(Exception e) {
-			e.printStackTrace();
 		}
-		return false;
 	}
 	
-	// Create a list of samples
+	// The sample a file belongs to: its name up to the first sequence extension, without the read number of paired
+	// files. The patterns are compiled once, as this runs for every file of the input folder
+	public static String sampleName(String fileName) {
+		String name = fileName;
+		Matcher matcher;
+		if(name.endsWith(".gz") && (matcher = GZ_EXTENSION.matcher(name)).find()) {
+			name = name.substring(0, matcher.start());
+		}
+		if((matcher = SEQUENCE_EXTENSION.matcher(name)).find()) {
+			name = name.substring(0, matcher.start());
+		}
+		for(Pattern suffix : READ_SUFFIXES) {
+			name = suffix.matcher(name).replaceAll("");
+		}
+		return name;
+	}
+	
+	// Create a list of samples. Files are matched to their sample with a lookup on the sample name, so R1 and R2 files
+	// end up in the same sample whatever order the folder is listed in
 	public static HashMap<String, Sample> createSampleDict(File inputFile) {
 		HashMap<String, Sample> sampleDict = new HashMap<String, Sample>();
-		if(inputFile.isDirectory()) {
-			for(File entry : Objects.requireNonNull(inputFile.listFiles())) {
-				
-				// Apparently there are some instances where having extra folders in input folder cannot be avoided, so have to handle.
-				if(entry.isDirectory()) {
-					continue;
-				}
-				if(!checkIfFileHasExtension(entry.getName(), accepted_ext)){
-//				if(!entry.getName().contains(".fasta") && !entry.getName().contains(".fna") && !entry.getName().contains(".ffn") &&
-//						!entry.getName().contains(".fa") && !entry.getName().contains(".fsa") &&
-//						!entry.getName().contains(".fastq") && entry.getName().contains(".fq")) {
+		if(SampleStore.isStore(inputFile)) {
+			// Every sample of a packed store, see SampleStore
+			try {
+				sampleDict = SampleStore.open(inputFile).createSampleDict();
+			}catch(IOException e) {
+				e.printStackTrace();
+			}
+		}else if(inputFile.isDirectory()) {
+			// Names are checked first as that costs nothing, then the format of the remaining files is read from their
+			// first bytes in parallel. Folders that cannot be avoided in the input folder are skipped there too
+			File[] entries = Arrays.stream(Objects.requireNonNull(inputFile.listFiles()))
+					.filter(entry -> checkIfFileHasExtension(entry.getName(), accepted_ext)).toArray(File[]::new);
+			String[] formats = new String[entries.length];
+			IntStream.range(0, entries.length).parallel().forEach(i -> formats[i] = entries[i].isFile() ? sniffFormat(entries[i]) : null);
+			for(int i = 0; i < entries.length; i++) {
+				File entry = entries[i];
+				if(formats[i] == null) {
+					if(entry.isFile()) {
+						System.out.println("Skipping " + entry.getName() + ", not in fasta or fastq format");
+					}
 					continue;
 				}
-				String entryName = entry.getName();
-				if(entryName.endsWith(".gz")) {
-					entryName = entryName.split("\\.gz")[0];
-				}
-				entryName = entryName.split("\\.fastq")[0];
-				entryName = entryName.split("\\.fq")[0];
-				entryName = entryName.split("\\.fna")[0];
-				entryName = entryName.split("\\.ffn")[0];
-				entryName = entryName.split("\\.fa")[0];
-				entryName = entryName.split("\\.fsa")[0];
-				entryName = entryName.replaceAll("_R1$", "");
-				entryName = entryName.replaceAll("_R2$", "");
-				entryName = entryName.replaceAll("_R1_001", "");
-				entryName = entryName.replaceAll("_R2_001", "");
-				if(!sampleDict.isEmpty()) {
-					boolean unique = true;
-					for(String key : sampleDict.keySet()) {
-						Sample checkSample = sampleDict.get(key);
-//						String test = checkSample.getName();
-						if(checkSample.getName().equals(entryName)) {
-							unique = false;
-							checkSample.addFile(entry.getAbsolutePath()); // Add the additional file path to the sample's file list
-							// Attempt to ensure the file list has R1 and R2 in the correct order
-							ArrayList<String> filesList = checkSample.getFiles();
-							Collections.sort(filesList);
-							checkSample.setFiles(filesList);							
-							break;
-						}
-					}
-					if(unique) {
-						Sample sample = new Sample();
-						sample.setName(entryName);
-						if(checkIfFileHasExtension(entry.getName(), fasta_ext)) {
-//						if(entry.getName().contains(".fasta") || entry.getName().contains(".fa") || entry.getName().contains(".fsa")
-//								|| entry.getName().contains(".ffn") || entry.getName().contains(".fna")) {
-							sample.setFileType("fasta");
-						}else if(checkIfFileHasExtension(entry.getName(), fastq_ext)){
-//						}else if(entry.getName().contains(".fastq") || entry.getName().contains(".fq")) {
-							sample.setFileType("fastq");
-						}
-						sample.addFile(entry.getAbsolutePath()); // First instance of sample, add the file path to the new sample's file list
-						sampleDict.put(entryName, sample);
-					}
+				String entryName = sampleName(entry.getName());
+				Sample checkSample = sampleDict.get(entryName);
+				if(checkSample != null) {
+					checkSample.addFile(entry.getAbsolutePath()); // Add the additional file path to the sample's file list
+					// Attempt to ensure the file list has R1 and R2 in the correct order
+					ArrayList<String> filesList = checkSample.getFiles();
+					Collections.sort(filesList);
+					checkSample.setFiles(filesList);
 				}else {
 					Sample sample = new Sample();
 					sample.setName(entryName);
-					if(checkIfFileHasExtension(entry.getName(), fasta_ext)) {
-//					if(entry.getName().contains(".fasta") || entry.getName().contains(".fa") || entry.getName().contains(".fsa")
-//							|| entry.getName().contains(".ffn") || entry.getName().contains(".fna")) {
-						sample.setFileType("fasta");
-					}else if(checkIfFileHasExtension(entry.getName(), fastq_ext)){
-//					}else if(entry.getName().contains(".fastq") || entry.getName().contains(".fq")) {
-						sample.setFileType("fastq");
-					}
-					sample.addFile(entry.getAbsolutePath()); // First file checked, add the file path to the new sample's file list
+					sample.setFileType(formats[i]);
+					sample.addFile(entry.getAbsolutePath()); // First instance of sample, add the file path to the new sample's file list
 					sampleDict.put(entryName, sample);
 				}
 			}
@@ -211,42 +225,18 @@ public class CommandMethods {
 		
 		HashMap<String, String> fastaDict = new HashMap<String, String>();
 		
-		// First read in all lines
-		String line;
-		ArrayList<String> lines = new ArrayList<String>();
-		try (BufferedReader reader = new BufferedReader(new FileReader(file))){
-			try {
-				while((line = reader.readLine()) != null) {
-					if(!line.isEmpty()) {
-						lines.add(line);
-					}
-				}
-			}catch(IOException e) {
-				e.printStackTrace();
-			}
-			reader.close();
-		}catch(IOException e) {
-			e.printStackTrace();
-		}
-		// This will recreate the file in memory
-		String joinedLines = String.join("\n", lines);
-		
-		//Split into entries
-		String[] splitEntries = joinedLines.split(">");
-		for(String entry : splitEntries) {
-			
-			//Get rid of first entry from the split, it will contain nothing
-			if(!entry.isEmpty()) {
-				String[] splitEntry = entry.split("\n");
-				String id = splitEntry[0].trim();
-				String seq = splitEntry[1].trim();
-				if(seq.isEmpty()) {
+		// Stream the records, sequences spread over several lines are joined by the reader
+		try(SequenceReader reader = new SequenceReader(file)){
+			while(reader.next()) {
+				if(reader.getSequenceLength() == 0) {
 					continue;
 				}
 				
 				// Put the entry into the dictionary
-				fastaDict.put(id, seq);
+				fastaDict.put(reader.getHeaderString(), new String(reader.getSequence(), 0, reader.getSequenceLength()));
 			}
+		}catch(IOException e) {
+			e.printStackTrace();
 		}
 		
 		// Return the filled dictionary
@@ -255,35 +245,17 @@ public class CommandMethods {
 	
 	// Process the primers in the primer dictionary
 	public static void processPrimers(HashMap<String, String> primerDict, File outDir, String sep) {
-		
-		// Need to generate the degen Regex
-		// Unfortunately cannot convert directly from Object[] to char[], or even from Character[] to char[]
-		degenerates.put('R', new Character[] {'A', 'G'});
-		degenerates.put('Y', new Character[] {'C', 'T'});
-		degenerates.put('S', new Character[] {'G', 'C'});
-		degenerates.put('W', new Character[] {'A', 'T'});
-		degenerates.put('K', new Character[] {'G', 'T'});
-		degenerates.put('M', new Character[] {'A', 'C'});
-		degenerates.put('B', new Character[] {'G', 'C', 'T'});
-		degenerates.put('D', new Character[] {'A', 'G', 'T'});
-		degenerates.put('H', new Character[] {'A', 'C', 'T'});
-		degenerates.put('V', new Character[] {'A', 'C', 'G'});
-		degenerates.put('N', new Character[] {'A', 'C', 'G', 'T'});
-//		Character[] degenCharArray = degenerates.keySet().toArray(new Character[degenerates.keySet().size()]);
-		Character[] degenCharArray = degenerates.keySet().toArray(new Character[0]);
-		char[] charDegen = new char[degenCharArray.length];
-		for(int i = 0; i < charDegen.length; i++) {
-			charDegen[i] = (char)degenCharArray[i];
-		}
-		String degenRegexString = String.join("", new String(charDegen));
-		degenRegex = Pattern.compile("[" + degenRegexString + "]");
+		processPrimers(primerDict, outDir, sep, true);
+	}
+	
+	// With expand, the degenerate primers are replaced by every sequence they stand for, and written to primer_tmp.fasta
+	// for BLAST. The native search matches IUPAC codes directly, so without it the primers are only checked, and
+	// BBDuk's expanded file is left to the first sample that is baited, see CommandMain.expandedPrimers
+	public static void processPrimers(HashMap<String, String> primerDict, File outDir, String sep, boolean expand) {
 		
 		// This regex will find any incompatible characters in the primer sequences
 		Pattern regex = Pattern.compile("[^ATCGRYSWKMBDHVN]");
-		
-		// Have to make a deep copy of the primerDict keys, otherwise we get a reference that changes when we change the primerDict
-        ArrayList<String> keySet = new ArrayList<String>(primerDict.keySet());
-		for(String key : keySet) {
+		for(String key : primerDict.keySet()) {
             String seq = primerDict.get(key);
 			
 			// Check for illegal bases
@@ -292,26 +264,38 @@ public class CommandMethods {
 				System.out.println("Primer sequence contains incompatible characters:\n" + key + "\n" + seq);
 				return;
 			}
-			
-			// If the sequence contains degenerated bases, create sequences for all possible iterations
-			Matcher degenMatcher = degenRegex.matcher(seq);
-			if(degenMatcher.find()) {
+		}
+		
+		// Must now write a primer file containing no degenerate bases for the BLAST
+		if(expand) {
+			HashMap<String, String> expandedDict = expandPrimers(primerDict);
+			writePrimerFasta(expandedDict, new File(outDir.getAbsolutePath() + sep + "primer_tmp.fasta"));
+			primerDict.clear();
+			primerDict.putAll(expandedDict);
+		}
+	}
+	
+	// A copy of the primer dictionary where every primer with degenerate bases is replaced by all its possible sequences,
+	// named after it with _0, _1 and so on
+	public static HashMap<String, String> expandPrimers(HashMap<String, String> primerDict) {
+		HashMap<String, String> expandedDict = new HashMap<String, String>(primerDict);
+		for(String key : primerDict.keySet()) {
+			String seq = primerDict.get(key);
+			if(degenRegex.matcher(seq).find()) {
 				ArrayList<String> expandedSeq = expandDegenerated(seq, 0, new ArrayList<String>());
-				
-				// Remove the original entry which contained degenerate bases, replace with all the possible sequences
-				primerDict.remove(key);
+				expandedDict.remove(key);
 				for(int i = 0; i < expandedSeq.size(); i++) {
-					String newID = key + "_" + Integer.toString(i);
-					String newSeq = expandedSeq.get(i);
-					primerDict.put(newID, newSeq);
+					expandedDict.put(key + "_" + Integer.toString(i), expandedSeq.get(i));
 				}
 			}
 		}
-		
-		// Must now write a primer file containing no degenerate bases for the BLAST
-		File cleanedPrimers = new File(outDir.getAbsolutePath() + sep + "primer_tmp.fasta");
+		return expandedDict;
+	}
+	
+	// Write a primer dictionary back out as a fasta file
+	public static void writePrimerFasta(HashMap<String, String> primerDict, File fasta) {
 		try{
-			FileWriter writer = new FileWriter(cleanedPrimers);
+			FileWriter writer = new FileWriter(fasta);
 			for(String key : primerDict.keySet()) {
 				writer.write(">" + key + "\n");
 				writer.write(primerDict.get(key));
@@ -320,49 +304,40 @@ public class CommandMethods {
 			writer.close();
 		}catch(IOException e) {
 			e.printStackTrace();
-		}		
+		}
 	}
 	
-	// Expand the sequences that contain degenerate bases into every possibility
-	public static ArrayList<String> expandDegenerated(String seq, int index, ArrayList<String> primerContainer){		
-		
-		char[] seqChars = seq.toCharArray();
-		// Due to recursive nature, need to keep going from where we left off
-		for(int i = index; i < seq.length(); i++) {
-			char c = seqChars[i];
-			
-			// Check if the current character is contained in the list of degenerate bases. If so, replace this instance with each possible base.
-			if(degenerates.containsKey(c)) {
-				for(char s : degenerates.get(c)) {
-					String newSeq = seq.replaceFirst(Character.toString(c), Character.toString(s));
-					Matcher matcher = degenRegex.matcher(newSeq);
-					
-					// Check the resulting primers.
-					// If more degenerate bases are found, do the same as above, but starting from the base following the one just replaced.
-					if(matcher.find()) {
-						int j = i + 1;
-						ArrayList<String> expanded = expandDegenerated(newSeq, j, primerContainer);
-						
-					// If no more degenerate bases are found, we have reached the end, and can add the sequence to the list to be returned.
-					}else {
-						primerContainer.add(newSeq);
-					}
-				}
-			}
-		}
+	// Expand the sequences that contain degenerate bases into every possibility, from index on. The first degenerate base
+	// varies slowest, as the primer ids of the expansions have always been numbered
+	public static ArrayList<String> expandDegenerated(String seq, int index, ArrayList<String> primerContainer){
+		expandDegenerated(seq.toCharArray(), index, primerContainer);
 		return primerContainer;
 	}
 	
+	// Substitutes the bases in place rather than copying the sequence for every one
+	private static void expandDegenerated(char[] seq, int index, ArrayList<String> primerContainer) {
+		while(index < seq.length && !degenerates.containsKey(seq[index])) {
+			index++;
+		}
+		if(index == seq.length) {
+			primerContainer.add(new String(seq));
+			return;
+		}
+		char c = seq[index];
+		for(char s : degenerates.get(c)) {
+			seq[index] = s;
+			expandDegenerated(seq, index + 1, primerContainer);
+		}
+		seq[index] = c;
+	}
+	
 	// Make BLAST binaries executable
 	public static void makeExecutable(File BLASTLocation) {
 		String[] processCall = {"chmod", "+x", "makeblastdb", "blastn"};
 		try {
-			Process p = new ProcessBuilder(processCall).directory(BLASTLocation).start();
-			try {
-				p.waitFor();
-			}catch(InterruptedException e) {
-				e.printStackTrace();
-			}
+			ProcessRunner.run(new ProcessBuilder(processCall).directory(BLASTLocation), null);
+		}catch(InterruptedException e) {
+			e.printStackTrace();
 		}catch(IOException e) {
 			e.printStackTrace();
 		}
@@ -375,51 +350,17 @@ public class CommandMethods {
 				"-dbtype", "nucl", "-hash_index", "-in", in};
 		String[] linuxFullProcessCall = {BLASTLocation.getAbsolutePath() + CommandMain.sep + "makeblastdb", 
 				"-dbtype", "nucl", "-hash_index", "-in", in};
+		File log = new File(in.replaceFirst("\\.[^.\\\\/]*$", "") + "_makeblastdb.log");
 		try{
-			Process p;
+			ProcessBuilder builder;
 			if(System.getProperty("os.name").contains("Windows")) {
-				p = new ProcessBuilder(windowsFullProcessCall).start();
+				builder = new ProcessBuilder(windowsFullProcessCall);
 			}else {
-				p = new ProcessBuilder(linuxFullProcessCall).start();
+				builder = new ProcessBuilder(linuxFullProcessCall);
 			}
-			try {
-				p.waitFor();
-			}catch(InterruptedException e) {
-				e.printStackTrace();
-			}
-		}catch(IOException e) {
+			ProcessRunner.run(builder, log).check();
+		}catch(InterruptedException e) {
 			e.printStackTrace();
-		}
-	}
-	
-	// Add the correct result headers to the Blast tsv output file
-	public static void addHeaderToTSV(File tsvFile) {
-		String tab = "\t";
-		String[] headerFileIDs = new String[] {"qseqid", "sseqid", "positive", "mismatch", "gaps", "evalue",
-				"bitscore", "slen", "length", "qstart", "qend", "qseq", "sstart", "send", "sseq"};
-		String header = String.join(tab, headerFileIDs);
-		
-		ArrayList<String> lines = new ArrayList<String>();
-		String line;
-		try{
-			BufferedReader reader = new BufferedReader(new FileReader(tsvFile));
-			while((line = reader.readLine()) != null) {
-				lines.add(line);
-			}
-			reader.close();
-		}catch(IOException e) {
-			e.printStackTrace();
-		}
-		
-		lines.addFirst(header);
-		try{
-			File newFile = new File(tsvFile.getAbsolutePath());
-			tsvFile.delete();
-			FileWriter writer = new FileWriter(newFile);
-			for(String item : lines) {
-				writer.write(item + System.lineSeparator());
-			}
-			writer.close();
 		}catch(IOException e) {
 			e.printStackTrace();
 		}
@@ -439,87 +380,78 @@ public class CommandMethods {
 			}
 		}
 		
-		for(File sampleReport : reportList) {
-			String sampleName = sampleReport.getName().split("\\.tsv")[0];			
-			String line;
-			try {
-				BufferedReader reader = new BufferedReader(new FileReader(sampleReport));
-				while((line = reader.readLine()) != null) {
-					if(line.equals("") || line.startsWith("qseqid")) {
-						continue;
-					}
-					String[] fields = line.split("\t");
-					String qseqid = fields[0];
-					String sseqid = fields[1];
-					int length = Integer.parseInt(fields[8]);
-					int weightedLength = primerDict.get(sseqid).length();
-					int actualMismatches = Integer.parseInt(fields[3]);
-					
-					if(length <= weightedLength && length >= (weightedLength - 2) && actualMismatches <= mismatches) {
-						
-						int qstart = Integer.parseInt(fields[9]);
-						int qend = Integer.parseInt(fields[10]);
-						String sseq = fields[14];						
-						if(sampleDict.get(sampleName).getBlastResults().containsKey(sseqid)) {
-							sampleDict.get(sampleName).addBlastResult(sseqid, new BlastResult(sampleName, qseqid, sseqid, actualMismatches, qstart, qend, length, sseq));
-						}else {
-							sampleDict.get(sampleName).addNewBlastResult(sseqid, new BlastResult(sampleName, qseqid, sseqid, actualMismatches, qstart, qend, length, sseq));
-						}
-					}
-				}
-				reader.close();
-			}catch(IOException e) {
-				e.printStackTrace();
+		// One report per worker, hits go straight into their sample
+		reportList.parallelStream().forEach(sampleReport -> {
+			String sampleName = sampleReport.getName().split("\\.tsv")[0];
+			parseBlastReport(sampleReport, sampleDict.get(sampleName), primerDict, mismatches);
+		});
+	}
+	
+	// Adds the hits of a single blast report that pass the length and mismatch filters to the sample
+	public static void parseBlastReport(File sampleReport, Sample sample, HashMap<String, String> primerDict, int mismatches) {
+		try {
+			new BlastReportParser(primerDict, mismatches).parse(sampleReport, sample);
+		}catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	// Search backends add hits from several threads, so the per-primer result lists are created under the sample's lock
+	public static void addResult(Sample sample, BlastResult result) {
+		synchronized(sample) {
+			if(sample.getBlastResults().containsKey(result.getSubjectID())) {
+				sample.addBlastResult(result.getSubjectID(), result);
+			}else {
+				sample.addNewBlastResult(result.getSubjectID(), result);
 			}
 		}
 	}
 	
-
 	public static void addContigDict(HashMap<String, Sample> sampleDict) {
-		String line;
 		for(String key : sampleDict.keySet()) {
-			if(sampleDict.get(key).getFileType().equals("fastq")) {
-				try(BufferedReader reader = new BufferedReader(new FileReader(sampleDict.get(key).getAssemblyFile()))){
-					while((line = reader.readLine()) != null) {
-						if(line.startsWith(">")) {
-							String fullLine = line.split(">")[1];
-							String[] items = fullLine.split(" ");
-							String contigID = items[0];
-							if(items.length > 1) {
-								String[] contigDescItems = Arrays.copyOfRange(items, 1, items.length);
-								String description = String.join(" ", contigDescItems);
-								sampleDict.get(key).addContig(contigID, description);
-							}
-							else {
-								sampleDict.get(key).addContig(contigID, "");
-							}
-						}
-					}
-				}catch(IOException e) {
-					e.printStackTrace();
-				};
-			}else {
-				for(String file : sampleDict.get(key).getFiles()) {
-					try(BufferedReader reader = new BufferedReader(new FileReader(file))){
-						while((line = reader.readLine()) != null) {
-							if(line.startsWith(">")) {
-								String fullLine = line.split(">")[1];
-								String[] items = fullLine.split(" ");
-								String contigID = items[0];
-								if(items.length > 1) {
-									String[] contigDescItems = Arrays.copyOfRange(items, 1, items.length);
-									String description = String.join(" ", contigDescItems);
-									sampleDict.get(key).addContig(contigID, description);
-								}else {
-									sampleDict.get(key).addContig(contigID, "");
-								}
-							}
-						}
-					}catch(IOException e) {
-						e.printStackTrace();
-					}
-				}
+			addContigs(sampleDict.get(key));
+		}
+	}
+	
+	// Fills the contig dictionary of a single sample from its assembly (fastq) or its input files (fasta)
+	public static void addContigs(Sample sample) {
+		ArrayList<String> files = new ArrayList<String>();
+		if(sample.getFileType().equals("fastq")) {
+			files.add(sample.getAssemblyFile());
+		}else {
+			files.addAll(sample.getFiles());
+		}
+		for(String file : files) {
+			addContigs(sample, file);
+		}
+	}
+	
+	// Collect the contig ids, descriptions and lengths of a single fasta file
+	public static void addContigs(Sample sample, String file) {
+		if(SampleStore.isQuery(file)) {
+			// Straight from the store index
+			try {
+				SampleStore.addContigs(sample, file);
+			}catch(IOException e) {
+				e.printStackTrace();
 			}
+			return;
+		}
+		try(SequenceReader reader = new SequenceReader(new File(file))){
+			while(reader.next()) {
+				addContig(sample, reader);
+			}
+		}catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	// Add the record the reader is on as a contig of the sample
+	public static void addContig(Sample sample, SequenceReader reader) {
+		String contigID = reader.getId();
+		synchronized(sample) {
+			sample.addContig(contigID, reader.getDescription());
+			sample.addContigLength(contigID, reader.getSequenceLength());
 		}
 	}
 	
@@ -528,154 +460,189 @@ public class CommandMethods {
 			HashMap<String, String> primerDict) {
 		
 		// Check to see if this is a qPCR or a regular PCR for formatting purposes
-		boolean qPCR = false;
+		boolean qPCR = isQPCR(primerDict);
+		
+		// Generate the file to be filled in
+		File consolidatedReport = new File(consolidatedDir.getAbsolutePath() + sep + "report.tsv");
+		try{
+			FileWriter writer = new FileWriter(consolidatedReport);
+			writer.write(consolidatedHeader(qPCR));
+			writer.write(System.lineSeparator());
+			
+			for(String key : sampleDict.keySet()) {
+				writeSampleReport(writer, key, sampleDict.get(key), primerDict, qPCR, DEFAULT_MAX_AMPLICON);
+			}
+			writer.close();
+		}catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	// A primer set with any probe (P) primer is reported in the qPCR format
+	public static boolean isQPCR(HashMap<String, String> primerDict) {
 		for(String key : primerDict.keySet()) {
 			if(key.split("-")[key.split("-").length - 1].startsWith("P")) {
-				qPCR = true;
-				break;
+				return true;
 			}
 		}
-		
-		// The header for the consolidated report
-		String header = "";
+		return false;
+	}
+	
+	// The header for the consolidated report
+	public static String consolidatedHeader(boolean qPCR) {
 		if(qPCR) {
-			header = String.join("\t", new String[] {"Sample", "Gene", "GenomeLocation", "AmpliconSize", "Contig", "Contig Description", 
+			return String.join("\t", new String[] {"Sample", "Gene", "GenomeLocation", "AmpliconSize", "Contig", "Contig Description", 
 					"ForwardPrimers", "ReversePrimers", "ForwardMismatches", "ReverseMismatches", 
 					"ForwardEndMismatch", "ReverseEndMismatch", "Probe", "ProbeLocation", "ProbeSize", "ProbeMismatches"});
-		}else {
-			header = String.join("\t", new String[] {"Sample", "Gene", "GenomeLocation", "AmpliconSize", "Contig", "Contig Description",
-					"ForwardPrimers", "ReversePrimers", "ForwardMismatches", "ReverseMismatches", "ForwardEndMismatch", "ReverseEndMismatch"});
 		}
+		return String.join("\t", new String[] {"Sample", "Gene", "GenomeLocation", "AmpliconSize", "Contig", "Contig Description",
+				"ForwardPrimers", "ReversePrimers", "ForwardMismatches", "ReverseMismatches", "ForwardEndMismatch", "ReverseEndMismatch"});
+	}
+	
+	// Writes the consolidated report rows (valid PCR products) of a single sample.
+	// The hits of every assay are grouped per contig and sorted by start, so a forward hit is only paired with the reverse
+	// hits starting within maxAmplicon of it, and probes are looked up by position inside each amplicon
+	public static void writeSampleReport(Writer writer, String key, Sample sample, HashMap<String, String> primerDict,
+			boolean qPCR, int maxAmplicon) throws IOException {
 		
-		// Generate the file to be filled in
-		File consolidatedReport = new File(consolidatedDir.getAbsolutePath() + sep + "report.tsv");
-		try{
-			FileWriter writer = new FileWriter(consolidatedReport);
-			writer.write(header);
-			writer.write(System.lineSeparator());
-			
-			for(String key : sampleDict.keySet()) {
-				
-				// Set up all necessary values
-				Sample sample = sampleDict.get(key);
-                HashMap<String, ArrayList<BlastResult>> blastResults = sampleDict.get(key).getBlastResults();
-				if(!blastResults.isEmpty()) {
-//					String[] primerHits = blastResults.keySet().toArray(new String[blastResults.keySet().size()]); // Similar to what we did with the degenRegex issue
-					String[] primerHits = blastResults.keySet().toArray(new String[0]); // Similar to what we did with the degenRegex issue
-					HashMap<String, HashMap<String, ArrayList<String>>> primers = new HashMap<String, HashMap<String, ArrayList<String>>>();
+		// Set up all necessary values
+		HashMap<String, ArrayList<BlastResult>> blastResults = sample.getBlastResults();
+		if(blastResults.isEmpty()) {
+			return;
+		}
+		
+		/* What this is actually doing is placing the hits into a hashmap based on the primer base name, alongside
+		 *their direction. Therefore, hits of NAME-F and NAME-R are listed under NAME as F and R hits. Similarly, hits of
+		 *a degenerate primer expanded to NAME-F_1, NAME-F_2, NAME-R_1, and NAME-R_2 are all listed under NAME
+		 */
+		HashMap<String, HashMap<String, ArrayList<BlastResult>>> assays = new HashMap<String, HashMap<String, ArrayList<BlastResult>>>();
+		for(String primer : blastResults.keySet()) {
+			String[] splitPrimer = primer.split("-"); 
+			String direction = splitPrimer[splitPrimer.length - 1].substring(0, 1);
+			String primerName = String.join("-", Arrays.copyOfRange(splitPrimer, 0, splitPrimer.length - 1));
+			if(!direction.equals("F") && !direction.equals("R") && !direction.equals("P")) {
+				continue;
+			}
+			if(!assays.containsKey(primerName)) {
+				HashMap<String, ArrayList<BlastResult>> list = new HashMap<String, ArrayList<BlastResult>>();
+				list.put("F", new ArrayList<BlastResult>());
+				list.put("R", new ArrayList<BlastResult>());
+				list.put("P", new ArrayList<BlastResult>());
+				assays.put(primerName, list);
+			}
+			assays.get(primerName).get(direction).addAll(blastResults.get(primer));
+		}
+		
+		// Check if primer pairs are present
+		for(String primerKey : assays.keySet()) {
+			HashMap<String, ArrayList<BlastResult>> assayHits = assays.get(primerKey);
+			if(assayHits.get("F").isEmpty() || assayHits.get("R").isEmpty()) { // Need both F and R primers
+				continue;
+			}
+			HashMap<String, ArrayList<BlastResult>> fByContig = hitsByContig(assayHits.get("F"));
+			HashMap<String, ArrayList<BlastResult>> rByContig = hitsByContig(assayHits.get("R"));
+			HashMap<String, ArrayList<BlastResult>> pByContig = hitsByContig(assayHits.get("P"));
+			for(String contig : fByContig.keySet()) {
+				ArrayList<BlastResult> rHits = rByContig.get(contig);
+				if(rHits == null) {
+					continue;
+				}
+				String contigDescription = sample.getContigDict().getOrDefault(contig, "");
+				ArrayList<BlastResult> pHits = pByContig.getOrDefault(contig, new ArrayList<BlastResult>());
+				for(BlastResult fResult : fByContig.get(contig)) {
 					
-					/* What this is actually doing is placing the primers into a hashmap based on their base name, alongside
-					 *A list of directions. Therefore, a primer set of NAME-F and NAME-R would be listed under NAME with
-					 *Directions F and R. Similarly, a degenerate primer of NAME-F_1, NAME-F_2, NAME-R_1, and NAME-R_2 would be
-					 *listed under NAME with directions F_1, F_2, R_1, and R_2
-					 */
-					for(String primer : primerHits) {
-						String[] splitPrimer = primer.split("-"); 
-						String direction = splitPrimer[splitPrimer.length - 1];
-						String primerName = String.join("-", Arrays.copyOfRange(splitPrimer, 0, splitPrimer.length - 1));
-						if(!primers.containsKey(primerName)) {
-							HashMap<String, ArrayList<String>> list = new HashMap<String, ArrayList<String>>();
-							ArrayList<String> fList = new ArrayList<String>();
-							ArrayList<String> rList = new ArrayList<String>();
-							ArrayList<String> pList = new ArrayList<String>();
-							if(direction.startsWith("F")) {
-								fList.add(direction);
-							}else if(direction.startsWith("R")) {
-								rList.add(direction);
-							}else if(direction.startsWith("P")) {
-								pList.add(direction);
-							}
-							list.put("F", fList);
-							list.put("R", rList);
-							list.put("P", pList);
-							primers.put(primerName, list);
-						}else {
-							if(direction.startsWith("F")) {
-								primers.get(primerName).get("F").add(direction);
-							}else if(direction.startsWith("R")) {
-								primers.get(primerName).get("R").add(direction);
-							}else if(direction.startsWith("P")) {
-								primers.get(primerName).get("P").add(direction);
-							}
+					// Only reverse hits starting within one amplicon length of the forward hit can form a product
+					for(int r = firstStartingFrom(rHits, fResult.getStart() - maxAmplicon); r < rHits.size(); r++) {
+						BlastResult rResult = rHits.get(r);
+						if(rResult.getStart() > fResult.getEnd() + maxAmplicon) {
+							break;
 						}
-					}					
-					
-					// Check if primer pairs are present
-					for(String primerKey : primers.keySet()) {
-						HashMap<String, ArrayList<String>> primersList = primers.get(primerKey);
-						if(!primersList.get("F").isEmpty() && !primersList.get("R").isEmpty()) { // Have both F and R primers
-                            for(String fPrimer : primersList.get("F")) {
-								for(String rPrimer : primersList.get("R")) {
-									String fwdPrimer = primerKey + "-" + fPrimer;
-									String revPrimer = primerKey + "-" + rPrimer;
-									
-									for(BlastResult fResult : sample.getBlastResults().get(fwdPrimer)) {
-										for(BlastResult rResult : sample.getBlastResults().get(revPrimer)) {
-											
-											// If this pair of primers are not on the same contig, skip and keep going
-											if(!fResult.getQueryID().equals(rResult.getQueryID())) {
-												continue;
-											}
-											int startF = fResult.getStart();
-											int endF = fResult.getEnd();
-											int startR = rResult.getStart();
-											int endR = rResult.getEnd();
-											Integer[] positions = {startF, endF, startR, endR};
-											int start = Collections.min(Arrays.asList(positions));
-											int end = Collections.max(Arrays.asList(positions));
-											String location = Integer.toString(start) + "-" + Integer.toString(end);
-											String size = Integer.toString(end - start + 1);
-											String contig = fResult.getQueryID();
-											String contigDescription = getContigDescription(sampleDict, key, contig);
-											String fwdMismatch = Integer.toString(fResult.getMismatch());
-											String revMismatch = Integer.toString(rResult.getMismatch());
-											String fwdEndMismatch = Integer.toString(fResult.getLength() - primerDict.get(fResult.getSubjectID()).length());
-											String revEndMismatch = Integer.toString(rResult.getLength() - primerDict.get(rResult.getSubjectID()).length());
-											
-											// If a qPCR probe exists
-											if(qPCR) {
-												if(!primersList.get("P").isEmpty()) {
-													for(String pPrimer : primersList.get("P")) {
-														String probePrimer = primerKey + "-" + pPrimer;
-														for(BlastResult pResult : sample.getBlastResults().get(probePrimer)) {
-															if(!pResult.getQueryID().equals(fResult.getQueryID())) {
-																continue;
-															}
-															int startP = pResult.getStart();
-															int endP = pResult.getEnd();
-															String locationP = Integer.toString(startP) + "-" + Integer.toString(endP);
-															String sizeP = Integer.toString(endP - startP + 1);
-															String pMismatch = Integer.toString(pResult.getMismatch());
-															
-															// Probe only valid if it is contained within the surrounding amplicon
-															if(startP >= start && endP <= end) {
-																writer.write(String.join("\t", new String[] {key, primerKey, location, size, contig,
-																		contigDescription, fwdPrimer, revPrimer, fwdMismatch, revMismatch,
-																		fwdEndMismatch, revEndMismatch, probePrimer, locationP, sizeP, pMismatch})); 
-																writer.write(System.lineSeparator());
-															}
-														}
-													}
-												}
-											}else {
-												writer.write(String.join("\t", new String[] {key, primerKey, location, size, contig, contigDescription,
-														fwdPrimer, revPrimer, fwdMismatch, revMismatch, fwdEndMismatch, revEndMismatch}));
-												writer.write(System.lineSeparator());
-											}
-										}
-									}
+						int start = Math.min(Math.min(fResult.getStart(), fResult.getEnd()), Math.min(rResult.getStart(), rResult.getEnd()));
+						int end = Math.max(Math.max(fResult.getStart(), fResult.getEnd()), Math.max(rResult.getStart(), rResult.getEnd()));
+						if(end - start + 1 > maxAmplicon || !facing(fResult, rResult)) {
+							continue;
+						}
+						String location = Integer.toString(start) + "-" + Integer.toString(end);
+						String size = Integer.toString(end - start + 1);
+						String fwdPrimer = fResult.getSubjectID();
+						String revPrimer = rResult.getSubjectID();
+						String fwdMismatch = Integer.toString(fResult.getMismatch());
+						String revMismatch = Integer.toString(rResult.getMismatch());
+						String fwdEndMismatch = Integer.toString(fResult.getLength() - primerDict.get(fResult.getSubjectID()).length());
+						String revEndMismatch = Integer.toString(rResult.getLength() - primerDict.get(rResult.getSubjectID()).length());
+						
+						// If a qPCR probe exists
+						if(qPCR) {
+							
+							// Probe only valid if it is contained within the surrounding amplicon
+							for(int p = firstStartingFrom(pHits, start); p < pHits.size() && pHits.get(p).getStart() <= end; p++) {
+								BlastResult pResult = pHits.get(p);
+								int startP = pResult.getStart();
+								int endP = pResult.getEnd();
+								if(endP > end) {
+									continue;
 								}
+								String locationP = Integer.toString(startP) + "-" + Integer.toString(endP);
+								String sizeP = Integer.toString(endP - startP + 1);
+								String pMismatch = Integer.toString(pResult.getMismatch());
+								writer.write(String.join("\t", new String[] {key, primerKey, location, size, contig,
+										contigDescription, fwdPrimer, revPrimer, fwdMismatch, revMismatch,
+										fwdEndMismatch, revEndMismatch, pResult.getSubjectID(), locationP, sizeP, pMismatch})); 
+								writer.write(System.lineSeparator());
 							}
+						}else {
+							writer.write(String.join("\t", new String[] {key, primerKey, location, size, contig, contigDescription,
+									fwdPrimer, revPrimer, fwdMismatch, revMismatch, fwdEndMismatch, revEndMismatch}));
+							writer.write(System.lineSeparator());
 						}
 					}
 				}
 			}
-			writer.close();
-		}catch(IOException e) {
-			e.printStackTrace();
 		}
 	}
 	
+	// Hits grouped by contig, each group sorted by start position
+	public static HashMap<String, ArrayList<BlastResult>> hitsByContig(ArrayList<BlastResult> hits) {
+		HashMap<String, ArrayList<BlastResult>> byContig = new HashMap<String, ArrayList<BlastResult>>();
+		for(BlastResult hit : hits) {
+			byContig.computeIfAbsent(hit.getQueryID(), x -> new ArrayList<BlastResult>()).add(hit);
+		}
+		for(ArrayList<BlastResult> contigHits : byContig.values()) {
+			contigHits.sort(Comparator.comparingInt(BlastResult::getStart));
+		}
+		return byContig;
+	}
+	
+	// Index of the first hit of a start-sorted list that starts at or after position
+	public static int firstStartingFrom(ArrayList<BlastResult> hits, int position) {
+		int low = 0;
+		int high = hits.size();
+		while(low < high) {
+			int mid = (low + high) >>> 1;
+			if(hits.get(mid).getStart() < position) {
+				low = mid + 1;
+			}else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+	
+	// A product needs the forward primer on one strand pointing at the reverse primer on the other. Hits without a known
+	// strand are accepted in either orientation
+	public static boolean facing(BlastResult fResult, BlastResult rResult) {
+		if(fResult.getStrand() == 0 || rResult.getStrand() == 0) {
+			return true;
+		}
+		if(fResult.getStrand() == 1 && rResult.getStrand() == -1) {
+			return fResult.getStart() <= rResult.getEnd();
+		}
+		if(fResult.getStrand() == -1 && rResult.getStrand() == 1) {
+			return rResult.getStart() <= fResult.getEnd();
+		}
+		return false;
+	}
+	
 	public static String getContigDescription(HashMap<String, Sample> sampleDict, String sampleName, String contig) {
 		Sample sample = sampleDict.get(sampleName);
 		HashMap<String, String> contigDict = sample.getContigDict();
@@ -685,7 +652,8 @@ public class CommandMethods {
 		return "";
 	}
 	
-	public static void makeQALog(File qLog, String version, File outputDir, File inputFile, File primerFile, File BBToolsLocation, File BLASTLocation) {
+	public static void makeQALog(File qLog, String version, File outputDir, File inputFile, File primerFile, File BBToolsLocation, File BLASTLocation,
+			List<String> failedSamples) {
 		try(FileWriter writer = new FileWriter(qLog)) {
 			String sep = System.lineSeparator();
 			writer.write("In Silico PCR version: " + version);
@@ -696,9 +664,9 @@ public class CommandMethods {
 			writer.write(sep);
 			writer.write("Run by user: " + System.getProperty("user.name"));
 			writer.write(sep);
-			writer.write("BBTools Location: " + BBToolsLocation.getAbsolutePath());
+			writer.write("BBTools Location: " + (BBToolsLocation != null ? BBToolsLocation.getAbsolutePath() : "not found"));
 			writer.write(sep);
-			writer.write("BLAST Location: " + BLASTLocation.getAbsolutePath());
+			writer.write("BLAST Location: " + (BLASTLocation != null ? BLASTLocation.getAbsolutePath() : "not found"));
 			writer.write(sep);
 			writer.write("Output Folder: " + outputDir.getAbsolutePath());
 			writer.write(sep);
@@ -714,12 +682,137 @@ public class CommandMethods {
 				writer.write(sep);
 				writer.write(inputFile.getAbsolutePath());
 			}
+			// Samples that are in none of the reports
+			if(!failedSamples.isEmpty()) {
+				writer.write(sep);
+				writer.write("Failed Sample(s) :");
+				for(String name : failedSamples) {
+					writer.write(sep);
+					writer.write(name);
+				}
+			}
 			writer.close();
 		}catch(IOException e) {
 			e.printStackTrace();
 		}
 	}
 	
+	// The samples of shard index (1 to count) of a batch. Samples are dealt out largest first, each to the shard with the
+	// fewest input bytes so far, so every process given the same input makes the same split and shards take about as long
+	public static HashMap<String, Sample> shardSamples(HashMap<String, Sample> sampleDict, int index, int count) {
+		ArrayList<String> keys = new ArrayList<String>(sampleDict.keySet());
+		HashMap<String, Long> sizes = new HashMap<String, Long>();
+		for(String key : keys) {
+			long size = 0;
+			for(String file : sampleDict.get(key).getFiles()) {
+				size += SampleStore.bytes(file);
+			}
+			sizes.put(key, Math.max(size, 1));
+		}
+		keys.sort((a, b) -> sizes.get(a).equals(sizes.get(b)) ? a.compareTo(b) : Long.compare(sizes.get(b), sizes.get(a)));
+		long[] loads = new long[count];
+		HashMap<String, Sample> shard = new HashMap<String, Sample>();
+		for(String key : keys) {
+			int least = 0;
+			for(int i = 1; i < count; i++) {
+				if(loads[i] < loads[least]) {
+					least = i;
+				}
+			}
+			loads[least] += sizes.get(key);
+			if(least == index - 1) {
+				shard.put(key, sampleDict.get(key));
+			}
+		}
+		return shard;
+	}
+	
+	// The output folder of one shard, inside the output folder the shards are merged into
+	public static File shardDir(File outDir, int index, int count) {
+		return new File(outDir.getAbsolutePath() + File.separator + "shards" + File.separator + "shard_" + index + "_of_" + count);
+	}
+	
+	// Lists the samples of a finished shard. Written last, so the merge knows the shard is done
+	public static void writeShardList(File shardList, int index, int count, int total, Set<String> keys) {
+		try(FileWriter writer = new FileWriter(shardList)) {
+			writer.write("shard\t" + index + "\t" + count + "\t" + total + System.lineSeparator());
+			for(String key : new TreeSet<String>(keys)) {
+				writer.write(key + System.lineSeparator());
+			}
+		}catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	// Merges the finished shards in the shards folder of outDir into its consolidated report and QA log, as a single run
+	// over all their samples would have written them. Returns false, saying why, when a shard is missing or unfinished
+	// or the shards do not add up to one batch
+	public static boolean mergeShards(File outDir) {
+		File[] dirs = new File(outDir.getAbsolutePath() + File.separator + "shards").listFiles(file -> file.isDirectory() && file.getName().matches("shard_\\d+_of_\\d+"));
+		if(dirs == null || dirs.length == 0) {
+			System.out.println("No shards in " + outDir.getAbsolutePath());
+			return false;
+		}
+		Arrays.sort(dirs, Comparator.comparingInt((File dir) -> Integer.parseInt(dir.getName().split("_")[1])));
+		int count = Integer.parseInt(dirs[0].getName().split("_")[3]);
+		int total = -1;
+		HashSet<String> keys = new HashSet<String>();
+		ArrayList<File> reports = new ArrayList<File>();
+		for(File dir : dirs) {
+			if(Integer.parseInt(dir.getName().split("_")[3]) != count) {
+				System.out.println("The shards in " + outDir.getAbsolutePath() + " come from splits into different numbers of shards");
+				return false;
+			}
+			File shardList = new File(dir.getAbsolutePath() + File.separator + SHARD_LIST);
+			if(!shardList.isFile()) {
+				System.out.println("Shard " + dir.getName() + " has not finished");
+				return false;
+			}
+			try(BufferedReader reader = new BufferedReader(new FileReader(shardList))) {
+				String[] header = reader.readLine().split("\t");
+				if(total >= 0 && Integer.parseInt(header[3]) != total) {
+					System.out.println("Shard " + dir.getName() + " was split from a batch of " + header[3] + " samples, not " + total);
+					return false;
+				}
+				total = Integer.parseInt(header[3]);
+				String key;
+				while((key = reader.readLine()) != null) {
+					if(!key.isEmpty() && !keys.add(key)) {
+						System.out.println("Sample " + key + " is in more than one shard");
+						return false;
+					}
+				}
+			}catch(IOException | RuntimeException e) {
+				System.out.println("Cannot read " + shardList.getAbsolutePath() + ": " + e);
+				return false;
+			}
+			reports.add(new File(dir.getAbsolutePath() + File.separator + "consolidated_report" + File.separator + "report.tsv"));
+		}
+		if(dirs.length != count || keys.size() != total) {
+			System.out.println("Found " + dirs.length + " of " + count + " shards with " + keys.size() + " of " + total + " samples");
+			return false;
+		}
+		try {
+			ReportWriter.merge(reports, new File(outDir.getAbsolutePath() + File.separator + "consolidated_report" + File.separator + "report.tsv"));
+			// The QA log of a shard with the folder the shards were merged into
+			File qaLog = new File(dirs[0].getAbsolutePath() + File.separator + "QAlog.txt");
+			if(qaLog.isFile()) {
+				List<String> lines = new ArrayList<String>();
+				for(String line : Files.readAllLines(qaLog.toPath())) {
+					lines.add(line.startsWith("Output Folder: ") ? "Output Folder: " + outDir.getAbsolutePath() : line);
+				}
+				try(FileWriter writer = new FileWriter(new File(outDir.getAbsolutePath() + File.separator + "QAlog.txt"))) {
+					writer.write(String.join(System.lineSeparator(), lines));
+				}
+			}
+		}catch(IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+		System.out.println("Merged " + count + " shards of " + total + " samples into " + outDir.getAbsolutePath());
+		return true;
+	}
+	
 	public static boolean checkVersion() {
 		try{
 			URL url = new URL("https://github.com/chmaraj/In_Silico_PCR/releases");
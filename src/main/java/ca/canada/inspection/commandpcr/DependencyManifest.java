@@ -0,0 +1,206 @@
+package ca.canada.inspection.commandpcr;
+
+import ca.canada.inspection.dispatchpcr.Dispatcher;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetAddress;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Properties;
+
+// Where BBTools, BLAST+ and the bundled JDK are in the install folder, kept in a manifest file in that folder so only the
+// first start walks the tree for them. A manifest is used as long as it was written by this version on this OS for this
+// folder, and every tool folder still holds its tool and has the modification time it had then: adding, removing or
+// renaming an entry of a folder changes its time. The install folder's own time is not checked, writing the manifest
+// changes it. Otherwise the tree is walked again, once for all three tools, and the manifest rewritten. An install
+// folder that cannot be written to is walked on every start, as before.
+// The manifest also records the memory and processors of the host the tools were resolved on. Those are probed on every
+// start, from the JVM's view of the machine, which is the container's limits when there are any.
+public class DependencyManifest {
+
+	public static final String FILE_NAME = "insilicopcr_dependencies.properties";
+
+	private static final boolean WINDOWS = System.getProperty("os.name").contains("Windows");
+
+	private final File root;
+	private File BBToolsLocation;
+	private File BLASTLocation;
+	private File JavaLocation;
+
+	private DependencyManifest(File root) {
+		this.root = root;
+	}
+
+	// The tool locations under root, from its manifest when still valid
+	public static DependencyManifest load(File root) {
+		File file = new File(root, FILE_NAME);
+		DependencyManifest manifest = read(root, file);
+		if(manifest == null) {
+			manifest = new DependencyManifest(root);
+			manifest.walk();
+			if(manifest.isComplete()) {
+				manifest.write(file);
+			}
+		}
+		return manifest;
+	}
+
+	public File getBBToolsLocation() {
+		return BBToolsLocation;
+	}
+
+	public File getBLASTLocation() {
+		return BLASTLocation;
+	}
+
+	public File getJavaLocation() {
+		return JavaLocation;
+	}
+
+	// Physical memory in bytes, or the memory limit of the container this runs in
+	public static long probeMemory() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if(os instanceof com.sun.management.OperatingSystemMXBean) {
+			return ((com.sun.management.OperatingSystemMXBean)os).getTotalMemorySize();
+		}
+		// The default heap is a quarter of the memory
+		return Runtime.getRuntime().maxMemory() * 4;
+	}
+
+	// Processors available to this JVM, within the CPU quota of a container
+	public static int probeProcessors() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	private boolean isComplete() {
+		return BBToolsLocation != null && BLASTLocation != null && JavaLocation != null;
+	}
+
+	// One walk over the tree for the three tools. Where a pattern matches more than once the last match is kept
+	private void walk() {
+		PathMatcher bbmap = FileSystems.getDefault().getPathMatcher("glob:**bbmap");
+		PathMatcher makeblastdb = FileSystems.getDefault().getPathMatcher(WINDOWS ? "glob:**makeblastdb.exe" : "glob:**makeblastdb");
+		PathMatcher jdk = FileSystems.getDefault().getPathMatcher(WINDOWS ? "glob:**windows/jdk-21.0.3" : "glob:**linux/jdk-21.0.3");
+		try {
+			Files.walkFileTree(root.toPath(), new SimpleFileVisitor<Path>() {
+				public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+					visit(dir);
+					return FileVisitResult.CONTINUE;
+				}
+
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+					visit(file);
+					return FileVisitResult.CONTINUE;
+				}
+
+				public FileVisitResult visitFileFailed(Path file, IOException e) {
+					return FileVisitResult.CONTINUE;
+				}
+
+				private void visit(Path path) {
+					if(bbmap.matches(path) && new File(path.toFile(), "tadpole.sh").exists()) {
+						BBToolsLocation = path.toFile();
+					}
+					if(makeblastdb.matches(path)) {
+						BLASTLocation = path.toFile().getParentFile();
+					}
+					if(jdk.matches(path) && path.toFile().isDirectory()) {
+						// The folder in the JDK holding the java launcher
+						File[] items = path.toFile().listFiles(File::isDirectory);
+						for(File item : items == null ? new File[0] : items) {
+							if(new File(item, javaName()).exists()) {
+								JavaLocation = item.getAbsoluteFile();
+							}
+						}
+					}
+				}
+			});
+		}catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static String javaName() {
+		return WINDOWS ? "java.exe" : "java";
+	}
+
+	// The manifest of root, or null when there is none or it no longer describes the tree
+	private static DependencyManifest read(File root, File file) {
+		if(!file.isFile()) {
+			return null;
+		}
+		Properties properties = new Properties();
+		try(Reader reader = new FileReader(file)) {
+			properties.load(reader);
+		}catch(IOException e) {
+			return null;
+		}
+		if(!Dispatcher.version.equals(properties.getProperty("version")) || !System.getProperty("os.name").equals(properties.getProperty("os"))
+				|| !root.getAbsolutePath().equals(properties.getProperty("root"))) {
+			return null;
+		}
+		DependencyManifest manifest = new DependencyManifest(root);
+		manifest.BBToolsLocation = location(properties, "bbtools", "tadpole.sh");
+		manifest.BLASTLocation = location(properties, "blast", WINDOWS ? "makeblastdb.exe" : "makeblastdb");
+		manifest.JavaLocation = location(properties, "java", javaName());
+		return manifest.isComplete() ? manifest : null;
+	}
+
+	// A tool folder of the manifest, if it still holds the tool and has not changed since
+	private static File location(Properties properties, String key, String tool) {
+		String path = properties.getProperty(key);
+		if(path == null) {
+			return null;
+		}
+		File dir = new File(path);
+		return new File(dir, tool).exists() && unchanged(properties, key, dir) ? dir : null;
+	}
+
+	private static boolean unchanged(Properties properties, String key, File dir) {
+		return Long.toString(dir.lastModified()).equals(properties.getProperty(key + ".mtime"));
+	}
+
+	// Written to a temporary file first, so a concurrent start never reads half a manifest
+	private void write(File file) {
+		Properties properties = new Properties();
+		properties.setProperty("version", Dispatcher.version);
+		properties.setProperty("os", System.getProperty("os.name"));
+		properties.setProperty("root", root.getAbsolutePath());
+		properties.setProperty("bbtools", BBToolsLocation.getAbsolutePath());
+		properties.setProperty("bbtools.mtime", Long.toString(BBToolsLocation.lastModified()));
+		properties.setProperty("blast", BLASTLocation.getAbsolutePath());
+		properties.setProperty("blast.mtime", Long.toString(BLASTLocation.lastModified()));
+		properties.setProperty("java", JavaLocation.getAbsolutePath());
+		properties.setProperty("java.mtime", Long.toString(JavaLocation.lastModified()));
+		properties.setProperty("host.memory_bytes", Long.toString(probeMemory()));
+		properties.setProperty("host.processors", Integer.toString(probeProcessors()));
+		try {
+			properties.setProperty("host.name", InetAddress.getLocalHost().getHostName());
+		}catch(IOException e) {
+			// Unnamed host
+		}
+		File tmp = new File(file.getAbsolutePath() + ".tmp");
+		try {
+			try(Writer writer = new FileWriter(tmp)) {
+				properties.store(writer, "Resolved by insilicoPCR " + Dispatcher.version + ", rewritten when a tool folder changes");
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}catch(IOException e) {
+			// A read-only install, the tree is walked again next time
+			tmp.delete();
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package ca.canada.inspection.commandpcr;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+// Runs BBTools programs (jgi.BBDuk, assemble.Tadpole) inside this JVM instead of starting a new java process per call.
+// BBTools keeps a lot of state in static fields, so every call gets a class loader of its own over bbmap/current and
+// starts from freshly initialised statics, as a new process would, at the cost of loading the classes again per call
+// rather than a whole JVM. BBTools also end their JVM on some errors, KillSwitch halts it when memory runs out or a
+// reference fails to load and BBDuk exits when it skips every read. Embedded, that ends this program with every
+// sample still running in it, which is why a server never runs them embedded, see Dispatcher.
+public class EmbeddedBBTools {
+
+	private final URL[] classPath;
+
+	public EmbeddedBBTools(File BBToolsLocation) {
+		URL current = null;
+		try {
+			current = new File(BBToolsLocation, "current").toURI().toURL();
+		}catch(MalformedURLException e) {
+			e.printStackTrace();
+		}
+		this.classPath = new URL[] {current};
+	}
+
+	// Runs the main method of a BBTools class with the given arguments. Everything the program would print to stderr,
+	// including its final stats, is written to the log file instead
+	public boolean run(String className, String[] args, File log) {
+		URLClassLoader loader = new URLClassLoader(classPath, ClassLoader.getPlatformClassLoader());
+		loader.setDefaultAssertionStatus(true); // Same as the -ea the subprocesses are started with
+		String[] fullArgs = new String[args.length + 1];
+		System.arraycopy(args, 0, fullArgs, 0, args.length);
+		fullArgs[args.length] = "outstream=" + log.getAbsolutePath();
+
+		Thread thread = Thread.currentThread();
+		ClassLoader previous = thread.getContextClassLoader();
+		thread.setContextClassLoader(loader);
+		boolean success = false;
+		try {
+			Method main = loader.loadClass(className).getMethod("main", String[].class);
+			main.invoke(null, (Object)fullArgs);
+			success = true;
+		}catch(InvocationTargetException e) {
+			System.out.println(className + " failed, see " + log.getAbsolutePath());
+			e.getCause().printStackTrace();
+		}catch(ReflectiveOperationException e) {
+			System.out.println("Unable to load " + className + " from " + classPath[0]);
+			e.printStackTrace();
+		}finally {
+			thread.setContextClassLoader(previous);
+			try {
+				loader.close();
+			}catch(IOException e) {
+				e.printStackTrace();
+			}
+		}
+		return success;
+	}
+}
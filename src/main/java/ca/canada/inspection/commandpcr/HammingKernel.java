@@ -0,0 +1,92 @@
+package ca.canada.inspection.commandpcr;
+
+// Mismatches of a primer pattern at every window of a target, the bounded Hamming distance the native search accepts
+// sites by. Targets and patterns are base bitmasks (A=1, C=2, G=4, T=8), patterns with their IUPAC codes and targets
+// with 0 for anything but A, C, G and T, and a position mismatches when the two share no bit. Besides the total, the
+// mismatches within a stretch of the pattern are counted, the 3' end of a primer, which decides whether it extends.
+// This kernel counts one window at a time. VectorHammingKernel counts as many windows side by side as a vector register
+// has bytes. It is only built with the vector profile (mvn -Pvector), as compiling against the incubator module warns,
+// and get() only returns it when it was built and the JVM was started with --add-modules jdk.incubator.vector.
+public class HammingKernel {
+
+	private static final byte[] BASE_MASKS = new byte[128];
+	static {
+		BASE_MASKS['A'] = 1;
+		BASE_MASKS['C'] = 2;
+		BASE_MASKS['G'] = 4;
+		BASE_MASKS['T'] = 8;
+	}
+
+	private static final HammingKernel SCALAR = new HammingKernel();
+	private static final HammingKernel PREFERRED = load();
+
+	// The vector kernel when it was built and the incubator module is there, loaded by name so this class never links
+	// against it otherwise. The module of this program does not require the incubator module, so it reads it from here
+	private static HammingKernel load() {
+		Module vector = ModuleLayer.boot().findModule("jdk.incubator.vector").orElse(null);
+		if(vector != null) {
+			HammingKernel.class.getModule().addReads(vector);
+			try {
+				return (HammingKernel)Class.forName("ca.canada.inspection.commandpcr.VectorHammingKernel").getDeclaredConstructor().newInstance();
+			}catch(ClassNotFoundException e) {
+				// Built without the vector profile
+			}catch(ReflectiveOperationException | LinkageError e) {
+				e.printStackTrace();
+			}
+		}
+		return SCALAR;
+	}
+
+	public static HammingKernel get() {
+		return PREFERRED;
+	}
+
+	public static HammingKernel scalar() {
+		return SCALAR;
+	}
+
+	public String name() {
+		return "scalar";
+	}
+
+	// Target bitmasks of the first length bases of an (upper case) sequence
+	public static byte[] baseMasks(byte[] seq, int length) {
+		byte[] bases = new byte[length];
+		for(int i = 0; i < length; i++) {
+			bases[i] = BASE_MASKS[seq[i] & 0x7F];
+		}
+		return bases;
+	}
+
+	// Mismatches of the pattern at every start from from up to to (exclusive) into counts[start - from], and of pattern
+	// positions threePrimeFrom up to threePrimeTo into threePrime[start - from] unless threePrime is null. A window must
+	// fit in the target, to - 1 + pattern.length <= target.length. Counting stops past the limit, so a count above limit
+	// reads limit + 1 and its 3' count is only meaningful for windows within the limit
+	public void count(byte[] target, byte[] pattern, int from, int to, int limit, byte[] counts, int threePrimeFrom, int threePrimeTo,
+			byte[] threePrime) {
+		count(target, pattern, from, to, from, limit, counts, threePrimeFrom, threePrimeTo, threePrime);
+	}
+
+	// The same for starts from from, written at start - origin
+	static void count(byte[] target, byte[] pattern, int from, int to, int origin, int limit, byte[] counts, int threePrimeFrom,
+			int threePrimeTo, byte[] threePrime) {
+		for(int start = from; start < to; start++) {
+			int found = 0;
+			int end = 0;
+			for(int p = 0; p < pattern.length; p++) {
+				if((pattern[p] & target[start + p]) == 0) {
+					if(p >= threePrimeFrom && p < threePrimeTo) {
+						end++;
+					}
+					if(++found > limit) {
+						break;
+					}
+				}
+			}
+			counts[start - origin] = (byte)Math.min(found, limit + 1);
+			if(threePrime != null) {
+				threePrime[start - origin] = (byte)Math.min(end, limit + 1);
+			}
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package ca.canada.inspection.commandpcr;
+
+import java.util.Arrays;
+
+// Open addressing hash set of longs, used for kmer tables that are probed once per read position and would otherwise
+// box a Long for every lookup. The value -1 marks an empty slot, which no 2-bit encoded kmer of up to 31 bases can be.
+public class LongHashSet {
+
+	private static final long EMPTY = -1L;
+
+	private long[] slots;
+	private int size = 0;
+
+	public LongHashSet(int expected) {
+		int capacity = 16;
+		while(capacity < expected * 2) {
+			capacity <<= 1;
+		}
+		slots = new long[capacity];
+		Arrays.fill(slots, EMPTY);
+	}
+
+	public boolean add(long key) {
+		if(size * 2 >= slots.length) {
+			grow();
+		}
+		int mask = slots.length - 1;
+		int i = slot(key, mask);
+		while(slots[i] != EMPTY) {
+			if(slots[i] == key) {
+				return false;
+			}
+			i = (i + 1) & mask;
+		}
+		slots[i] = key;
+		size++;
+		return true;
+	}
+
+	public boolean contains(long key) {
+		int mask = slots.length - 1;
+		int i = slot(key, mask);
+		while(slots[i] != EMPTY) {
+			if(slots[i] == key) {
+				return true;
+			}
+			i = (i + 1) & mask;
+		}
+		return false;
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	private void grow() {
+		long[] old = slots;
+		slots = new long[old.length * 2];
+		Arrays.fill(slots, EMPTY);
+		size = 0;
+		for(long key : old) {
+			if(key != EMPTY) {
+				add(key);
+			}
+		}
+	}
+
+	private static int slot(long key, int mask) {
+		return (int)((key * 0x9E3779B97F4A7C15L) >>> 33) & mask;
+	}
+}
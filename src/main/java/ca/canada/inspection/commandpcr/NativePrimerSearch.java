@@ -0,0 +1,315 @@
+package ca.canada.inspection.commandpcr;
+
+import ca.canada.inspection.insilicopcr.BlastResult;
+import ca.canada.inspection.insilicopcr.Sample;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+// In-process primer search. Every primer (and its reverse complement) is split into mismatches + 1 seed segments of
+// length k, so by the pigeonhole principle any site within the mismatch limit matches at least one seed exactly.
+// Contigs are scanned once with a rolling 2-bit k-mer, and every seed hit is verified with a mismatch-bounded scan.
+// Degenerate primers are matched as they are: every position of a pattern is a bitmask of the bases its IUPAC code
+// allows (A=1, C=2, G=4, T=8), and a target base matches when its bit is set. Only the seeds of a degenerate primer
+// are expanded into the concrete kmers they stand for; primers whose seeds would expand too far are checked at every
+// position instead, by the Hamming kernel, which counts many windows at once when the Vector API is available.
+public class NativePrimerSearch implements PrimerSearch {
+
+	private static final int MAX_K = 31;
+	private static final int FILTER_BITS = 22;
+	private static final int MAX_SEED_VARIANTS = 4096;
+	private static final int SCAN_BLOCK = 4096; // Windows counted per kernel call for unseeded patterns
+	private static final HammingKernel KERNEL = HammingKernel.get();
+	private static final byte[] MASKS = new byte[128]; // Primer IUPAC codes
+	private static final byte[] BASE_MASKS = new byte[128]; // Target bases, only A, C, G and T can match
+	static {
+		String[] codes = {"A1", "C2", "G4", "T8", "R5", "Y10", "S6", "W9", "K12", "M3", "B14", "D13", "H11", "V7", "N15"};
+		for(String code : codes) {
+			MASKS[code.charAt(0)] = Byte.parseByte(code.substring(1));
+		}
+		BASE_MASKS['A'] = 1;
+		BASE_MASKS['C'] = 2;
+		BASE_MASKS['G'] = 4;
+		BASE_MASKS['T'] = 8;
+	}
+
+	private final int mismatches;
+	private int k;
+	private String[] names;
+	private byte[][] patterns; // Index 2i is primer i, index 2i + 1 is its reverse complement
+	private byte[][] masks; // Base bitmask of every position of the patterns
+	private HashMap<Long, ArrayList<int[]>> seedIndex;
+	private long[] seedFilter;
+	private int[] unseeded; // Patterns checked at every position
+
+	public NativePrimerSearch(int mismatches) {
+		this.mismatches = mismatches;
+	}
+
+	public void prepare(HashMap<String, String> primerDict, File primerFasta) {
+		// A primer no longer than the mismatches matches every position and has no room for a seed, so it is left out
+		ArrayList<String> searched = new ArrayList<String>();
+		for(String name : primerDict.keySet()) {
+			if(primerDict.get(name).length() > mismatches) {
+				searched.add(name);
+			}else {
+				System.out.println("Primer " + name + " is too short to be searched with " + mismatches + " mismatches, leaving it out");
+			}
+		}
+		names = searched.toArray(new String[0]);
+		patterns = new byte[names.length * 2][];
+		masks = new byte[names.length * 2][];
+
+		// The seed length has to fit mismatches + 1 times into the shortest primer
+		k = MAX_K;
+		for(String name : names) {
+			k = Math.min(k, primerDict.get(name).length() / (mismatches + 1));
+		}
+
+		seedIndex = new HashMap<Long, ArrayList<int[]>>();
+		seedFilter = new long[1 << (FILTER_BITS - 6)];
+		ArrayList<Integer> unseededList = new ArrayList<Integer>();
+		for(int i = 0; i < names.length; i++) {
+			byte[] seq = primerDict.get(names[i]).toUpperCase().getBytes();
+			patterns[2 * i] = seq;
+			patterns[2 * i + 1] = reverseComplement(seq);
+			for(int strand = 0; strand < 2; strand++) {
+				int index = 2 * i + strand;
+				masks[index] = toMasks(patterns[index]);
+				ArrayList<long[]> seedKeys = new ArrayList<long[]>();
+				for(int seed = 0; seed <= mismatches; seed++) {
+					long[] keys = expandSeed(masks[index], seed * k);
+					if(keys == null) {
+						break;
+					}
+					seedKeys.add(keys);
+				}
+				if(seedKeys.size() <= mismatches) {
+					unseededList.add(index);
+					continue;
+				}
+				for(int seed = 0; seed <= mismatches; seed++) {
+					for(long key : seedKeys.get(seed)) {
+						seedFilter[filterSlot(key) >>> 6] |= 1L << filterSlot(key);
+						seedIndex.computeIfAbsent(key, x -> new ArrayList<int[]>()).add(new int[] {index, seed});
+					}
+				}
+			}
+		}
+		unseeded = new int[unseededList.size()];
+		for(int i = 0; i < unseeded.length; i++) {
+			unseeded[i] = unseededList.get(i);
+		}
+	}
+
+	// Contigs are collected into the sample in the same pass
+	public void search(Sample sample, String query) {
+		try(SequenceReader reader = SequenceReader.open(query)) {
+			while(reader.next()) {
+				String contig = reader.getId();
+				CommandMethods.addContig(sample, reader);
+				scan(reader.getSequence(), reader.getSequenceLength(), sample, contig);
+			}
+		}catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	// Adds every site of an (upper case) sequence already in memory to the sample, as hits on the given contig id
+	public boolean search(byte[] seq, int length, Sample sample, String contig) {
+		return scan(seq, length, sample, contig);
+	}
+
+	// Returns true as soon as the (upper case) sequence contains one site within the mismatch limit, used for baiting reads
+	public boolean hasSite(byte[] seq, int length) {
+		return scan(seq, length, null, null);
+	}
+
+	// Slide a rolling k-mer along the sequence and verify every candidate site the seed index points to.
+	// Without a sample the scan stops at the first verified site, otherwise every site is added to the sample
+	private boolean scan(byte[] seq, int length, Sample sample, String contig) {
+		long mask = (1L << (2 * k)) - 1;
+		long key = 0;
+		int valid = 0;
+		boolean found = false;
+		for(int i = 0; i < length; i++) {
+			int code = baseCode(seq[i]);
+			if(code < 0) {
+				valid = 0;
+				key = 0;
+				continue;
+			}
+			key = ((key << 2) | code) & mask;
+			if(++valid < k) {
+				continue;
+			}
+			if((seedFilter[filterSlot(key) >>> 6] & (1L << filterSlot(key))) == 0) {
+				continue;
+			}
+			ArrayList<int[]> seeds = seedIndex.get(key);
+			if(seeds == null) {
+				continue;
+			}
+			int seedStart = i - k + 1;
+			for(int[] seed : seeds) {
+				byte[] patternMask = masks[seed[0]];
+				int start = seedStart - seed[1] * k;
+				if(start < 0 || start + patternMask.length > length) {
+					continue;
+				}
+
+				// A site that also matches an earlier seed exactly was already reported when that seed was passed
+				if(earlierSeedMatches(seq, start, patternMask, seed[1])) {
+					continue;
+				}
+				if(verify(seq, start, seed[0], sample, contig)) {
+					if(sample == null) {
+						return true;
+					}
+					found = true;
+				}
+			}
+		}
+		if(unseeded.length == 0) {
+			return found;
+		}
+
+		// Unseeded patterns are counted at every window by the Hamming kernel, a block of windows at a time
+		byte[] bases = HammingKernel.baseMasks(seq, length);
+		byte[] counts = new byte[SCAN_BLOCK];
+		for(int index : unseeded) {
+			int starts = length - masks[index].length + 1;
+			for(int from = 0; from < starts; from += SCAN_BLOCK) {
+				int to = Math.min(starts, from + SCAN_BLOCK);
+				KERNEL.count(bases, masks[index], from, to, mismatches, counts, 0, 0, null);
+				for(int start = from; start < to; start++) {
+					if(counts[start - from] <= mismatches) {
+						if(sample == null) {
+							return true;
+						}
+						report(start, index, counts[start - from], sample, contig);
+						found = true;
+					}
+				}
+			}
+		}
+		return found;
+	}
+
+	// Checks the site of a pattern at start, and adds it to the sample if it is within the mismatch limit
+	private boolean verify(byte[] seq, int start, int index, Sample sample, String contig) {
+		int siteMismatches = countMismatches(seq, start, masks[index]);
+		if(siteMismatches > mismatches) {
+			return false;
+		}
+		if(sample != null) {
+			report(start, index, siteMismatches, sample, contig);
+		}
+		return true;
+	}
+
+	private void report(int start, int index, int siteMismatches, Sample sample, String contig) {
+		byte[] pattern = patterns[index];
+		CommandMethods.addResult(sample, new BlastResult(sample.getName(), contig, names[index / 2], siteMismatches, start + 1,
+				start + pattern.length, pattern.length, new String(pattern), index % 2 == 0 ? 1 : -1));
+	}
+
+	private boolean earlierSeedMatches(byte[] seq, int start, byte[] mask, int seed) {
+		for(int j = 0; j < seed; j++) {
+			boolean exact = true;
+			for(int p = j * k; p < (j + 1) * k; p++) {
+				if((mask[p] & BASE_MASKS[seq[start + p] & 0x7F]) == 0) {
+					exact = false;
+					break;
+				}
+			}
+			if(exact) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Number of positions where the target base is not one the pattern allows, stops counting once the limit is exceeded.
+	// Only A, C, G and T in the target can match, so an N in a contig counts as a mismatch like in blastn
+	private int countMismatches(byte[] seq, int start, byte[] mask) {
+		int found = 0;
+		for(int p = 0; p < mask.length; p++) {
+			if((mask[p] & BASE_MASKS[seq[start + p] & 0x7F]) == 0 && ++found > mismatches) {
+				break;
+			}
+		}
+		return found;
+	}
+
+	private static int filterSlot(long key) {
+		return (int)((key * 0x9E3779B97F4A7C15L) >>> (64 - FILTER_BITS));
+	}
+
+	// Every concrete 2-bit kmer a seed of a pattern stands for, or null when there are more than MAX_SEED_VARIANTS
+	private long[] expandSeed(byte[] mask, int offset) {
+		long[] keys = {0};
+		for(int i = offset; i < offset + k; i++) {
+			int bases = Integer.bitCount(mask[i]);
+			if(keys.length * bases > MAX_SEED_VARIANTS) {
+				return null;
+			}
+			long[] next = new long[keys.length * bases];
+			int n = 0;
+			for(long key : keys) {
+				for(int code = 0; code < 4; code++) {
+					if((mask[i] & (1 << code)) != 0) {
+						next[n++] = (key << 2) | code;
+					}
+				}
+			}
+			keys = next;
+		}
+		return keys;
+	}
+
+	private static byte[] toMasks(byte[] pattern) {
+		byte[] mask = new byte[pattern.length];
+		for(int i = 0; i < pattern.length; i++) {
+			mask[i] = MASKS[pattern[i] & 0x7F];
+		}
+		return mask;
+	}
+
+	public static int baseCode(byte b) {
+		switch(b) {
+			case 'A': return 0;
+			case 'C': return 1;
+			case 'G': return 2;
+			case 'T': return 3;
+			default: return -1;
+		}
+	}
+
+	// Reverse complement, IUPAC codes included
+	public static byte[] reverseComplement(byte[] seq) {
+		byte[] rc = new byte[seq.length];
+		for(int i = 0; i < seq.length; i++) {
+			byte b = seq[seq.length - 1 - i];
+			switch(b) {
+				case 'A': rc[i] = 'T'; break;
+				case 'C': rc[i] = 'G'; break;
+				case 'G': rc[i] = 'C'; break;
+				case 'T': rc[i] = 'A'; break;
+				case 'R': rc[i] = 'Y'; break;
+				case 'Y': rc[i] = 'R'; break;
+				case 'K': rc[i] = 'M'; break;
+				case 'M': rc[i] = 'K'; break;
+				case 'B': rc[i] = 'V'; break;
+				case 'V': rc[i] = 'B'; break;
+				case 'D': rc[i] = 'H'; break;
+				case 'H': rc[i] = 'D'; break;
+				case 'S': case 'W': rc[i] = b; break;
+				default: rc[i] = 'N';
+			}
+		}
+		return rc;
+	}
+}
@@ -0,0 +1,309 @@
+package ca.canada.inspection.commandpcr;
+
+import ca.canada.inspection.insilicopcr.Sample;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+// Daemon mode: keeps one prepared primer search per panel in memory, with its result cache, and runs the samples of
+// every job posted to a local HTTP API on one worker pool and one resource budget shared by all panels. A job is a
+// list of sample files or folders, one path per line, searched against a panel, and its result is the consolidated
+// report of its samples. Listens on the loopback address only, the paths are read by this process. Every job works in
+// a folder of its own, which goes away with the job once its result has been answered, or an hour after it finished
+// when nobody asked for it.
+//   GET  /panels             ids of the panels and their number of primers
+//   POST /jobs?panel=<id>    queues a job and answers 202 with its id
+//   GET  /jobs/<id>          202 while the job runs, then its report rows, or 500 with the reason it failed, once
+//   DELETE /jobs/<id>        cancels a job, killing the child processes of its samples
+//   POST /run?panel=<id>     runs a job and answers with its report rows once it is done
+public class PcrServer {
+
+	private static final String TSV = "text/tab-separated-values; charset=utf-8";
+	private static final String TEXT = "text/plain; charset=utf-8";
+	private static final long JOB_TTL = TimeUnit.HOURS.toMillis(1);
+
+	private final TreeMap<String, CommandMain> panels = new TreeMap<String, CommandMain>();
+	private final ConcurrentHashMap<String, Job> jobs = new ConcurrentHashMap<String, Job>();
+	private final AtomicInteger jobCount = new AtomicInteger();
+	private final File jobsDir;
+	private final int threads;
+	private ExecutorService pool;
+	private HttpServer server;
+
+	// Job reports are written under workDir/jobs
+	public PcrServer(File workDir, int threads) {
+		this.jobsDir = new File(workDir.getAbsolutePath() + CommandMain.sep + "jobs");
+		this.threads = threads;
+	}
+
+	// A panel whose engine is configured with the primer file and an output folder of its own
+	public void addPanel(String id, CommandMain engine) {
+		panels.put(id, engine);
+	}
+
+	// The id of the panel in a primer file, its name without extension
+	public static String panelID(File primerFile) {
+		String name = primerFile.getName();
+		return name.contains(".") ? name.substring(0, name.lastIndexOf('.')) : name;
+	}
+
+	// Prepares every panel once, then starts answering requests
+	public void start(int port) throws IOException {
+		ResourceBudget budget = null;
+		for(String id : panels.keySet()) {
+			CommandMain engine = panels.get(id);
+			System.out.println("Preparing panel " + id);
+			engine.detectMemory();
+			engine.findDependencies();
+			engine.makeDirectories();
+			engine.preparePrimers();
+			ResourceBudget own = engine.createBudget();
+			if(budget == null) {
+				budget = own;
+			}
+			engine.setBudget(budget);
+		}
+		jobsDir.mkdirs();
+		pool = Executors.newFixedThreadPool(threads);
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		// Requests wait on their jobs, so each gets a virtual thread of its own
+		server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+		server.createContext("/panels", this::handlePanels);
+		server.createContext("/jobs", this::handleJobs);
+		server.createContext("/run", this::handleRun);
+		server.start();
+		System.out.println("Serving " + panels.size() + " panel(s) on http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort());
+	}
+
+	// Stops taking requests and lets the samples already queued finish
+	public void stop() {
+		server.stop(1);
+		pool.shutdown();
+		try {
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+		}catch(InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void handlePanels(HttpExchange exchange) throws IOException {
+		StringBuilder body = new StringBuilder();
+		for(String id : panels.keySet()) {
+			body.append(id).append('\t').append(panels.get(id).getPrimerDict().size()).append('\n');
+		}
+		respond(exchange, 200, TEXT, body.toString());
+	}
+
+	private void handleJobs(HttpExchange exchange) throws IOException {
+		evictExpired();
+		if(exchange.getRequestMethod().equals("POST")) {
+			Job job = submit(exchange);
+			if(job != null) {
+				exchange.getResponseHeaders().set("Location", "/jobs/" + job.id);
+				respond(exchange, 202, TEXT, job.id + "\n");
+			}
+			return;
+		}
+		String path = exchange.getRequestURI().getPath();
+		Job job = jobs.get(path.substring(path.lastIndexOf('/') + 1));
+		if(job == null) {
+			respond(exchange, 404, TEXT, "No such job\n");
+		}else if(exchange.getRequestMethod().equals("DELETE")) {
+			job.thread.interrupt();
+			respond(exchange, 202, TEXT, "cancelling\n");
+		}else {
+			respondWith(exchange, job);
+		}
+	}
+
+	private void handleRun(HttpExchange exchange) throws IOException {
+		evictExpired();
+		Job job = submit(exchange);
+		if(job != null) {
+			try {
+				job.thread.join();
+			}catch(InterruptedException e) {
+				e.printStackTrace();
+			}
+			respondWith(exchange, job);
+		}
+	}
+
+	// Reads the job of a request and starts it, or answers with what is wrong with it and returns null
+	private Job submit(HttpExchange exchange) throws IOException {
+		if(!exchange.getRequestMethod().equals("POST")) {
+			respond(exchange, 405, TEXT, "POST the sample paths, one per line\n");
+			return null;
+		}
+		CommandMain engine = panels.get(queryParameter(exchange.getRequestURI(), "panel"));
+		if(engine == null) {
+			respond(exchange, 404, TEXT, "Unknown panel, see /panels\n");
+			return null;
+		}
+		String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+		HashMap<String, Sample> samples = new HashMap<String, Sample>();
+		for(String line : body.split("\\R")) {
+			String path = line.trim();
+			if(path.isEmpty()) {
+				continue;
+			}
+			File file = new File(path);
+			if(!file.exists()) {
+				respond(exchange, 400, TEXT, "No such file: " + path + "\n");
+				return null;
+			}
+			addSamples(samples, CommandMethods.createSampleDict(file));
+		}
+		if(samples.isEmpty()) {
+			respond(exchange, 400, TEXT, "No fasta or fastq samples in the request\n");
+			return null;
+		}
+		Job job = new Job(Integer.toString(jobCount.incrementAndGet()), engine, samples);
+		job.thread = Thread.ofVirtual().start(job);
+		jobs.put(job.id, job);
+		return job;
+	}
+
+	// The files of a sample can come from separate lines, as the two reads files of a pair do
+	private static void addSamples(HashMap<String, Sample> samples, HashMap<String, Sample> found) {
+		for(String key : found.keySet()) {
+			Sample sample = samples.get(key);
+			if(sample == null) {
+				samples.put(key, found.get(key));
+				continue;
+			}
+			ArrayList<String> files = sample.getFiles();
+			for(String file : found.get(key).getFiles()) {
+				if(!files.contains(file)) {
+					files.add(file);
+				}
+			}
+			Collections.sort(files);
+			sample.setFiles(files);
+		}
+	}
+
+	// A finished job is answered once, then forgotten
+	private void respondWith(HttpExchange exchange, Job job) throws IOException {
+		if(job.error == null && job.report == null) {
+			respond(exchange, 202, TEXT, "running\n");
+			return;
+		}
+		try {
+			if(job.error != null) {
+				respond(exchange, 500, TEXT, job.error + "\n");
+			}else {
+				respond(exchange, 200, TSV, Files.readString(job.report.toPath()));
+			}
+		}finally {
+			evict(job);
+		}
+	}
+
+	// Jobs whose result nobody fetched
+	private void evictExpired() {
+		long now = System.currentTimeMillis();
+		for(Job job : jobs.values()) {
+			if(job.finished != 0 && now - job.finished > JOB_TTL) {
+				System.out.println("Job " + job.id + " expired");
+				evict(job);
+			}
+		}
+	}
+
+	private void evict(Job job) {
+		if(jobs.remove(job.id, job)) {
+			deleteTree(job.dir);
+		}
+	}
+
+	private static void deleteTree(File dir) {
+		if(!dir.exists()) {
+			return;
+		}
+		try(Stream<Path> paths = Files.walk(dir.toPath())) {
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static String queryParameter(URI uri, String name) {
+		String query = uri.getQuery();
+		if(query != null) {
+			for(String parameter : query.split("&")) {
+				if(parameter.startsWith(name + "=")) {
+					return parameter.substring(name.length() + 1);
+				}
+			}
+		}
+		return "";
+	}
+
+	private static void respond(HttpExchange exchange, int status, String type, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", type);
+		exchange.sendResponseHeaders(status, bytes.length);
+		try(OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	// The samples of one request against one panel, coordinated on a virtual thread while the pool does the work
+	private class Job implements Runnable {
+
+		private final String id;
+		private final CommandMain engine;
+		private final HashMap<String, Sample> samples;
+		private final File dir;
+		private Thread thread;
+		private volatile File report;
+		private volatile String error;
+		// The time the job ended, or 0 while it runs
+		private volatile long finished;
+
+		Job(String id, CommandMain engine, HashMap<String, Sample> samples) {
+			this.id = id;
+			this.engine = engine;
+			this.samples = samples;
+			this.dir = new File(jobsDir.getAbsolutePath() + CommandMain.sep + id);
+		}
+
+		public void run() {
+			try {
+				System.out.println("Job " + id + ": " + samples.size() + " sample(s)");
+				report = engine.runJob(samples, dir, pool);
+				System.out.println("Job " + id + " done");
+			}catch(InterruptedException e) {
+				error = "Job " + id + " cancelled";
+				System.out.println(error);
+			}catch(Exception e) {
+				e.printStackTrace();
+				error = "Job " + id + " failed: " + e;
+			}finally {
+				finished = System.currentTimeMillis();
+			}
+		}
+	}
+}
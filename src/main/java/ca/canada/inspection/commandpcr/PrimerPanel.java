@@ -0,0 +1,84 @@
+package ca.canada.inspection.commandpcr;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.TreeMap;
+
+// Version record of the expanded primer panel a run used, one line per primer with the hash of its sequence.
+// It is written to the output folder at the end of a run, so the next run into the same folder can tell which primers
+// were added, changed or removed. Hits of the unchanged primers come from the result cache, see ResultCache.
+public class PrimerPanel {
+
+	public static final String FILE_NAME = "primer_panel.tsv";
+
+	// The panel of a previous run, name to sequence hash. Empty if there was no previous run
+	public static HashMap<String, String> read(File manifest) {
+		HashMap<String, String> panel = new HashMap<String, String>();
+		if(!manifest.exists()) {
+			return panel;
+		}
+		String line;
+		try(BufferedReader reader = new BufferedReader(new FileReader(manifest))) {
+			while((line = reader.readLine()) != null) {
+				String[] items = line.split("\t");
+				if(items.length == 2) {
+					panel.put(items[0], items[1]);
+				}
+			}
+		}catch(IOException e) {
+			e.printStackTrace();
+		}
+		return panel;
+	}
+
+	public static void write(HashMap<String, String> primerDict, File manifest) {
+		try(FileWriter writer = new FileWriter(manifest)) {
+			TreeMap<String, String> sorted = new TreeMap<String, String>(primerDict);
+			for(String key : sorted.keySet()) {
+				writer.write(key + "\t" + sequenceHash(sorted.get(key)) + "\n");
+			}
+		}catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	// Summary of what changed between the previous panel and this run's primers
+	public static String describeChanges(HashMap<String, String> previous, HashMap<String, String> primerDict) {
+		int added = 0;
+		int modified = 0;
+		int unchanged = 0;
+		for(String key : primerDict.keySet()) {
+			if(!previous.containsKey(key)) {
+				added++;
+			}else if(previous.get(key).equals(sequenceHash(primerDict.get(key)))) {
+				unchanged++;
+			}else {
+				modified++;
+			}
+		}
+		int removed = 0;
+		for(String key : previous.keySet()) {
+			if(!primerDict.containsKey(key)) {
+				removed++;
+			}
+		}
+		return "Primer panel: " + added + " added, " + modified + " modified, " + removed + " removed, " + unchanged + " unchanged";
+	}
+
+	public static String sequenceHash(String seq) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			return HexFormat.of().formatHex(digest.digest(seq.toUpperCase().getBytes(StandardCharsets.UTF_8)));
+		}catch(NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,22 @@
+package ca.canada.inspection.commandpcr;
+
+import ca.canada.inspection.insilicopcr.Sample;
+
+import java.io.File;
+import java.util.HashMap;
+
+// A backend that finds primer binding sites in sample sequences.
+// prepare() is called once with the processed primers before any sample is searched, search() is then called
+// concurrently for every sample file and adds its hits straight to the sample through CommandMethods.addResult
+public interface PrimerSearch {
+	
+	void prepare(HashMap<String, String> primerDict, File primerFasta);
+	
+	void search(Sample sample, String query);
+	
+	// The same, for searches that write files (blastn reports) and should write them to detailedDir rather than the one
+	// they were created with, as the samples of a server job do
+	default void search(Sample sample, String query, File detailedDir) {
+		search(sample, query);
+	}
+}
@@ -0,0 +1,322 @@
+package ca.canada.inspection.commandpcr;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Starts and supervises the child processes of the command line pipeline (BBTools, blastn, makeblastdb). The output a
+// child does not hand to its caller is drained into its log file on a virtual thread as it comes, so a chatty child never
+// blocks on a full pipe and supervising thousands of children does not take a platform thread each. Logs are bounded:
+// past the limit only the start and the end of the output are kept, as BBTools print their totals last.
+// The timeout is armed when the child starts, so a child whose output is being read is killed on time as well as one
+// being waited for. An interrupted wait kills the child, cancelling an owner kills the children it started, which is
+// what unblocks a thread reading their output, and every child still running when the JVM exits is killed with it.
+// Exit code, wall time, CPU time and peak memory come back in a Result, and the CPU time and memory also go to the
+// telemetry stage the child runs in.
+public class ProcessRunner {
+
+	public static final long LOG_LIMIT = 8L << 20;
+	// How long a killed child gets to exit before it is killed forcibly
+	private static final long KILL_GRACE_MS = 5000;
+
+	private static final ConcurrentHashMap<Process, Child> running = new ConcurrentHashMap<Process, Child>();
+	// Who the children started on a thread belong to, see setOwner
+	private static final ThreadLocal<Object> owner = new ThreadLocal<Object>();
+	private static final ScheduledExecutorService timeouts = timeoutScheduler();
+	private static volatile long timeoutMs = 0;
+
+	static {
+		Runtime.getRuntime().addShutdownHook(new Thread(ProcessRunner::cancelAll));
+	}
+
+	// Longest a child may run before it is killed, 0 for no limit. Applies to every child started afterwards
+	public static void setTimeout(long timeoutMs) {
+		ProcessRunner.timeoutMs = timeoutMs;
+	}
+
+	// Children started on this thread from now on belong to owner, until it is set to null
+	public static void setOwner(Object owner) {
+		if(owner == null) {
+			ProcessRunner.owner.remove();
+		}else {
+			ProcessRunner.owner.set(owner);
+		}
+	}
+
+	// Runs a child to the end. Its stdout and stderr go to log unless the builder redirects them elsewhere
+	public static Result run(ProcessBuilder builder, File log) throws IOException, InterruptedException {
+		return start(builder, log, true).waitFor();
+	}
+
+	// Starts a child whose stdout the caller reads, with only stderr drained into log. A log is only created when the
+	// child writes something to it
+	public static Child start(ProcessBuilder builder, File log) throws IOException {
+		return start(builder, log, false);
+	}
+
+	private static Child start(ProcessBuilder builder, File log, boolean drainOutput) throws IOException {
+		Process p = builder.start();
+		Child child = new Child(p, builder.command().get(0), log, owner.get());
+		running.put(p, child);
+		long timeout = timeoutMs;
+		if(timeout > 0) {
+			// The kill runs on a thread of its own, as it waits for the child to go
+			ScheduledFuture<?> kill = timeouts.schedule(() -> Thread.ofVirtual().start(() -> child.timeOut()), timeout, TimeUnit.MILLISECONDS);
+			p.onExit().thenRun(() -> kill.cancel(false));
+		}
+		// Cancelled while it started, after its owner's children were killed
+		if(Thread.currentThread().isInterrupted()) {
+			kill(p);
+		}
+		if(drainOutput && builder.redirectOutput() == ProcessBuilder.Redirect.PIPE) {
+			child.drain(p.getInputStream());
+		}
+		if(!builder.redirectErrorStream() && builder.redirectError() == ProcessBuilder.Redirect.PIPE) {
+			child.drain(p.getErrorStream());
+		}
+		return child;
+	}
+
+	// Kills every running child, for a cancelled run or a JVM going down
+	public static void cancelAll() {
+		for(Process p : running.keySet()) {
+			kill(p);
+		}
+	}
+
+	// Kills the running children of owner, see setOwner
+	public static void cancel(Object owner) {
+		for(Child child : running.values()) {
+			if(child.owner == owner) {
+				kill(child.p);
+			}
+		}
+	}
+
+	private static ScheduledExecutorService timeoutScheduler() {
+		ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, Thread.ofPlatform().daemon().name("process-timeouts").factory());
+		scheduler.setRemoveOnCancelPolicy(true);
+		return scheduler;
+	}
+
+	// Asks the child and what it started to stop, then makes them
+	private static void kill(Process p) {
+		p.descendants().forEach(ProcessHandle::destroy);
+		p.destroy();
+		try {
+			if(!p.waitFor(KILL_GRACE_MS, TimeUnit.MILLISECONDS)) {
+				p.descendants().forEach(ProcessHandle::destroyForcibly);
+				p.destroyForcibly();
+			}
+		}catch(InterruptedException e) {
+			p.destroyForcibly();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// A running child process
+	public static class Child {
+
+		private final Process p;
+		private final String command;
+		private final File log;
+		private final Object owner;
+		private final long start = System.nanoTime();
+		private final Telemetry.Watch watch;
+		private LogDrain drain = null;
+		private Thread drainThread = null;
+		private volatile boolean timedOut = false;
+
+		private Child(Process p, String command, File log, Object owner) {
+			this.p = p;
+			this.command = command;
+			this.log = log;
+			this.owner = owner;
+			this.watch = Telemetry.watch(p);
+		}
+
+		private void timeOut() {
+			if(p.isAlive()) {
+				timedOut = true;
+				kill(p);
+			}
+		}
+
+		// Both streams of a child share its log, and one drain when stderr is merged into stdout
+		private void drain(InputStream in) {
+			if(drain == null) {
+				drain = new LogDrain(log);
+			}
+			Thread previous = drainThread;
+			drainThread = Thread.ofVirtual().start(() -> {
+				drain.copy(in);
+				if(previous != null) {
+					try {
+						previous.join();
+					}catch(InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+		}
+
+		public InputStream getInputStream() {
+			return p.getInputStream();
+		}
+
+		// Waits for the child to exit, or kills it when the waiting thread is interrupted
+		public Result waitFor() throws InterruptedException {
+			try {
+				int exitValue = watch.waitFor();
+				if(drainThread != null) {
+					drainThread.join();
+					drain.close();
+				}
+				return new Result(command, exitValue, timedOut, log,
+						TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), watch.getCpuMs(), watch.getPeakRssKb());
+			}catch(InterruptedException e) {
+				kill(p);
+				throw e;
+			}finally {
+				running.remove(p);
+			}
+		}
+	}
+
+	// How a child ended and what it used
+	public static class Result {
+
+		private final String command;
+		private final int exitValue;
+		private final boolean timedOut;
+		private final File log;
+		private final long wallMs;
+		private final long cpuMs;
+		private final long peakRssKb;
+
+		private Result(String command, int exitValue, boolean timedOut, File log, long wallMs, long cpuMs, long peakRssKb) {
+			this.command = command;
+			this.exitValue = exitValue;
+			this.timedOut = timedOut;
+			this.log = log;
+			this.wallMs = wallMs;
+			this.cpuMs = cpuMs;
+			this.peakRssKb = peakRssKb;
+		}
+
+		public boolean succeeded() {
+			return exitValue == 0 && !timedOut;
+		}
+
+		public int getExitValue() {
+			return exitValue;
+		}
+
+		public boolean isTimedOut() {
+			return timedOut;
+		}
+
+		public long getWallMs() {
+			return wallMs;
+		}
+
+		public long getCpuMs() {
+			return cpuMs;
+		}
+
+		public long getPeakRssKb() {
+			return peakRssKb;
+		}
+
+		// Throws when the child failed, naming it and where its output went
+		public Result check() {
+			if(!succeeded()) {
+				throw new IllegalStateException(new File(command).getName() + (timedOut ? " timed out after " + wallMs + " ms" : " exited with code " + exitValue)
+						+ (log != null ? ", see " + log.getAbsolutePath() : ""));
+			}
+			return this;
+		}
+	}
+
+	// Copies output into a log file opened on its first byte. Past LOG_LIMIT the middle is dropped: the first half of the
+	// limit stays in the file and the last half is kept in a ring until the end
+	private static class LogDrain {
+
+		private final File log;
+		private byte[] tail = null;
+		private OutputStream out = null;
+		private long total = 0;
+
+		LogDrain(File log) {
+			this.log = log;
+		}
+
+		synchronized void write(byte[] buffer, int length) throws IOException {
+			for(int i = 0; i < length; ) {
+				if(total < LOG_LIMIT / 2) {
+					int n = (int)Math.min(length - i, LOG_LIMIT / 2 - total);
+					if(out == null) {
+						log.getParentFile().mkdirs();
+						out = new FileOutputStream(log);
+					}
+					out.write(buffer, i, n);
+					i += n;
+					total += n;
+				}else {
+					if(tail == null) {
+						tail = new byte[(int)(LOG_LIMIT / 2)];
+					}
+					int at = (int)((total - LOG_LIMIT / 2) % tail.length);
+					int n = Math.min(length - i, tail.length - at);
+					System.arraycopy(buffer, i, tail, at, n);
+					i += n;
+					total += n;
+				}
+			}
+		}
+
+		void copy(InputStream in) {
+			byte[] buffer = new byte[8192];
+			try(in) {
+				int n;
+				while((n = in.read(buffer)) >= 0) {
+					if(log != null) {
+						write(buffer, n);
+					}
+				}
+			}catch(IOException e) {
+				// The child is gone
+			}
+		}
+
+		synchronized void close() {
+			if(out == null) {
+				return;
+			}
+			try(OutputStream stream = out) {
+				long kept = total - LOG_LIMIT / 2;
+				if(tail == null) {
+					return;
+				}else if(kept > tail.length) {
+					stream.write(("\n[" + (kept - tail.length) + " bytes of output dropped]\n").getBytes(StandardCharsets.US_ASCII));
+					int at = (int)(kept % tail.length);
+					stream.write(tail, at, tail.length - at);
+					stream.write(tail, 0, at);
+				}else {
+					stream.write(tail, 0, (int)kept);
+				}
+			}catch(IOException e) {
+				e.printStackTrace();
+			}
+			out = null;
+		}
+	}
+}
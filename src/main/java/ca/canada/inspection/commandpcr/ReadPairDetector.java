@@ -0,0 +1,327 @@
+package ca.canada.inspection.commandpcr;
+
+import ca.canada.inspection.insilicopcr.BlastResult;
+import ca.canada.inspection.insilicopcr.Sample;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TreeMap;
+
+// Amplicon detection straight from the read pairs of a fastq sample, instead of baiting and assembling them. A pair
+// whose mates overlap is merged into the fragment it was read from, the way BBMerge does, and a fragment holding a
+// forward and a reverse primer facing each other proves the product and gives its exact size. Products are counted
+// per assay, primers and size, and each becomes one contig of the sample: its most common sequence, with the number of
+// supporting pairs as the description, so the consolidated report shows them like any other hit.
+// Pairs that do not overlap but carry the forward primer on one mate and the reverse primer on the other also support
+// a product of that primer pair, at least as long as either mate from its primer on. They are counted with the
+// shortest product of the pair that is long enough.
+// Only one streaming pass over the reads is made, and only pairs with a primer site on a mate are looked at further.
+// Targets longer than a fragment cannot be seen this way, and are decided per primer pair: when both primers of a pair
+// are found on reads but never together on a merged fragment, or unmerged pairs show a product of the pair longer than
+// any found on a fragment, resolve() declines and the sample goes through baiting and assembly as before.
+// The overlap search is a small equivalent of BBMerge's: BBMerge and its overlapper ship with the BBTools bundle, as
+// source and classes, but work on BBTools' own read objects and are not linked into this program.
+public class ReadPairDetector {
+
+	// Shortest overlap of two mates that is trusted, and one mismatch allowed per this many overlapping bases
+	private static final int MIN_OVERLAP = 16;
+	private static final int BASES_PER_MISMATCH = 20;
+	// Distinct sequences kept per product, to pick the most common one from
+	private static final int MAX_VARIANTS = 64;
+
+	private final NativePrimerSearch search;
+	private final int maxAmplicon;
+	private final Sample scratch = new Sample();
+	private final TreeMap<String, Product> products = new TreeMap<String, Product>();
+	// Unmerged pairs per primer pair and the least size of the product they show
+	private final HashMap<String, TreeMap<Integer, Long>> unmergedSpans = new HashMap<String, TreeMap<Integer, Long>>();
+	// Unmerged pairs per product, and the primer pairs whose products are longer than the fragments, from unmergedSpans
+	private final HashMap<String, Long> unmergedPairs = new HashMap<String, Long>();
+	private final ArrayList<String> longTargets = new ArrayList<String>();
+	// Primers found on reads, by assay
+	private final HashMap<String, HashSet<String>> forwardSites = new HashMap<String, HashSet<String>>();
+	private final HashMap<String, HashSet<String>> reverseSites = new HashMap<String, HashSet<String>>();
+	private long pairs = 0;
+	private long bases = 0;
+	private long pairsWithSites = 0;
+	private long mergedPairs = 0;
+
+	// search is prepared over the whole primer panel
+	public ReadPairDetector(NativePrimerSearch search, int maxAmplicon) {
+		this.search = search;
+		this.maxAmplicon = maxAmplicon;
+	}
+
+	// Reads the pairs of two mate files, or of one interleaved file, and writes what was found to log
+	public void run(List<String> reads, File log) throws IOException {
+		try(TwoStageBaiter.PairReader reader = new TwoStageBaiter.PairReader(TwoStageBaiter.open(reads))) {
+			byte[][][] pair;
+			while((pair = reader.next()) != null) {
+				if(pair[1] == null) {
+					break; // An odd record at the end of an interleaved file
+				}
+				pairs++;
+				bases += pair[0][1].length + pair[1][1].length;
+				addPair(pair[0][1], pair[0][3], pair[1][1], pair[1][3]);
+			}
+		}
+		Telemetry.reads(pairs * 2, bases);
+		sizeUnmerged();
+		try(FileWriter writer = new FileWriter(log)) {
+			writer.write("Input pairs:\t" + pairs + System.lineSeparator());
+			writer.write("Pairs with primer sites:\t" + pairsWithSites + System.lineSeparator());
+			writer.write("Merged pairs with primer sites:\t" + mergedPairs + System.lineSeparator());
+			for(String key : products.keySet()) {
+				Product product = products.get(key);
+				writer.write("Product " + key.replace('\t', ' ') + " bp:\t" + product.pairs + " merged pairs, "
+						+ unmergedPairs.getOrDefault(key, 0L) + " unmerged pairs" + System.lineSeparator());
+			}
+			for(String target : longTargets) {
+				writer.write("Product longer than the fragments:\t" + target.replace('\t', ' ') + System.lineSeparator());
+			}
+		}
+	}
+
+	// Adds the products found to the sample as contigs with their hits, unless a target looks longer than the fragments,
+	// in which case the sample is left as it was and false is returned
+	public boolean resolve(Sample sample) {
+		if(!longTargets.isEmpty()) {
+			return false;
+		}
+		int number = 0;
+		for(String key : products.keySet()) {
+			Product product = products.get(key);
+			String contig = sample.getName() + "_amplicon_" + (++number);
+			byte[] seq = product.representative();
+			synchronized(sample) {
+				sample.addContig(contig, "merged_pairs=" + product.pairs + " unmerged_pairs=" + unmergedPairs.getOrDefault(key, 0L));
+				sample.addContigLength(contig, seq.length);
+			}
+			search.search(seq, seq.length, sample, contig);
+		}
+		return true;
+	}
+
+	// Counts every unmerged pair with the shortest product of its primer pair it fits in, and lists the primer pairs
+	// whose products were not all found on fragments: both primers found on reads without a product on a fragment, or
+	// unmerged pairs spanning more than the longest product found
+	private void sizeUnmerged() {
+		HashMap<String, TreeMap<Integer, String>> sizes = new HashMap<String, TreeMap<Integer, String>>();
+		for(String key : products.keySet()) {
+			sizes.computeIfAbsent(products.get(key).primers, primers -> new TreeMap<Integer, String>()).put(products.get(key).size, key);
+		}
+		TreeMap<String, Integer> longest = new TreeMap<String, Integer>();
+		for(String primers : unmergedSpans.keySet()) {
+			TreeMap<Integer, Long> spans = unmergedSpans.get(primers);
+			TreeMap<Integer, String> found = sizes.getOrDefault(primers, new TreeMap<Integer, String>());
+			for(int span : spans.keySet()) {
+				Integer size = found.ceilingKey(span);
+				if(size != null) {
+					unmergedPairs.merge(found.get(size), spans.get(span), Long::sum);
+				}else {
+					longest.merge(primers, span, Math::max);
+				}
+			}
+		}
+		for(String assay : forwardSites.keySet()) {
+			for(String forward : forwardSites.get(assay)) {
+				for(String reverse : reverseSites.getOrDefault(assay, new HashSet<String>())) {
+					String primers = assay + "\t" + forward + "\t" + reverse;
+					if(!sizes.containsKey(primers) && !longest.containsKey(primers)) {
+						longest.put(primers, 0);
+					}
+				}
+			}
+		}
+		for(String primers : longest.keySet()) {
+			longTargets.add(primers + (longest.get(primers) > 0 ? "\tat least " + longest.get(primers) + " bp" : ""));
+		}
+	}
+
+	private void addPair(byte[] r1, byte[] q1, byte[] r2, byte[] q2) {
+		if(!search.hasSite(r1, r1.length) && !search.hasSite(r2, r2.length)) {
+			return;
+		}
+		pairsWithSites++;
+		byte[] fragment = merge(r1, q1, NativePrimerSearch.reverseComplement(r2), reverse(q2));
+		scratch.getBlastResults().clear();
+		if(fragment != null) {
+			mergedPairs++;
+			search.search(fragment, fragment.length, scratch, "fragment");
+			noteSites();
+			addProducts(fragment);
+			return;
+		}
+		search.search(r1, r1.length, scratch, "r1");
+		search.search(r2, r2.length, scratch, "r2");
+		noteSites();
+
+		// The forward primer reads forward on one mate and the reverse primer on the other, as the mates come from
+		// opposite strands. The product holds each mate from its primer on, and the mates may still overlap in it
+		HashMap<String, HashMap<String, ArrayList<BlastResult>>> assays = byAssay();
+		for(String assay : assays.keySet()) {
+			for(BlastResult fResult : assays.get(assay).get("F")) {
+				for(BlastResult rResult : assays.get(assay).get("R")) {
+					if(fResult.getStrand() == 1 && rResult.getStrand() == 1 && !fResult.getQueryID().equals(rResult.getQueryID())) {
+						int fLength = fResult.getQueryID().equals("r1") ? r1.length : r2.length;
+						int rLength = rResult.getQueryID().equals("r1") ? r1.length : r2.length;
+						int span = Math.max(fLength - fResult.getStart() + 1, rLength - rResult.getStart() + 1);
+						if(span <= maxAmplicon) {
+							unmergedSpans.computeIfAbsent(assay + "\t" + fResult.getSubjectID() + "\t" + rResult.getSubjectID(), key -> new TreeMap<Integer, Long>())
+									.merge(span, 1L, Long::sum);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	// Every facing forward and reverse hit on the fragment, within the longest product, is a product
+	private void addProducts(byte[] fragment) {
+		HashMap<String, HashMap<String, ArrayList<BlastResult>>> assays = byAssay();
+		for(String assay : assays.keySet()) {
+			for(BlastResult fResult : assays.get(assay).get("F")) {
+				for(BlastResult rResult : assays.get(assay).get("R")) {
+					int start = Math.min(fResult.getStart(), rResult.getStart());
+					int end = Math.max(fResult.getEnd(), rResult.getEnd());
+					if(end - start + 1 > maxAmplicon || !CommandMethods.facing(fResult, rResult)) {
+						continue;
+					}
+					String primers = assay + "\t" + fResult.getSubjectID() + "\t" + rResult.getSubjectID();
+					int size = end - start + 1;
+					Product product = products.computeIfAbsent(primers + "\t" + size, key -> new Product(primers, size));
+					product.add(Arrays.copyOfRange(fragment, start - 1, end));
+				}
+			}
+		}
+	}
+
+	private void noteSites() {
+		HashMap<String, HashMap<String, ArrayList<BlastResult>>> assays = byAssay();
+		for(String assay : assays.keySet()) {
+			for(BlastResult result : assays.get(assay).get("F")) {
+				forwardSites.computeIfAbsent(assay, key -> new HashSet<String>()).add(result.getSubjectID());
+			}
+			for(BlastResult result : assays.get(assay).get("R")) {
+				reverseSites.computeIfAbsent(assay, key -> new HashSet<String>()).add(result.getSubjectID());
+			}
+		}
+	}
+
+	// The scratch hits under their assay and direction, named as in the consolidated report: NAME-F, NAME-R_1, ...
+	private HashMap<String, HashMap<String, ArrayList<BlastResult>>> byAssay() {
+		HashMap<String, HashMap<String, ArrayList<BlastResult>>> assays = new HashMap<String, HashMap<String, ArrayList<BlastResult>>>();
+		for(String primer : scratch.getBlastResults().keySet()) {
+			int dash = primer.lastIndexOf('-');
+			String direction = primer.substring(dash + 1, Math.min(dash + 2, primer.length()));
+			if(dash < 0 || !direction.equals("F") && !direction.equals("R")) {
+				continue;
+			}
+			HashMap<String, ArrayList<BlastResult>> hits = assays.computeIfAbsent(primer.substring(0, dash), key -> {
+				HashMap<String, ArrayList<BlastResult>> list = new HashMap<String, ArrayList<BlastResult>>();
+				list.put("F", new ArrayList<BlastResult>());
+				list.put("R", new ArrayList<BlastResult>());
+				return list;
+			});
+			hits.get(direction).addAll(scratch.getBlastResults().get(primer));
+		}
+		return assays;
+	}
+
+	// The fragment a pair was read from when its mates overlap, with the second mate given reverse complemented, or
+	// null. Every insert size leaving an overlap of at least MIN_OVERLAP is tried and the one with the fewest
+	// mismatches kept, unless another one does as well. Overlapping bases that differ take the better quality one
+	public static byte[] merge(byte[] r1, byte[] q1, byte[] rc2, byte[] rq2) {
+		int best = -1;
+		int bestMismatches = Integer.MAX_VALUE;
+		int secondMismatches = Integer.MAX_VALUE;
+		for(int insert = MIN_OVERLAP; insert <= r1.length + rc2.length - MIN_OVERLAP; insert++) {
+			int shift = insert - rc2.length; // Position of the second mate on the fragment
+			int from = Math.max(0, shift);
+			int to = Math.min(r1.length, insert);
+			if(to - from < MIN_OVERLAP) {
+				continue;
+			}
+			int allowed = Math.min((to - from) / BASES_PER_MISMATCH, secondMismatches);
+			int mismatches = 0;
+			for(int p = from; p < to && mismatches <= allowed; p++) {
+				if(r1[p] != rc2[p - shift]) {
+					mismatches++;
+				}
+			}
+			if(mismatches > allowed) {
+				continue;
+			}
+			if(mismatches < bestMismatches) {
+				secondMismatches = bestMismatches;
+				bestMismatches = mismatches;
+				best = insert;
+			}else {
+				secondMismatches = mismatches;
+			}
+		}
+		if(best < 0 || secondMismatches <= bestMismatches) {
+			return null;
+		}
+		int shift = best - rc2.length;
+		byte[] fragment = new byte[best];
+		for(int p = 0; p < best; p++) {
+			boolean inFirst = p < r1.length;
+			boolean inSecond = p >= shift;
+			if(inFirst && inSecond) {
+				fragment[p] = q1[p] >= rq2[p - shift] ? r1[p] : rc2[p - shift];
+			}else {
+				fragment[p] = inFirst ? r1[p] : rc2[p - shift];
+			}
+		}
+		return fragment;
+	}
+
+	private static byte[] reverse(byte[] quality) {
+		byte[] reversed = new byte[quality.length];
+		for(int i = 0; i < quality.length; i++) {
+			reversed[i] = quality[quality.length - 1 - i];
+		}
+		return reversed;
+	}
+
+	// The pairs supporting one product of an assay: the same primers and the same size
+	private static class Product {
+
+		private final String primers;
+		private final int size;
+		private final HashMap<String, Long> variants = new HashMap<String, Long>();
+		private long pairs = 0;
+
+		Product(String primers, int size) {
+			this.primers = primers;
+			this.size = size;
+		}
+
+		void add(byte[] seq) {
+			pairs++;
+			String variant = new String(seq);
+			if(variants.containsKey(variant) || variants.size() < MAX_VARIANTS) {
+				variants.merge(variant, 1L, Long::sum);
+			}
+		}
+
+		// The most common sequence, the first in order on ties so reruns agree
+		byte[] representative() {
+			String best = null;
+			for(String variant : variants.keySet()) {
+				if(best == null || variants.get(variant) > variants.get(best)
+						|| variants.get(variant).equals(variants.get(best)) && variant.compareTo(best) < 0) {
+					best = variant;
+				}
+			}
+			return best.getBytes();
+		}
+	}
+}
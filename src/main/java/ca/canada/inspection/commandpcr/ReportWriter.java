@@ -0,0 +1,161 @@
+package ca.canada.inspection.commandpcr;
+
+import ca.canada.inspection.insilicopcr.Sample;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
+
+// Writes consolidated_report/report.tsv incrementally. The header is written when the report is opened and every
+// sample's amplicons are appended (and flushed) as soon as that sample finishes, so the report fills in while others run.
+// Once every sample is done the report is rewritten in a fixed order, by sample, assay, contig and position, so the
+// same samples always give the same file whatever order they finished in, and the reports of shards merge into it.
+// Samples that failed have no rows, they are kept apart for the QA log and the exit status instead
+public class ReportWriter {
+	
+	private final HashMap<String, String> primerDict;
+	private final boolean qPCR;
+	private final int maxAmplicon;
+	private final File file;
+	private final ArrayList<Row> rows = new ArrayList<Row>();
+	private final TreeSet<String> failed = new TreeSet<String>();
+	private FileWriter writer;
+	
+	public ReportWriter(File consolidatedDir, String sep, HashMap<String, String> primerDict, int maxAmplicon) {
+		this.primerDict = primerDict;
+		this.maxAmplicon = maxAmplicon;
+		this.qPCR = CommandMethods.isQPCR(primerDict);
+		this.file = new File(consolidatedDir.getAbsolutePath() + sep + "report.tsv");
+		try {
+			writer = new FileWriter(file);
+			writer.write(CommandMethods.consolidatedHeader(qPCR));
+			writer.write(System.lineSeparator());
+			writer.flush();
+		}catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	public synchronized void addSample(String key, Sample sample) {
+		try {
+			StringWriter sampleRows = new StringWriter();
+			CommandMethods.writeSampleReport(sampleRows, key, sample, primerDict, qPCR, maxAmplicon);
+			writer.write(sampleRows.toString());
+			writer.flush();
+			for(String line : sampleRows.toString().split("\\R")) {
+				if(!line.isEmpty()) {
+					rows.add(new Row(line));
+				}
+			}
+		}catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	public synchronized void addFailed(String name) {
+		failed.add(name);
+	}
+	
+	// Names of the samples that failed so far, sorted
+	public synchronized ArrayList<String> getFailed() {
+		return new ArrayList<String>(failed);
+	}
+	
+	public synchronized void close() {
+		try {
+			writer.close();
+			write(file, CommandMethods.consolidatedHeader(qPCR), rows);
+		}catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	// Merges reports of disjoint sets of samples into out, as one report of all of them would be. Fails when the reports
+	// are not all of the same format (PCR or qPCR)
+	public static void merge(List<File> reports, File out) throws IOException {
+		String header = null;
+		ArrayList<Row> rows = new ArrayList<Row>();
+		for(File report : reports) {
+			try(BufferedReader reader = new BufferedReader(new FileReader(report))) {
+				String line = reader.readLine();
+				if(header == null) {
+					header = line;
+				}else if(!header.equals(line)) {
+					throw new IOException(report.getAbsolutePath() + " does not have the same columns as " + reports.getFirst().getAbsolutePath());
+				}
+				while((line = reader.readLine()) != null) {
+					if(!line.isEmpty()) {
+						rows.add(new Row(line));
+					}
+				}
+			}
+		}
+		out.getParentFile().mkdirs();
+		write(out, header, rows);
+	}
+	
+	// Sorted rows behind the header, written to a temporary file first so the report is never seen half rewritten
+	private static void write(File file, String header, ArrayList<Row> rows) throws IOException {
+		Collections.sort(rows);
+		File tmp = new File(file.getAbsolutePath() + ".tmp");
+		try(Writer out = new FileWriter(tmp)) {
+			out.write(header);
+			out.write(System.lineSeparator());
+			for(Row row : rows) {
+				out.write(row.line);
+				out.write(System.lineSeparator());
+			}
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	// A report row, ordered by sample, gene, contig, then amplicon start and the rest of the row
+	private static class Row implements Comparable<Row> {
+		
+		private final String line;
+		private final String[] fields;
+		private final int start;
+		
+		Row(String line) {
+			this.line = line;
+			this.fields = line.split("\t", -1);
+			int dash = fields.length > 2 ? fields[2].indexOf('-') : -1;
+			int value;
+			try {
+				value = dash > 0 ? Integer.parseInt(fields[2].substring(0, dash)) : 0;
+			}catch(NumberFormatException e) {
+				value = 0;
+			}
+			this.start = value;
+		}
+		
+		private String field(int index) {
+			return index < fields.length ? fields[index] : "";
+		}
+		
+		public int compareTo(Row other) {
+			int c = field(0).compareTo(other.field(0));
+			if(c == 0) {
+				c = field(1).compareTo(other.field(1));
+			}
+			if(c == 0) {
+				c = field(4).compareTo(other.field(4));
+			}
+			if(c == 0) {
+				c = Integer.compare(start, other.start);
+			}
+			return c != 0 ? c : line.compareTo(other.line);
+		}
+	}
+}
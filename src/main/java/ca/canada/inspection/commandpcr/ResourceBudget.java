@@ -0,0 +1,51 @@
+package ca.canada.inspection.commandpcr;
+
+// Global CPU and memory budget shared by all sample pipelines.
+// A stage blocks in acquire() until enough cores and memory are free, and must hand them back with release().
+// Requests larger than the whole budget are clamped so a single large stage can still run on its own.
+public class ResourceBudget {
+	
+	private final int totalCores;
+	private final int totalMemory;
+	private int freeCores;
+	private int freeMemory;
+	
+	public ResourceBudget(int cores, int memory) {
+		this.totalCores = Math.max(cores, 1);
+		this.totalMemory = Math.max(memory, 1);
+		this.freeCores = this.totalCores;
+		this.freeMemory = this.totalMemory;
+	}
+	
+	public synchronized void acquire(int cores, int memory) throws InterruptedException {
+		cores = clampCores(cores);
+		memory = clampMemory(memory);
+		while(freeCores < cores || freeMemory < memory) {
+			wait();
+		}
+		freeCores -= cores;
+		freeMemory -= memory;
+	}
+	
+	public synchronized void release(int cores, int memory) {
+		freeCores += clampCores(cores);
+		freeMemory += clampMemory(memory);
+		notifyAll();
+	}
+	
+	public int getTotalCores() {
+		return this.totalCores;
+	}
+	
+	public int getTotalMemory() {
+		return this.totalMemory;
+	}
+	
+	private int clampCores(int cores) {
+		return Math.min(Math.max(cores, 0), totalCores);
+	}
+	
+	private int clampMemory(int memory) {
+		return Math.min(Math.max(memory, 0), totalMemory);
+	}
+}
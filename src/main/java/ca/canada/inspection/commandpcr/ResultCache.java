@@ -0,0 +1,341 @@
+package ca.canada.inspection.commandpcr;
+
+import ca.canada.inspection.insilicopcr.BlastResult;
+import ca.canada.inspection.insilicopcr.Sample;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+// Content addressed cache of primer hits, so reruns against the same samples only search what changed.
+// Entries are keyed by a SHA-256 digest of the sample's input files and of the search settings (engine, mismatches,
+// evalue). A hit on a fasta sample only depends on its own primer, so fasta entries hold hits per primer (name and
+// expanded sequence) and a rerun with a larger panel searches the new primers only. The contigs of fastq samples come
+// from baiting and assembling with the whole panel, so fastq entries are also keyed by the digest of the primer set.
+// Entries are small binary files: the sample's contigs once, then every hit as a contig index and a few ints.
+// Input files are only hashed again when their size, modification time or inode changed, see fileDigest.
+public class ResultCache {
+
+	private static final int MAGIC = 0x49504352; // "IPCR"
+	private static final int VERSION = 2;
+
+	// How the sequence of a hit is stored, the primer and its reverse complement cover every native search hit
+	private static final byte SEQ_PRIMER = 0;
+	private static final byte SEQ_REVERSE = 1;
+	private static final byte SEQ_OTHER = 2;
+
+	private final File cacheDir;
+	private final String settings;
+
+	public ResultCache(File cacheDir, String searchEngine, int mismatches, double evalue) {
+		this.cacheDir = cacheDir;
+		this.settings = searchEngine + "\tm=" + mismatches + (searchEngine.equals("blast") ? "\te=" + evalue : "");
+		cacheDir.mkdirs();
+	}
+
+	// Digest of the contents of every input file of a sample, in order
+	public static String sampleDigest(Sample sample) throws IOException {
+		String stored = storedDigest(sample);
+		if(stored != null) {
+			return stored;
+		}
+		ArrayList<String> fileDigests = new ArrayList<String>();
+		for(String file : sample.getFiles()) {
+			fileDigests.add(contentDigest(new File(file)));
+		}
+		return combine(sample.getFileType(), fileDigests);
+	}
+
+	// The same digest, with every file only read when it changed since a previous run hashed it
+	public String digest(Sample sample) throws IOException {
+		String stored = storedDigest(sample);
+		if(stored != null) {
+			return stored;
+		}
+		ArrayList<String> fileDigests = new ArrayList<String>();
+		for(String file : sample.getFiles()) {
+			fileDigests.add(fileDigest(new File(file)));
+		}
+		return combine(sample.getFileType(), fileDigests);
+	}
+
+	// A stored sample keeps the digest of the files it was imported from. Its bases other than A, C, G and T read back as
+	// N, so the store format is part of its digest
+	private static String storedDigest(Sample sample) throws IOException {
+		String stored = SampleStore.digest(sample);
+		if(stored == null) {
+			return null;
+		}
+		ArrayList<String> fileDigests = new ArrayList<String>();
+		fileDigests.add(stored);
+		return combine(SampleStore.FORMAT, fileDigests);
+	}
+
+	private static String combine(String fileType, ArrayList<String> fileDigests) {
+		MessageDigest digest = sha256();
+		digest.update(fileType.getBytes(StandardCharsets.UTF_8));
+		for(String fileDigest : fileDigests) {
+			digest.update(fileDigest.getBytes(StandardCharsets.UTF_8));
+			digest.update((byte)0);
+		}
+		return HexFormat.of().formatHex(digest.digest());
+	}
+
+	private static String contentDigest(File file) throws IOException {
+		MessageDigest digest = sha256();
+		byte[] buffer = new byte[1 << 20];
+		try(InputStream in = new FileInputStream(file)) {
+			int n;
+			while((n = in.read(buffer)) > 0) {
+				digest.update(buffer, 0, n);
+			}
+		}
+		return HexFormat.of().formatHex(digest.digest());
+	}
+
+	// The content digest of a file is recorded in the files folder of the cache with the file's size, modification time
+	// and file key (device and inode), and taken from there as long as those are the same, so unchanged inputs such as
+	// large fastq files are not read end to end on every run just to be hashed
+	private String fileDigest(File file) throws IOException {
+		BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+		String path = file.getCanonicalPath();
+		String stamp = path + "\t" + attributes.size() + "\t" + attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS) + "\t" + attributes.fileKey();
+		String name = HexFormat.of().formatHex(sha256().digest(path.getBytes(StandardCharsets.UTF_8)));
+		File record = new File(cacheDir, "files" + File.separator + name + ".txt");
+		if(record.isFile()) {
+			List<String> lines = Files.readAllLines(record.toPath(), StandardCharsets.UTF_8);
+			if(lines.size() == 2 && lines.get(0).equals(stamp)) {
+				return lines.get(1);
+			}
+		}
+		String digest = contentDigest(file);
+		record.getParentFile().mkdirs();
+		File tmp = File.createTempFile(name, ".tmp", record.getParentFile());
+		Files.writeString(tmp.toPath(), stamp + "\n" + digest + "\n", StandardCharsets.UTF_8);
+		Files.move(tmp.toPath(), record.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return digest;
+	}
+
+	// Digest of an expanded primer set, independent of the order of the dictionary
+	public static String primerDigest(HashMap<String, String> primerDict) {
+		MessageDigest digest = sha256();
+		for(String key : new TreeMap<String, String>(primerDict).keySet()) {
+			digest.update((key + "\t" + primerDict.get(key).toUpperCase() + "\n").getBytes(StandardCharsets.UTF_8));
+		}
+		return HexFormat.of().formatHex(digest.digest());
+	}
+
+	// Loads the entry of a sample, an empty entry if there is none yet. primerSetDigest is null for fasta samples
+	public Entry load(String sampleDigest, String primerSetDigest) {
+		File file = entryFile(sampleDigest, primerSetDigest);
+		Entry entry = new Entry(file);
+		if(!file.exists()) {
+			return entry;
+		}
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536))) {
+			if(in.readInt() != MAGIC || in.readInt() != VERSION) {
+				return entry;
+			}
+			// Hits refer to contigs by their index in the order they were written
+			int contigCount = in.readInt();
+			String[] contigIDs = new String[contigCount];
+			for(int i = 0; i < contigCount; i++) {
+				contigIDs[i] = in.readUTF();
+				entry.contigs.put(contigIDs[i], in.readUTF());
+				entry.contigLengths.put(contigIDs[i], in.readInt());
+			}
+			int primerCount = in.readInt();
+			for(int i = 0; i < primerCount; i++) {
+				String primer = in.readUTF();
+				String seq = in.readUTF();
+				byte[] reverse = NativePrimerSearch.reverseComplement(seq.getBytes());
+				int hitCount = in.readInt();
+				ArrayList<CachedHit> hits = new ArrayList<CachedHit>(hitCount);
+				for(int j = 0; j < hitCount; j++) {
+					String contig = contigIDs[in.readInt()];
+					int mismatch = in.readUnsignedByte();
+					int start = in.readInt();
+					int end = in.readInt();
+					int length = in.readInt();
+					byte kind = in.readByte();
+					String hitSeq = kind == SEQ_PRIMER ? seq : kind == SEQ_REVERSE ? new String(reverse) : in.readUTF();
+					int strand = in.readByte();
+					hits.add(new CachedHit(contig, mismatch, start, end, length, hitSeq, strand));
+				}
+				entry.primers.put(primer, seq);
+				entry.hits.put(primer, hits);
+			}
+		}catch(IOException e) {
+			// A truncated or unreadable entry is treated as missing and rewritten after the search
+			System.out.println("Ignoring unreadable cache entry " + file.getAbsolutePath());
+			return new Entry(file);
+		}
+		return entry;
+	}
+
+	private File entryFile(String sampleDigest, String primerSetDigest) {
+		MessageDigest digest = sha256();
+		digest.update((sampleDigest + "\n" + settings + "\n" + (primerSetDigest == null ? "" : primerSetDigest)).getBytes(StandardCharsets.UTF_8));
+		String name = HexFormat.of().formatHex(digest.digest());
+		return new File(cacheDir, name.substring(0, 2) + File.separator + name + ".bin");
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		}catch(NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// Cached contigs and hits of one sample
+	public static class Entry {
+
+		private final File file;
+		private final HashMap<String, String> contigs = new HashMap<String, String>();
+		private final HashMap<String, Integer> contigLengths = new HashMap<String, Integer>();
+		private final HashMap<String, String> primers = new HashMap<String, String>();
+		private final HashMap<String, ArrayList<CachedHit>> hits = new HashMap<String, ArrayList<CachedHit>>();
+
+		private Entry(File file) {
+			this.file = file;
+		}
+
+		// The primers of primerDict that are not in this entry, or are with a different sequence
+		public HashMap<String, String> missing(HashMap<String, String> primerDict) {
+			HashMap<String, String> missing = new HashMap<String, String>();
+			for(String key : primerDict.keySet()) {
+				if(!primerDict.get(key).equalsIgnoreCase(primers.get(key))) {
+					missing.put(key, primerDict.get(key));
+				}
+			}
+			return missing;
+		}
+
+		// Adds the cached hits and contigs of every primer in primerDict to the sample
+		public void restore(Sample sample, HashMap<String, String> primerDict) {
+			for(String primer : primerDict.keySet()) {
+				if(!hits.containsKey(primer) || !primerDict.get(primer).equalsIgnoreCase(primers.get(primer))) {
+					continue;
+				}
+				for(CachedHit hit : hits.get(primer)) {
+					CommandMethods.addResult(sample, new BlastResult(sample.getName(), hit.contig, primer, hit.mismatch, hit.start,
+							hit.end, hit.length, hit.seq, hit.strand));
+				}
+			}
+			synchronized(sample) {
+				for(String contig : contigs.keySet()) {
+					if(!sample.getContigDict().containsKey(contig)) {
+						sample.addContig(contig, contigs.get(contig));
+						sample.addContigLength(contig, contigLengths.getOrDefault(contig, 0));
+					}
+				}
+			}
+		}
+
+		// Takes the sample's contigs and its hits for the searched primers into the entry, and writes it to disk
+		public void update(Sample sample, HashMap<String, String> searched) {
+			contigs.putAll(sample.getContigDict());
+			contigLengths.putAll(sample.getContigLengths());
+			for(String primer : searched.keySet()) {
+				ArrayList<CachedHit> primerHits = new ArrayList<CachedHit>();
+				for(BlastResult result : sample.getBlastResults().getOrDefault(primer, new ArrayList<BlastResult>())) {
+					primerHits.add(new CachedHit(result.getQueryID(), result.getMismatch(), result.getStart(), result.getEnd(),
+							result.getLength(), result.getSeq(), result.getStrand()));
+					if(!contigs.containsKey(result.getQueryID())) {
+						contigs.put(result.getQueryID(), "");
+					}
+				}
+				primers.put(primer, searched.get(primer).toUpperCase());
+				hits.put(primer, primerHits);
+			}
+			try {
+				write();
+			}catch(IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		// Written to a temporary file and moved into place, so concurrent runs never see half an entry
+		private void write() throws IOException {
+			file.getParentFile().mkdirs();
+			File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+			HashMap<String, Integer> contigIndex = new HashMap<String, Integer>();
+			try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 65536))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(contigs.size());
+				for(String contig : contigs.keySet()) {
+					contigIndex.put(contig, contigIndex.size());
+					out.writeUTF(contig);
+					out.writeUTF(contigs.get(contig));
+					out.writeInt(contigLengths.getOrDefault(contig, 0));
+				}
+				out.writeInt(primers.size());
+				for(String primer : primers.keySet()) {
+					String seq = primers.get(primer);
+					String reverse = new String(NativePrimerSearch.reverseComplement(seq.getBytes()));
+					out.writeUTF(primer);
+					out.writeUTF(seq);
+					out.writeInt(hits.get(primer).size());
+					for(CachedHit hit : hits.get(primer)) {
+						out.writeInt(contigIndex.get(hit.contig));
+						out.writeByte(Math.min(hit.mismatch, 255));
+						out.writeInt(hit.start);
+						out.writeInt(hit.end);
+						out.writeInt(hit.length);
+						if(hit.seq.equals(seq)) {
+							out.writeByte(SEQ_PRIMER);
+						}else if(hit.seq.equals(reverse)) {
+							out.writeByte(SEQ_REVERSE);
+						}else {
+							out.writeByte(SEQ_OTHER);
+							out.writeUTF(hit.seq);
+						}
+						out.writeByte(hit.strand);
+					}
+				}
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+	}
+
+	private static class CachedHit {
+
+		private final String contig;
+		private final int mismatch;
+		private final int start;
+		private final int end;
+		private final int length;
+		private final String seq;
+		private final int strand;
+
+		CachedHit(String contig, int mismatch, int start, int end, int length, String seq, int strand) {
+			this.contig = contig;
+			this.mismatch = mismatch;
+			this.start = start;
+			this.end = end;
+			this.length = length;
+			this.seq = seq;
+			this.strand = strand;
+		}
+	}
+}
@@ -0,0 +1,475 @@
+package ca.canada.inspection.commandpcr;
+
+import ca.canada.inspection.insilicopcr.Sample;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Packed store of fasta samples, for reference genomes screened again and again against new panels. Importing reads a
+// sample's files once and appends its bases to sequences.2bit, four to a byte, and a record to contigs.idx: the sample
+// name, the digest of its files, and per contig its id, description, offset, length and the runs of bases other than
+// A, C, G and T. Those read back as N, which the native search treats the same as any other code: only A, C, G and T
+// can match a primer.
+// A store folder given as input is a folder of samples like any other. Contig ids and lengths come from the index alone,
+// and a search decodes the bases of a sample from a read-only memory map straight into the buffer of a SequenceReader,
+// with no text to parse or decompress. A stored sample keeps the digest of the files it came from, and is cached under
+// that digest and FORMAT, as its bases may read back different from the files.
+// Samples are only ever added. Their bases are forced to disk before their record is appended, so an import that dies
+// leaves unreferenced bases at most, and a partial record that the next import cuts off.
+public class SampleStore {
+
+	public static final String INDEX_NAME = "contigs.idx";
+	public static final String SEQUENCE_NAME = "sequences.2bit";
+	// How stored bases read back, part of the result cache key of a stored sample
+	public static final String FORMAT = "2bit-acgtn";
+
+	private static final int MAGIC = 0x49504353; // "IPCS"
+	private static final int VERSION = 1;
+	private static final byte[] BASES = {'A', 'C', 'G', 'T'};
+	private static final byte[] CODES = new byte[128];
+	static {
+		Arrays.fill(CODES, (byte)-1);
+		for(int i = 0; i < BASES.length; i++) {
+			CODES[BASES[i]] = (byte)i;
+		}
+	}
+
+	// Stores already opened by this process, by folder
+	private static final ConcurrentHashMap<String, SampleStore> opened = new ConcurrentHashMap<String, SampleStore>();
+
+	private final File dir;
+	private final ArrayList<StoredSample> samples = new ArrayList<StoredSample>();
+	private final HashMap<String, Integer> byName = new HashMap<String, Integer>();
+	// Where the last complete record of the index ends, and the size of the index when it was read
+	private long indexEnd = 0;
+	private long indexLength = 0;
+
+	private SampleStore(File dir) {
+		this.dir = dir;
+	}
+
+	// A folder holding a store index
+	public static boolean isStore(File file) {
+		return file.isDirectory() && new File(file, INDEX_NAME).isFile();
+	}
+
+	// Queries name a stored sample as <store>/contigs.idx#<number>, where the sample files of a folder would be
+	public static boolean isQuery(String query) {
+		int hash = query.lastIndexOf('#');
+		return hash > 0 && query.substring(0, hash).endsWith(File.separator + INDEX_NAME) && query.substring(hash + 1).matches("\\d+");
+	}
+
+	// The store in a folder, read again only when an import has added to it since
+	public static SampleStore open(File dir) throws IOException {
+		String key = dir.getAbsolutePath();
+		SampleStore store = opened.get(key);
+		if(store == null || new File(dir, INDEX_NAME).length() != store.indexLength) {
+			store = read(dir.getAbsoluteFile());
+			opened.put(key, store);
+		}
+		return store;
+	}
+
+	// Every sample of the store, as fasta samples whose only file is their query
+	public HashMap<String, Sample> createSampleDict() {
+		HashMap<String, Sample> sampleDict = new HashMap<String, Sample>();
+		for(int i = 0; i < samples.size(); i++) {
+			Sample sample = new Sample();
+			sample.setName(samples.get(i).name);
+			sample.setFileType("fasta");
+			sample.setFile(new File(dir, INDEX_NAME).getAbsolutePath() + "#" + i);
+			sampleDict.put(sample.getName(), sample);
+		}
+		return sampleDict;
+	}
+
+	// The digest of the files a stored sample was imported from, or null for a sample of plain files
+	public static String digest(Sample sample) throws IOException {
+		if(sample.getFiles().size() != 1 || !isQuery(sample.getFiles().getFirst())) {
+			return null;
+		}
+		return sampleOf(sample.getFiles().getFirst()).digest;
+	}
+
+	// The bases of the sample a query names, or the size of its file, which is about the same for fasta
+	public static long bases(String query) {
+		if(!isQuery(query)) {
+			return new File(query).length();
+		}
+		try {
+			long bases = 0;
+			for(Contig contig : sampleOf(query).contigs) {
+				bases += contig.length;
+			}
+			return bases;
+		}catch(IOException e) {
+			return 0;
+		}
+	}
+
+	// What reading a query takes from disk: the packed bases of a stored sample, or the size of its file
+	public static long bytes(String query) {
+		if(!isQuery(query)) {
+			return new File(query).length();
+		}
+		try {
+			StoredSample sample = sampleOf(query);
+			return sample.end() - sample.start();
+		}catch(IOException e) {
+			return 0;
+		}
+	}
+
+	// Adds the contigs of a stored sample from the index, without reading its bases
+	public static void addContigs(Sample sample, String query) throws IOException {
+		for(Contig contig : sampleOf(query).contigs) {
+			synchronized(sample) {
+				sample.addContig(contig.id, contig.description);
+				sample.addContigLength(contig.id, contig.length);
+			}
+		}
+	}
+
+	// Writes a stored sample back out as fasta, for searches that need a file such as blastn
+	public static void writeFasta(String query, File fasta) throws IOException {
+		fasta.getParentFile().mkdirs();
+		try(Cursor cursor = cursor(query); OutputStream out = new BufferedOutputStream(new FileOutputStream(fasta), 1 << 16)) {
+			byte[] seq = new byte[0];
+			while(cursor.next()) {
+				if(seq.length < cursor.getLength() + 3) {
+					seq = new byte[cursor.getLength() + 3];
+				}
+				int length = cursor.decode(seq);
+				out.write('>');
+				out.write(cursor.getHeader());
+				out.write('\n');
+				out.write(seq, 0, length);
+				out.write('\n');
+			}
+		}
+	}
+
+	// Reads the contigs of the sample a query names, in their order in the index
+	public static Cursor cursor(String query) throws IOException {
+		return storeOf(query).new Cursor(sampleOf(query));
+	}
+
+	private static SampleStore storeOf(String query) throws IOException {
+		return open(new File(query.substring(0, query.lastIndexOf('#'))).getParentFile());
+	}
+
+	private static StoredSample sampleOf(String query) throws IOException {
+		SampleStore store = storeOf(query);
+		int number = Integer.parseInt(query.substring(query.lastIndexOf('#') + 1));
+		if(number >= store.samples.size()) {
+			throw new IOException("No sample " + number + " in the store " + store.dir.getAbsolutePath());
+		}
+		return store.samples.get(number);
+	}
+
+	// Appends the fasta samples of a sample dictionary to the store in dir, creating it if needed. Samples already in the
+	// store under the same name are left as they are, so an import can be rerun over a folder that gained a few genomes
+	public static void importSamples(File dir, HashMap<String, Sample> sampleDict) throws IOException {
+		dir.mkdirs();
+		File indexFile = new File(dir, INDEX_NAME);
+		try(FileChannel index = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+				FileLock lock = index.lock();
+				FileChannel sequences = FileChannel.open(new File(dir, SEQUENCE_NAME).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			SampleStore store = read(dir.getAbsoluteFile());
+			if(index.size() > store.indexEnd) {
+				System.out.println("Dropping the incomplete last record of " + indexFile.getAbsolutePath());
+				index.truncate(store.indexEnd);
+			}
+			if(store.indexEnd == 0) {
+				ByteBuffer header = ByteBuffer.allocate(8).putInt(MAGIC).putInt(VERSION).flip();
+				index.write(header, 0);
+				store.indexEnd = 8;
+			}
+			TreeMap<String, Sample> sorted = new TreeMap<String, Sample>(sampleDict);
+			for(String key : sorted.keySet()) {
+				Sample sample = sorted.get(key);
+				if(!sample.getFileType().equals("fasta")) {
+					System.out.println("Skipping " + sample.getName() + ", only fasta samples can be stored");
+					continue;
+				}
+				String digest = ResultCache.sampleDigest(sample);
+				Integer existing = store.byName.get(sample.getName());
+				if(existing != null) {
+					System.out.println("Skipping " + sample.getName() + (store.samples.get(existing).digest.equals(digest)
+							? ", already in the store" : ", the store holds another sample of that name"));
+					continue;
+				}
+				StoredSample stored = store.pack(sample, digest, sequences);
+				sequences.force(false);
+				ByteBuffer record = ByteBuffer.wrap(stored.toBytes());
+				while(record.hasRemaining()) {
+					store.indexEnd += index.write(record, store.indexEnd);
+				}
+				index.force(false);
+				store.byName.put(stored.name, store.samples.size());
+				store.samples.add(stored);
+				System.out.println("Stored " + stored.name + ": " + stored.contigs.size() + " contig(s), " + bases(stored) + " bp");
+			}
+		}
+	}
+
+	// Appends the bases of every contig of a sample at the end of the sequence file
+	private StoredSample pack(Sample sample, String digest, FileChannel sequences) throws IOException {
+		StoredSample stored = new StoredSample(sample.getName(), digest);
+		ByteBuffer packed = ByteBuffer.allocate(1 << 16);
+		long offset = sequences.size();
+		for(String file : sample.getFiles()) {
+			try(SequenceReader reader = SequenceReader.open(file)) {
+				while(reader.next()) {
+					byte[] seq = reader.getSequence();
+					int length = reader.getSequenceLength();
+					ArrayList<Integer> runs = new ArrayList<Integer>();
+					int code = 0;
+					for(int i = 0; i < length; i++) {
+						int base = seq[i] < 0 ? -1 : CODES[seq[i]];
+						if(base < 0) {
+							// Other bases are packed as A and listed as runs
+							int last = runs.size() - 2;
+							if(last >= 0 && runs.get(last) + runs.get(last + 1) == i) {
+								runs.set(last + 1, runs.get(last + 1) + 1);
+							}else {
+								runs.add(i);
+								runs.add(1);
+							}
+							base = 0;
+						}
+						code = code << 2 | base;
+						if((i & 3) == 3) {
+							packed.put((byte)code);
+							code = 0;
+							if(!packed.hasRemaining()) {
+								offset += write(sequences, packed, offset);
+							}
+						}
+					}
+					if((length & 3) != 0) {
+						packed.put((byte)(code << 2 * (4 - (length & 3))));
+					}
+					int[] exceptions = new int[runs.size()];
+					for(int i = 0; i < exceptions.length; i++) {
+						exceptions[i] = runs.get(i);
+					}
+					long start = offset + packed.position() - (length + 3) / 4;
+					stored.contigs.add(new Contig(reader.getId(), reader.getDescription(), start, length, exceptions));
+					if(!packed.hasRemaining()) {
+						offset += write(sequences, packed, offset);
+					}
+				}
+			}
+		}
+		write(sequences, packed, offset);
+		return stored;
+	}
+
+	private static int write(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+		buffer.flip();
+		int written = 0;
+		while(buffer.hasRemaining()) {
+			written += channel.write(buffer, offset + written);
+		}
+		buffer.clear();
+		return written;
+	}
+
+	private static long bases(StoredSample sample) {
+		long bases = 0;
+		for(Contig contig : sample.contigs) {
+			bases += contig.length;
+		}
+		return bases;
+	}
+
+	// Reads the complete records of the index of dir, an empty store when there is none
+	private static SampleStore read(File dir) throws IOException {
+		SampleStore store = new SampleStore(dir);
+		File indexFile = new File(dir, INDEX_NAME);
+		if(!indexFile.isFile() || indexFile.length() == 0) {
+			return store;
+		}
+		byte[] bytes = Files.readAllBytes(indexFile.toPath());
+		store.indexLength = bytes.length;
+		ByteArrayInputStream buffer = new ByteArrayInputStream(bytes);
+		DataInputStream in = new DataInputStream(buffer);
+		try {
+			if(in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException(indexFile.getAbsolutePath() + " is not a sample store index of this version");
+			}
+			store.indexEnd = 8;
+			while(buffer.available() > 0) {
+				StoredSample sample = StoredSample.read(in);
+				store.indexEnd = bytes.length - buffer.available();
+				store.byName.put(sample.name, store.samples.size());
+				store.samples.add(sample);
+			}
+		}catch(EOFException e) {
+			// A record cut short by an import that did not finish, ignored until the next import drops it
+		}
+		return store;
+	}
+
+	// The contigs of one stored sample, read one at a time from a memory map of its bases
+	public class Cursor implements AutoCloseable {
+
+		private final StoredSample sample;
+		private final MappedByteBuffer map;
+		private final byte[] packed = new byte[1 << 16];
+		private int next = 0;
+		private Contig contig = null;
+
+		private Cursor(StoredSample sample) throws IOException {
+			this.sample = sample;
+			try(FileChannel channel = FileChannel.open(new File(dir, SEQUENCE_NAME).toPath(), StandardOpenOption.READ)) {
+				this.map = channel.map(FileChannel.MapMode.READ_ONLY, sample.start(), sample.end() - sample.start());
+			}
+		}
+
+		public boolean next() {
+			if(next == sample.contigs.size()) {
+				return false;
+			}
+			contig = sample.contigs.get(next++);
+			return true;
+		}
+
+		// The id and description of the current contig, as a fasta header without the '>'
+		public byte[] getHeader() {
+			String header = contig.description.isEmpty() ? contig.id : contig.id + " " + contig.description;
+			return header.getBytes(StandardCharsets.UTF_8);
+		}
+
+		public int getLength() {
+			return contig.length;
+		}
+
+		// Decodes the bases of the current contig into seq, which needs room for three bases past its length
+		public int decode(byte[] seq) {
+			int from = (int)(contig.offset - sample.start());
+			int bytes = (contig.length + 3) / 4;
+			int p = 0;
+			for(int done = 0; done < bytes; ) {
+				int n = Math.min(packed.length, bytes - done);
+				map.get(from + done, packed, 0, n);
+				for(int i = 0; i < n; i++) {
+					int b = packed[i] & 0xFF;
+					seq[p] = BASES[b >>> 6];
+					seq[p + 1] = BASES[b >>> 4 & 3];
+					seq[p + 2] = BASES[b >>> 2 & 3];
+					seq[p + 3] = BASES[b & 3];
+					p += 4;
+				}
+				done += n;
+			}
+			for(int i = 0; i < contig.exceptions.length; i += 2) {
+				Arrays.fill(seq, contig.exceptions[i], contig.exceptions[i] + contig.exceptions[i + 1], (byte)'N');
+			}
+			return contig.length;
+		}
+
+		// The map is released by the garbage collector
+		public void close() {
+			contig = null;
+		}
+	}
+
+	// A sample of the store and where its contigs are in the sequence file
+	private static class StoredSample {
+
+		private final String name;
+		private final String digest;
+		private final ArrayList<Contig> contigs = new ArrayList<Contig>();
+
+		StoredSample(String name, String digest) {
+			this.name = name;
+			this.digest = digest;
+		}
+
+		// The contigs of a sample are packed one after the other
+		long start() {
+			return contigs.isEmpty() ? 0 : contigs.getFirst().offset;
+		}
+
+		long end() {
+			return contigs.isEmpty() ? 0 : contigs.getLast().offset + (contigs.getLast().length + 3) / 4;
+		}
+
+		byte[] toBytes() throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeUTF(name);
+			out.writeUTF(digest);
+			out.writeInt(contigs.size());
+			for(Contig contig : contigs) {
+				out.writeUTF(contig.id);
+				out.writeUTF(contig.description);
+				out.writeLong(contig.offset);
+				out.writeInt(contig.length);
+				out.writeInt(contig.exceptions.length);
+				for(int value : contig.exceptions) {
+					out.writeInt(value);
+				}
+			}
+			out.flush();
+			return bytes.toByteArray();
+		}
+
+		static StoredSample read(DataInputStream in) throws IOException {
+			StoredSample sample = new StoredSample(in.readUTF(), in.readUTF());
+			int count = in.readInt();
+			for(int i = 0; i < count; i++) {
+				String id = in.readUTF();
+				String description = in.readUTF();
+				long offset = in.readLong();
+				int length = in.readInt();
+				int[] exceptions = new int[in.readInt()];
+				for(int j = 0; j < exceptions.length; j++) {
+					exceptions[j] = in.readInt();
+				}
+				sample.contigs.add(new Contig(id, description, offset, length, exceptions));
+			}
+			return sample;
+		}
+	}
+
+	// A contig's bases start on a byte of their own, exceptions holds the start and length of each run of other bases
+	private static class Contig {
+
+		private final String id;
+		private final String description;
+		private final long offset;
+		private final int length;
+		private final int[] exceptions;
+
+		Contig(String id, String description, long offset, int length, int[] exceptions) {
+			this.id = id;
+			this.description = description;
+			this.offset = offset;
+			this.length = length;
+			this.exceptions = exceptions;
+		}
+	}
+}
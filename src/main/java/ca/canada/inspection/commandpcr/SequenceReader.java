@@ -0,0 +1,325 @@
+package ca.canada.inspection.commandpcr;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+// Streaming fasta/fastq reader over a file channel, gzipped or not (detected from the gzip magic bytes). Records are
+// read one at a time into buffers that are reused for the next record, so no String is made per line: the header,
+// sequence and quality are byte slices valid until the next call to next(). Multi-line fasta sequences are joined, and
+// sequences are upper cased as they are copied since every consumer compares them against upper case primers.
+// Samples of a SampleStore are read through the same interface, their records decoded from the store instead of parsed.
+public class SequenceReader implements AutoCloseable {
+
+	private final FileChannel channel;
+	private final InputStream in;
+	private final SampleStore.Cursor cursor;
+	private final byte[] buffer = new byte[1 << 16];
+	private final ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+	private int position = 0;
+	private int limit = 0;
+	private boolean eof = false;
+
+	private byte[] header = new byte[256];
+	private int headerLength = 0;
+	private byte[] sequence = new byte[1 << 16];
+	private int sequenceLength = 0;
+	private byte[] quality = new byte[0];
+	private int qualityLength = 0;
+	private boolean fastq = false;
+	private boolean started = false;
+
+	public SequenceReader(File file) throws IOException {
+		FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		ByteBuffer magic = ByteBuffer.allocate(2);
+		fileChannel.read(magic, 0);
+		if(magic.position() == 2 && (magic.get(0) & 0xFF) == 0x1F && (magic.get(1) & 0xFF) == 0x8B) {
+			this.channel = null;
+			this.in = new GZIPInputStream(Channels.newInputStream(fileChannel), 1 << 16);
+		}else {
+			this.channel = fileChannel;
+			this.in = null;
+		}
+		this.cursor = null;
+	}
+
+	// Reads uncompressed records from a stream, such as reads cached in memory
+	public SequenceReader(InputStream in) {
+		this.channel = null;
+		this.in = in;
+		this.cursor = null;
+	}
+
+	private SequenceReader(SampleStore.Cursor cursor) {
+		this.channel = null;
+		this.in = null;
+		this.cursor = cursor;
+	}
+
+	// Reads a sample file, or the stored sample a SampleStore query names
+	public static SequenceReader open(String query) throws IOException {
+		return SampleStore.isQuery(query) ? new SequenceReader(SampleStore.cursor(query)) : new SequenceReader(new File(query));
+	}
+
+	// Moves to the next record, false once the input is exhausted
+	public boolean next() throws IOException {
+		if(cursor != null) {
+			return nextStored();
+		}
+		if(!started) {
+			started = true;
+			int first = skipBlank();
+			if(first < 0) {
+				return false;
+			}
+			fastq = first == '@';
+		}
+		headerLength = 0;
+		sequenceLength = 0;
+		qualityLength = 0;
+		int b = peek();
+		while(b == '\n' || b == '\r') {
+			position++;
+			b = peek();
+		}
+		if(b < 0) {
+			return false;
+		}
+		position++; // The '>' or '@'
+		headerLength = readHeader();
+		if(fastq) {
+			appendLine();
+			skipLine(); // The '+' line
+			qualityLength = appendQuality();
+		}else {
+			while((b = peek()) >= 0 && b != '>') {
+				appendLine();
+			}
+		}
+		return true;
+	}
+
+	public boolean isFastq() {
+		return this.fastq;
+	}
+
+	public byte[] getHeader() {
+		return this.header;
+	}
+
+	public int getHeaderLength() {
+		return this.headerLength;
+	}
+
+	public byte[] getSequence() {
+		return this.sequence;
+	}
+
+	public int getSequenceLength() {
+		return this.sequenceLength;
+	}
+
+	public byte[] getQuality() {
+		return this.quality;
+	}
+
+	public int getQualityLength() {
+		return this.qualityLength;
+	}
+
+	// The first word of the header, which is how contigs are identified in the reports
+	public String getId() {
+		int end = 0;
+		while(end < headerLength && !Character.isWhitespace(header[end])) {
+			end++;
+		}
+		return new String(header, 0, end);
+	}
+
+	// The rest of the header after the id, or an empty string
+	public String getDescription() {
+		int start = 0;
+		while(start < headerLength && !Character.isWhitespace(header[start])) {
+			start++;
+		}
+		return start < headerLength ? new String(header, start + 1, headerLength - start - 1).trim() : "";
+	}
+
+	// The whole header line without the leading '>' or '@'
+	public String getHeaderString() {
+		return new String(header, 0, headerLength).trim();
+	}
+
+	public void close() throws IOException {
+		if(cursor != null) {
+			cursor.close();
+		}
+		if(in != null) {
+			in.close();
+		}
+		if(channel != null) {
+			channel.close();
+		}
+	}
+
+	// Decodes the next contig of a stored sample into the buffers
+	private boolean nextStored() {
+		if(!cursor.next()) {
+			return false;
+		}
+		byte[] stored = cursor.getHeader();
+		if(stored.length > header.length) {
+			header = new byte[Math.max(header.length * 2, stored.length)];
+		}
+		System.arraycopy(stored, 0, header, 0, stored.length);
+		headerLength = stored.length;
+		// Bases are decoded four at a time, a few past the end
+		if(cursor.getLength() + 3 > sequence.length) {
+			sequence = new byte[Math.max(sequence.length * 2, cursor.getLength() + 3)];
+		}
+		sequenceLength = cursor.decode(sequence);
+		qualityLength = 0;
+		return true;
+	}
+
+	// Reads the rest of the current line into the header buffer, returns its length without the line break
+	private int readHeader() throws IOException {
+		int length = 0;
+		while(true) {
+			if(position == limit && !fill()) {
+				return length;
+			}
+			int end = position;
+			while(end < limit && buffer[end] != '\n') {
+				end++;
+			}
+			if(length + end - position > header.length) {
+				header = Arrays.copyOf(header, Math.max(header.length * 2, length + end - position));
+			}
+			System.arraycopy(buffer, position, header, length, end - position);
+			length += end - position;
+			position = end;
+			if(end < limit) {
+				position++;
+				while(length > 0 && header[length - 1] == '\r') {
+					length--;
+				}
+				return length;
+			}
+		}
+	}
+
+	private void skipLine() throws IOException {
+		while(true) {
+			if(position == limit && !fill()) {
+				return;
+			}
+			int end = position;
+			while(end < limit && buffer[end] != '\n') {
+				end++;
+			}
+			position = end;
+			if(end < limit) {
+				position++;
+				return;
+			}
+		}
+	}
+
+	// Appends a line to the sequence, upper cased and without line breaks or spaces
+	private void appendLine() throws IOException {
+		while(true) {
+			if(position == limit && !fill()) {
+				return;
+			}
+			int end = position;
+			while(end < limit && buffer[end] != '\n') {
+				end++;
+			}
+			if(sequenceLength + end - position > sequence.length) {
+				sequence = Arrays.copyOf(sequence, Math.max(sequence.length * 2, sequenceLength + end - position));
+			}
+			for(int i = position; i < end; i++) {
+				byte b = buffer[i];
+				if(b > ' ') {
+					sequence[sequenceLength++] = b >= 'a' && b <= 'z' ? (byte)(b - 32) : b;
+				}
+			}
+			position = end;
+			if(end < limit) {
+				position++;
+				return;
+			}
+		}
+	}
+
+	// The quality line of a fastq record, as long as its sequence
+	private int appendQuality() throws IOException {
+		if(quality.length < sequenceLength) {
+			quality = new byte[Math.max(sequenceLength, quality.length * 2)];
+		}
+		int length = 0;
+		while(true) {
+			if(position == limit && !fill()) {
+				return length;
+			}
+			int end = position;
+			while(end < limit && buffer[end] != '\n') {
+				end++;
+			}
+			int n = Math.min(end - position, quality.length - length);
+			System.arraycopy(buffer, position, quality, length, n);
+			length += n;
+			position = end;
+			if(end < limit) {
+				position++;
+				while(length > 0 && quality[length - 1] == '\r') {
+					length--;
+				}
+				return length;
+			}
+		}
+	}
+
+	// The first byte that is not a blank line, without consuming it
+	private int skipBlank() throws IOException {
+		int b;
+		while((b = peek()) == '\n' || b == '\r' || b == ' ') {
+			position++;
+		}
+		return b;
+	}
+
+	private int peek() throws IOException {
+		if(position == limit && !fill()) {
+			return -1;
+		}
+		return buffer[position] & 0xFF;
+	}
+
+	private boolean fill() throws IOException {
+		if(eof) {
+			return false;
+		}
+		int n;
+		if(channel != null) {
+			wrapped.clear();
+			n = channel.read(wrapped);
+		}else {
+			n = in.read(buffer, 0, buffer.length);
+		}
+		position = 0;
+		limit = Math.max(n, 0);
+		if(n <= 0) {
+			eof = true;
+			return false;
+		}
+		return true;
+	}
+}
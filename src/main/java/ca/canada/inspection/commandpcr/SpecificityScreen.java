@@ -0,0 +1,242 @@
+package ca.canada.inspection.commandpcr;
+
+import ca.canada.inspection.insilicopcr.BlastResult;
+import ca.canada.inspection.insilicopcr.Sample;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Specificity screen of a primer panel over a genome collection: which primer binds which genome and which assay gives
+// a product in which genome. Every genome is read once by the native search with the whole panel prepared, one genome
+// per core, and reduced to its cells right away, so only the counts are kept however large the collection is.
+// A primer cell holds the number of sites within the mismatch limit, on either strand, and the fewest mismatches among
+// them. An assay cell holds the number of products, paired exactly as in the consolidated report. With a targets file
+// naming the genomes each assay is meant to detect, every assay also gets its inclusivity (targets with a product) and
+// exclusivity (other genomes without one).
+public class SpecificityScreen {
+
+	private final HashMap<String, String> primerDict;
+	private final NativePrimerSearch search;
+	private final int maxAmplicon;
+	private final boolean qPCR;
+	private final ConcurrentHashMap<String, Cells> genomes = new ConcurrentHashMap<String, Cells>();
+
+	// search is prepared over the whole primerDict
+	public SpecificityScreen(HashMap<String, String> primerDict, NativePrimerSearch search, int maxAmplicon) {
+		this.primerDict = primerDict;
+		this.search = search;
+		this.maxAmplicon = maxAmplicon;
+		this.qPCR = CommandMethods.isQPCR(primerDict);
+	}
+
+	// Screens every fasta sample on a pool of threads
+	public void run(HashMap<String, Sample> sampleDict, int threads) throws InterruptedException {
+		ArrayList<String> keys = new ArrayList<String>();
+		for(String key : new TreeSet<String>(sampleDict.keySet())) {
+			if(sampleDict.get(key).getFileType().equals("fasta")) {
+				keys.add(key);
+			}else {
+				System.out.println("Skipping " + sampleDict.get(key).getName() + ", the specificity screen reads assemblies only");
+			}
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+		AtomicInteger done = new AtomicInteger();
+		for(String key : keys) {
+			futures.add(pool.submit(() -> {
+				screen(key, sampleDict.get(key));
+				System.out.println("Screened " + key + " (" + done.incrementAndGet() + "/" + keys.size() + ")");
+			}));
+		}
+		try {
+			for(int i = 0; i < futures.size(); i++) {
+				try {
+					futures.get(i).get();
+				}catch(ExecutionException e) {
+					System.out.println("Genome " + keys.get(i) + " failed");
+					e.getCause().printStackTrace();
+				}
+			}
+		}finally {
+			pool.shutdownNow();
+		}
+	}
+
+	// Searches one genome in a sample of its own, which is dropped once its cells are counted
+	private void screen(String key, Sample sample) {
+		Sample scratch = new Sample();
+		scratch.setName(sample.getName());
+		scratch.setFileType(sample.getFileType());
+		scratch.setFiles(new ArrayList<String>(sample.getFiles()));
+		for(String query : scratch.getFiles()) {
+			search.search(scratch, query);
+		}
+		Cells cells = new Cells();
+		for(String primer : scratch.getBlastResults().keySet()) {
+			for(BlastResult result : scratch.getBlastResults().get(primer)) {
+				int[] cell = cells.primers.computeIfAbsent(primer, name -> new int[] {0, Integer.MAX_VALUE});
+				cell[0]++;
+				cell[1] = Math.min(cell[1], result.getMismatch());
+			}
+		}
+		// The products are the rows the consolidated report would have, counted per assay
+		StringWriter rows = new StringWriter();
+		try {
+			CommandMethods.writeSampleReport(rows, key, scratch, primerDict, qPCR, maxAmplicon);
+		}catch(IOException e) {
+			e.printStackTrace();
+		}
+		for(String row : rows.toString().split("\\R")) {
+			String[] fields = row.split("\t");
+			if(fields.length > 1) {
+				cells.products.merge(fields[1], 1, Integer::sum);
+			}
+		}
+		genomes.put(key, cells);
+	}
+
+	// The genomes each assay is meant to detect, from lines of assay and genome separated by a tab
+	public static HashMap<String, TreeSet<String>> readTargets(File targetsFile) throws IOException {
+		HashMap<String, TreeSet<String>> targets = new HashMap<String, TreeSet<String>>();
+		if(targetsFile == null) {
+			return targets;
+		}
+		try(BufferedReader reader = new BufferedReader(new FileReader(targetsFile))) {
+			String line;
+			while((line = reader.readLine()) != null) {
+				String[] fields = line.trim().split("\t");
+				if(fields.length < 2 || fields[0].startsWith("#")) {
+					continue;
+				}
+				targets.computeIfAbsent(fields[0].trim(), assay -> new TreeSet<String>()).add(fields[1].trim());
+			}
+		}
+		return targets;
+	}
+
+	// Writes the primer hit matrix, dense (a column per genome) or sparse (a row per cell with hits), the assay product
+	// cells and the assay summary into dir
+	public void write(File dir, boolean dense, HashMap<String, TreeSet<String>> targets) throws IOException {
+		dir.mkdirs();
+		String sep = System.lineSeparator();
+		TreeSet<String> genomeNames = new TreeSet<String>(genomes.keySet());
+		TreeSet<String> primers = new TreeSet<String>(primerDict.keySet());
+		if(dense) {
+			// A cell is hits/fewest mismatches, 0 when the primer has no site in the genome
+			try(Writer writer = new FileWriter(new File(dir, "hit_matrix.tsv"))) {
+				writer.write("Primer\t" + String.join("\t", genomeNames) + sep);
+				for(String primer : primers) {
+					StringBuilder line = new StringBuilder(primer);
+					for(String genome : genomeNames) {
+						int[] cell = genomes.get(genome).primers.get(primer);
+						line.append('\t').append(cell == null ? "0" : cell[0] + "/" + cell[1]);
+					}
+					writer.write(line + sep);
+				}
+			}
+		}else {
+			try(Writer writer = new FileWriter(new File(dir, "hits.tsv"))) {
+				writer.write("Primer\tGenome\tHits\tMinMismatches" + sep);
+				for(String primer : primers) {
+					for(String genome : genomeNames) {
+						int[] cell = genomes.get(genome).primers.get(primer);
+						if(cell != null) {
+							writer.write(primer + "\t" + genome + "\t" + cell[0] + "\t" + cell[1] + sep);
+						}
+					}
+				}
+			}
+		}
+		TreeSet<String> assays = assays();
+		try(Writer writer = new FileWriter(new File(dir, "products.tsv"))) {
+			writer.write("Assay\tGenome\tProducts" + sep);
+			for(String assay : assays) {
+				for(String genome : genomeNames) {
+					Integer products = genomes.get(genome).products.get(assay);
+					if(products != null) {
+						writer.write(assay + "\t" + genome + "\t" + products + sep);
+					}
+				}
+			}
+		}
+		try(Writer writer = new FileWriter(new File(dir, "assay_summary.tsv"))) {
+			writer.write("Assay\tGenomes\tGenomesWithProduct\tTargets\tTargetsDetected\tInclusivity\tNonTargets\tNonTargetsDetected\tExclusivity"
+					+ "\tMissedTargets\tDetectedNonTargets" + sep);
+			for(String assay : assays) {
+				TreeSet<String> detected = new TreeSet<String>();
+				for(String genome : genomeNames) {
+					if(genomes.get(genome).products.containsKey(assay)) {
+						detected.add(genome);
+					}
+				}
+				StringBuilder line = new StringBuilder(assay + "\t" + genomeNames.size() + "\t" + detected.size());
+				TreeSet<String> assayTargets = targets.get(assay);
+				if(assayTargets == null) {
+					line.append("\tNA\tNA\tNA\tNA\tNA\tNA\t\t");
+				}else {
+					// Targets are counted among the genomes screened only
+					List<String> missed = new ArrayList<String>();
+					List<String> falsePositives = new ArrayList<String>();
+					int targetCount = 0;
+					for(String genome : genomeNames) {
+						boolean target = assayTargets.contains(genome);
+						boolean found = detected.contains(genome);
+						targetCount += target ? 1 : 0;
+						if(target && !found) {
+							missed.add(genome);
+						}else if(!target && found) {
+							falsePositives.add(genome);
+						}
+					}
+					int nonTargets = genomeNames.size() - targetCount;
+					line.append('\t').append(targetCount).append('\t').append(targetCount - missed.size())
+							.append('\t').append(ratio(targetCount - missed.size(), targetCount))
+							.append('\t').append(nonTargets).append('\t').append(falsePositives.size())
+							.append('\t').append(ratio(nonTargets - falsePositives.size(), nonTargets))
+							.append('\t').append(String.join(",", missed)).append('\t').append(String.join(",", falsePositives));
+				}
+				writer.write(line + sep);
+			}
+		}
+	}
+
+	// Assays named the way the consolidated report names them, from their forward primers
+	private TreeSet<String> assays() {
+		TreeSet<String> assays = new TreeSet<String>();
+		for(String primer : primerDict.keySet()) {
+			String[] splitPrimer = primer.split("-");
+			if(splitPrimer.length > 1 && splitPrimer[splitPrimer.length - 1].startsWith("F")) {
+				assays.add(primer.substring(0, primer.lastIndexOf('-')));
+			}
+		}
+		return assays;
+	}
+
+	private static String ratio(int part, int whole) {
+		return whole == 0 ? "NA" : String.format(Locale.ROOT, "%.4f", (double)part / whole);
+	}
+
+	// What one genome contributes: hits and fewest mismatches per primer, products per assay
+	private static class Cells {
+
+		private final TreeMap<String, int[]> primers = new TreeMap<String, int[]>();
+		private final TreeMap<String, Integer> products = new TreeMap<String, Integer>();
+	}
+}
@@ -0,0 +1,126 @@
+package ca.canada.inspection.commandpcr;
+
+import ca.canada.inspection.insilicopcr.Sample;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Properties;
+
+// Which stages of a sample are done and the file each one left, so a run that was stopped can be picked up with --resume.
+// Every sample has a journal in the journal folder of the output directory, rewritten through a temporary file each time
+// one of its stages finishes, so it only ever lists finished stages. A stage is recorded with the size and modification
+// time of its file. A resumed run skips a stage when its file is still exactly that, the sample's files and settings
+// are those it was run with, and every stage before it was skipped too: the first stage that runs again makes those
+// after it run again. Searches are not journaled, the hits of a finished sample are in the result cache and every run
+// takes them from there.
+public class StageJournal {
+
+	public static final String DIR_NAME = "journal";
+
+	private final File file;
+	private final String settings;
+	private final Properties properties = new Properties();
+	private final ArrayList<String> stages = new ArrayList<String>();
+	private boolean resuming;
+
+	// settings holds whatever else the stages depend on. Without resume the journal is started over
+	public StageJournal(File journalDir, Sample sample, String settings, boolean resume) {
+		this.file = new File(journalDir, sample.getName() + ".properties");
+		this.settings = inputs(sample) + settings;
+		this.resuming = resume && read();
+		if(!resuming) {
+			properties.clear();
+			stages.clear();
+		}
+	}
+
+	// True when a resumed run can skip this stage, as it finished before and its file is untouched since
+	public boolean isDone(String stage, String artifact) {
+		if(!resuming) {
+			return false;
+		}
+		File output = new File(artifact);
+		resuming = stages.contains(stage) && artifact.equals(properties.getProperty(stage + ".file"))
+				&& Long.toString(output.length()).equals(properties.getProperty(stage + ".size"))
+				&& Long.toString(output.lastModified()).equals(properties.getProperty(stage + ".mtime"))
+				&& output.isFile();
+		return resuming;
+	}
+
+	// Records a stage as finished, when it left its file, and forgets the stages after it
+	public void complete(String stage, String artifact) {
+		File output = new File(artifact);
+		if(!output.isFile()) {
+			return;
+		}
+		int at = stages.indexOf(stage);
+		if(at >= 0) {
+			for(String later : stages.subList(at, stages.size())) {
+				properties.remove(later + ".file");
+				properties.remove(later + ".size");
+				properties.remove(later + ".mtime");
+			}
+			stages.subList(at, stages.size()).clear();
+		}
+		stages.add(stage);
+		properties.setProperty(stage + ".file", artifact);
+		properties.setProperty(stage + ".size", Long.toString(output.length()));
+		properties.setProperty(stage + ".mtime", Long.toString(output.lastModified()));
+		write();
+	}
+
+	// The sample's files as they are now, a changed input makes every stage run again
+	private static String inputs(Sample sample) {
+		StringBuilder inputs = new StringBuilder();
+		for(String input : sample.getFiles()) {
+			File inputFile = new File(input);
+			inputs.append(inputFile.getAbsolutePath()).append('\t').append(inputFile.length()).append('\t').append(inputFile.lastModified()).append('\n');
+		}
+		return inputs.toString();
+	}
+
+	// Loads the journal, true when there is one for the same inputs and settings
+	private boolean read() {
+		if(!file.isFile()) {
+			return false;
+		}
+		try(Reader reader = new FileReader(file)) {
+			properties.load(reader);
+		}catch(IOException e) {
+			return false;
+		}
+		if(!settings.equals(properties.getProperty("settings"))) {
+			return false;
+		}
+		String list = properties.getProperty("stages", "");
+		if(!list.isEmpty()) {
+			stages.addAll(Arrays.asList(list.split(",")));
+		}
+		return true;
+	}
+
+	// Written to a temporary file first and moved over the journal, so a run killed at any point leaves a whole journal
+	private void write() {
+		properties.setProperty("settings", settings);
+		properties.setProperty("stages", String.join(",", stages));
+		file.getParentFile().mkdirs();
+		File tmp = new File(file.getAbsolutePath() + ".tmp");
+		try {
+			try(Writer writer = new FileWriter(tmp)) {
+				properties.store(writer, "Finished stages, see --resume");
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}catch(IOException e) {
+			e.printStackTrace();
+			tmp.delete();
+		}
+	}
+}
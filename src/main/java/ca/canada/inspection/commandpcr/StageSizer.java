@@ -0,0 +1,149 @@
+package ca.canada.inspection.commandpcr;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+// Sizes the heap and thread count of each BBDuk/Tadpole subprocess from its input instead of giving every call half of
+// the physical memory and every core. The number of bases in a fastq file is estimated by reading a few MB from its
+// start, which also gives the compression ratio of gzipped files, and scaled up to the full file size.
+public class StageSizer {
+
+	private static final int SAMPLE_BYTES = 4 * 1024 * 1024;
+	private static final long BASES_PER_THREAD = 250000000L;
+
+	// Rough heap cost of one kmer held in a BBDuk reference or Tadpole kmer table, in bytes
+	private static final double BYTES_PER_KMER = 24;
+
+	// First round of baiting, the primers are the only reference so memory is mostly read buffers
+	public static StageSize bait(List<String> reads, int maxCores, int maxMemory) {
+		long bases = estimateBases(reads);
+		int threads = threadsFor(bases, maxCores);
+		return new StageSize(threads, clamp(1 + threads / 8, maxMemory));
+	}
+
+	// Second round of baiting, the first round matches become the reference and BBDuk also stores every kmer within
+	// hdist of them, roughly 3 * k * hdist extra kmers for each one at the default k of 27
+	public static StageSize rebait(List<String> reads, String ref, int mismatches, int maxCores, int maxMemory) {
+		long bases = estimateBases(reads);
+		long refBases = estimateBases(List.of(ref));
+		double kmers = refBases * (1 + 3.0 * 27 * mismatches);
+		int threads = threadsFor(bases, maxCores);
+		return new StageSize(threads, clamp(1 + threads / 8 + gigabytes(kmers * BYTES_PER_KMER), maxMemory));
+	}
+
+	// Assembly, Tadpole counts every kmer of its input, error kmers included
+	public static StageSize assemble(String in, int maxCores, int maxMemory) {
+		long bases = estimateBases(List.of(in));
+		int threads = threadsFor(bases, maxCores);
+		return new StageSize(threads, clamp(1 + gigabytes(bases * BYTES_PER_KMER * 1.5), maxMemory));
+	}
+
+	// Estimate the number of bases in a set of fasta/fastq files, gzipped or not
+	public static long estimateBases(List<String> files) {
+		long total = 0;
+		for(String path : files) {
+			File file = new File(path);
+			if(!file.exists()) {
+				continue;
+			}
+			try(CountingInputStream counter = new CountingInputStream(new FileInputStream(file))) {
+				InputStream in = file.getName().endsWith(".gz") ? new GZIPInputStream(counter) : counter;
+				BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+				long decompressed = 0;
+				long bases = 0;
+				long lineNumber = 0;
+				String line;
+				boolean fasta = false;
+				while(decompressed < SAMPLE_BYTES && (line = reader.readLine()) != null) {
+					decompressed += line.length() + 1;
+					if(lineNumber == 0) {
+						fasta = line.startsWith(">");
+					}
+					if(fasta ? !line.startsWith(">") : lineNumber % 4 == 1) {
+						bases += line.length();
+					}
+					lineNumber++;
+				}
+				if(decompressed == 0 || counter.getCount() == 0) {
+					continue;
+				}
+
+				// Scale the sample up by how much of the file (compressed or not) was consumed to read it
+				double fraction = Math.min(1.0, (double)counter.getCount() / file.length());
+				total += (long)(bases / fraction);
+			}catch(IOException e) {
+				e.printStackTrace();
+			}
+		}
+		return total;
+	}
+
+	private static int threadsFor(long bases, int maxCores) {
+		return (int)Math.max(1, Math.min(maxCores, (bases + BASES_PER_THREAD - 1) / BASES_PER_THREAD));
+	}
+
+	private static int gigabytes(double bytes) {
+		return (int)Math.ceil(bytes / 1000000000.0);
+	}
+
+	private static int clamp(int memory, int maxMemory) {
+		return Math.max(1, Math.min(memory, maxMemory));
+	}
+
+	// Threads and heap (in G) a single subprocess is started with, and reserves from the resource budget
+	public static class StageSize {
+
+		private final int threads;
+		private final int memory;
+
+		public StageSize(int threads, int memory) {
+			this.threads = threads;
+			this.memory = memory;
+		}
+
+		public int getThreads() {
+			return this.threads;
+		}
+
+		public int getMemory() {
+			return this.memory;
+		}
+	}
+
+	// Counts the bytes pulled from the underlying file, which is the compressed size for gzipped input
+	private static class CountingInputStream extends FilterInputStream {
+
+		private long count = 0;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		public int read() throws IOException {
+			int b = super.read();
+			if(b >= 0) {
+				count++;
+			}
+			return b;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if(n > 0) {
+				count += n;
+			}
+			return n;
+		}
+
+		long getCount() {
+			return this.count;
+		}
+	}
+}
@@ -0,0 +1,267 @@
+package ca.canada.inspection.commandpcr;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Performance record of a run, per stage of every sample: wall and CPU time, CPU time and peak resident memory of the
+// child processes, bytes read and written, reads and bases processed and hits found. A stage is started and ended on
+// the thread that does its work, and the static counters add to the innermost stage open on the calling thread, so the
+// code doing the work does not need to know which stage it is part of. A stage hands its counters to the stage around
+// it when it ends, which makes the stage around all of a sample's stages its total.
+// Written as metrics.tsv next to QAlog.txt at the end of a run, one row per stage.
+public class Telemetry {
+
+	public static final String FILE_NAME = "metrics.tsv";
+	public static final String NO_SAMPLE = "-";
+
+	private static final String HEADER = String.join("\t", new String[] {"sample", "stage", "start_ms", "queued_ms", "wall_ms",
+			"cpu_ms", "child_cpu_ms", "child_peak_rss_kb", "bytes_read", "bytes_written", "reads", "bases", "hits"});
+	// How often child processes are sampled, their CPU time and peak memory are gone once they exit
+	private static final long SAMPLE_MS = 200;
+	private static final Pattern INPUT_LINE = Pattern.compile("^Input:\\s+(\\d+) reads\\s+(\\d+) bases");
+	private static final Pattern PEAK_RSS = Pattern.compile("^VmHWM:\\s+(\\d+) kB");
+	private static final ThreadLocal<Stage> current = new ThreadLocal<Stage>();
+	private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+	private final long startTime = System.nanoTime();
+	private final ArrayList<Stage> stages = new ArrayList<Stage>();
+
+	// Opens a stage on the calling thread. queuedNanos is how long it waited for resources before it could start
+	public Stage start(String sample, String name, long queuedNanos) {
+		Stage stage = new Stage(sample, name, current.get(), queuedNanos);
+		current.set(stage);
+		return stage;
+	}
+
+	public Stage start(String sample, String name) {
+		return start(sample, name, 0);
+	}
+
+	// Closes a stage opened on the calling thread
+	public void end(Stage stage) {
+		stage.wall = System.nanoTime() - stage.start;
+		stage.cpu = threadCpuTime() - stage.cpuStart;
+		current.set(stage.parent);
+		if(stage.parent != null) {
+			stage.parent.add(stage);
+		}
+		synchronized(stages) {
+			stages.add(stage);
+		}
+	}
+
+	// Progress of the samples, with the time left at the pace of the samples done so far
+	public String progress(int done, int total) {
+		return done + "/" + total + ", " + eta(startTime, done, total);
+	}
+
+	// The time left to do total items, when done of them took since startNanos
+	public static String eta(long startNanos, long done, long total) {
+		if(done >= total) {
+			return "done";
+		}
+		if(done == 0) {
+			return "time left unknown";
+		}
+		long elapsed = System.nanoTime() - startNanos;
+		long left = TimeUnit.NANOSECONDS.toSeconds(elapsed / done * (total - done));
+		if(left >= 3600) {
+			return String.format("about %dh %02dm left", left / 3600, left % 3600 / 60);
+		}
+		return String.format("about %dm %02ds left", left / 60, left % 60);
+	}
+
+	public void write(File file) {
+		ArrayList<Stage> sorted;
+		synchronized(stages) {
+			sorted = new ArrayList<Stage>(stages);
+		}
+		sorted.sort(Comparator.comparing((Stage stage) -> stage.sample).thenComparingLong(stage -> stage.start));
+		try(FileWriter writer = new FileWriter(file)) {
+			writer.write(HEADER + System.lineSeparator());
+			for(Stage stage : sorted) {
+				writer.write(String.join("\t", new String[] {stage.sample, stage.name, Long.toString(ms(stage.start - startTime)),
+						Long.toString(ms(stage.queued)), Long.toString(ms(stage.wall)), Long.toString(ms(stage.cpu)),
+						Long.toString(stage.childCpu), Long.toString(stage.childPeakRss), Long.toString(stage.bytesRead),
+						Long.toString(stage.bytesWritten), Long.toString(stage.reads), Long.toString(stage.bases),
+						Long.toString(stage.hits)}) + System.lineSeparator());
+			}
+		}catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	// The size of an input file of the current stage
+	public static void read(String file) {
+		Stage stage = current.get();
+		if(stage != null) {
+			stage.bytesRead += SampleStore.bytes(file);
+		}
+	}
+
+	public static void read(List<String> files) {
+		for(String file : files) {
+			read(file);
+		}
+	}
+
+	// The size of an output file of the current stage
+	public static void written(String file) {
+		Stage stage = current.get();
+		if(stage != null) {
+			stage.bytesWritten += new File(file).length();
+		}
+	}
+
+	public static void reads(long reads, long bases) {
+		Stage stage = current.get();
+		if(stage != null) {
+			stage.reads += reads;
+			stage.bases += bases;
+		}
+	}
+
+	public static void hits(long hits) {
+		Stage stage = current.get();
+		if(stage != null) {
+			stage.hits += hits;
+		}
+	}
+
+	// The reads and bases of the "Input:" line BBDuk ends its log with
+	public static void readsFromLog(File log) {
+		String line;
+		try(BufferedReader reader = new BufferedReader(new FileReader(log))) {
+			while((line = reader.readLine()) != null) {
+				Matcher matcher = INPUT_LINE.matcher(line);
+				if(matcher.find()) {
+					reads(Long.parseLong(matcher.group(1)), Long.parseLong(matcher.group(2)));
+					return;
+				}
+			}
+		}catch(IOException e) {
+			// No log, no counts
+		}
+	}
+
+	// Starts sampling a child process of the current stage, see ProcessRunner
+	public static Watch watch(Process p) {
+		return new Watch(p, current.get());
+	}
+
+	// Peak resident memory of a process in kB, as the kernel keeps it. 0 where there is no /proc
+	private static long peakRss(long pid) {
+		try {
+			for(String line : Files.readAllLines(Paths.get("/proc/" + pid + "/status"))) {
+				Matcher matcher = PEAK_RSS.matcher(line);
+				if(matcher.find()) {
+					return Long.parseLong(matcher.group(1));
+				}
+			}
+		}catch(IOException | RuntimeException e) {
+			// Not Linux, or the process is gone already
+		}
+		return 0;
+	}
+
+	private static long threadCpuTime() {
+		return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : 0;
+	}
+
+	private static long ms(long nanos) {
+		return TimeUnit.NANOSECONDS.toMillis(nanos);
+	}
+
+	// Samples a child process on a virtual thread until it exits, and adds what it saw to the stage on waitFor()
+	public static class Watch {
+
+		private final Process p;
+		private final Stage stage;
+		private final Thread sampler;
+		private volatile long cpu = 0;
+		private volatile long rss = 0;
+
+		private Watch(Process p, Stage stage) {
+			this.p = p;
+			this.stage = stage;
+			this.sampler = Thread.ofVirtual().start(() -> {
+				try {
+					do {
+						cpu = Math.max(cpu, p.info().totalCpuDuration().map(duration -> duration.toMillis()).orElse(0L));
+						rss = Math.max(rss, peakRss(p.pid()));
+					}while(!p.waitFor(SAMPLE_MS, TimeUnit.MILLISECONDS));
+				}catch(InterruptedException e) {
+					// Stop sampling
+				}
+			});
+		}
+
+		public int waitFor() throws InterruptedException {
+			int exitValue = p.waitFor();
+			sampler.join();
+			if(stage != null) {
+				stage.childCpu += cpu;
+				stage.childPeakRss = Math.max(stage.childPeakRss, rss);
+			}
+			return exitValue;
+		}
+
+		public long getCpuMs() {
+			return cpu;
+		}
+
+		public long getPeakRssKb() {
+			return rss;
+		}
+	}
+
+	// Metrics of one stage of one sample, only ever updated by the thread running it
+	public static class Stage {
+
+		private final String sample;
+		private final String name;
+		private final Stage parent;
+		private final long queued;
+		private final long start = System.nanoTime();
+		private final long cpuStart = threadCpuTime();
+		private long wall = 0;
+		private long cpu = 0;
+		private long childCpu = 0;
+		private long childPeakRss = 0;
+		private long bytesRead = 0;
+		private long bytesWritten = 0;
+		private long reads = 0;
+		private long bases = 0;
+		private long hits = 0;
+
+		private Stage(String sample, String name, Stage parent, long queued) {
+			this.sample = sample;
+			this.name = name;
+			this.parent = parent;
+			this.queued = queued;
+		}
+
+		private void add(Stage child) {
+			childCpu += child.childCpu;
+			childPeakRss = Math.max(childPeakRss, child.childPeakRss);
+			bytesRead += child.bytesRead;
+			bytesWritten += child.bytesWritten;
+			reads += child.reads;
+			bases += child.bases;
+			hits += child.hits;
+		}
+	}
+}
@@ -0,0 +1,375 @@
+package ca.canada.inspection.commandpcr;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+// Both rounds of baiting in one program, replacing BaitTask + SecondBaitTask for a sample.
+// Pass 1 reads (and decompresses) the raw reads once, keeps pairs with a primer kmer within the mismatch limit, and
+// adds every kmer of those pairs, and every kmer within the mismatch limit of them as BBDuk's hdist does, to an
+// in-memory table. The raw reads are cached for pass 2, in memory while they
+// fit the cache limit and spilled uncompressed next to the output otherwise; uncompressed input is simply reread.
+// Pass 2 keeps every pair sharing a kmer with the table, which is what the second BBDuk run did with
+// _targetMatches.fastq.gz as its reference, without writing and rereading that file.
+// Both rounds match kmers the way BBDuk does, see KmerFilter, so they keep the same pairs as the two BBDuk calls.
+// The read cache and the kmer table each get half of the heap the sample is given. The table cannot spill, so a sample
+// whose table outgrows its half stops there and is baited by BBDuk instead, see run().
+public class TwoStageBaiter {
+
+	// BBDuk's default k, which the second round of baiting used, and its longest k without kbig
+	private static final int K = 27;
+	private static final int MAX_K = 31;
+	private static final int CHUNK = 16 * 1024 * 1024;
+
+	private final KmerFilter primerKmers;
+	private final KmerFilter table;
+	private final long cacheLimit;
+	private final long maxKmers;
+	private long readsIn = 0;
+	private long basesIn = 0;
+	private long firstRoundPairs = 0;
+	private long secondRoundPairs = 0;
+
+	// Reads match the first round when one of their windows of length klength is within mismatches of any klength
+	// long kmer of a primer, either strand, as with BBDuk's k=klength hdist=mismatches. Kmers with degenerate bases are
+	// left out as BBDuk does, so the primers are given expanded, see CommandMain.expandedPrimers. heapLimit is the heap
+	// in bytes the read cache and the kmer table may take together
+	public TwoStageBaiter(HashMap<String, String> primerDict, int klength, int mismatches, long heapLimit) {
+		this.primerKmers = klength <= MAX_K ? new KmerFilter(klength, mismatches) : null;
+		if(primerKmers != null) {
+			for(String key : primerDict.keySet()) {
+				primerKmers.add(primerDict.get(key).toUpperCase().getBytes());
+			}
+		}
+		this.table = new KmerFilter(K, mismatches);
+		this.cacheLimit = heapLimit / 2;
+		// A table of n kmers has up to 4n slots of 8 bytes, and 6n while it grows into a new array
+		this.maxKmers = heapLimit / 2 / 48;
+	}
+
+	// Bait the reads (two files, or one interleaved file) and write the matching pairs interleaved to out. Returns false,
+	// with no out left behind, when the kmer table outgrew its share of the heap, or when the primers are longer than
+	// the k BBDuk matches kmers of in a single table
+	public boolean run(List<String> reads, File out, File log) throws IOException {
+		if(primerKmers == null) {
+			try(FileWriter writer = new FileWriter(log)) {
+				writer.write("Shortest primer longer than " + MAX_K + ", baiting with BBDuk instead" + System.lineSeparator());
+			}
+			return false;
+		}
+		boolean compressed = false;
+		for(String file : reads) {
+			compressed |= file.endsWith(".gz");
+		}
+		ReadCache cache = compressed ? new ReadCache(new File(out.getAbsolutePath() + ".spill")) : null;
+
+		// Pass 1, first round of baiting and caching of the raw reads
+		try(PairReader reader = new PairReader(open(reads))) {
+			byte[][][] pair;
+			while((pair = reader.next()) != null) {
+				readsIn += pair[1] == null ? 1 : 2;
+				basesIn += pair[0][1].length + (pair[1] == null ? 0 : pair[1][1].length);
+				if(cache != null) {
+					writeRecord(cache, pair[0]);
+					if(pair[1] != null) {
+						writeRecord(cache, pair[1]);
+					}
+				}
+				if(primerKmers.matches(pair[0][1]) || (pair[1] != null && primerKmers.matches(pair[1][1]))) {
+					firstRoundPairs++;
+					table.add(pair[0][1]);
+					if(pair[1] != null) {
+						table.add(pair[1][1]);
+					}
+					if(table.size() > maxKmers) {
+						if(cache != null) {
+							cache.delete();
+						}
+						out.delete();
+						try(FileWriter writer = new FileWriter(log)) {
+							writer.write("Kmer table over " + maxKmers + " kmers after " + firstRoundPairs + " first round pairs, baiting with BBDuk instead"
+									+ System.lineSeparator());
+						}
+						return false;
+					}
+				}
+			}
+		}
+
+		// Pass 2, second round of baiting over the cached reads. Cached reads are already interleaved
+		List<SequenceReader> secondPass = cache != null ? Collections.singletonList(new SequenceReader(cache.openInput())) : open(reads);
+		try(PairReader reader = new PairReader(secondPass);
+				OutputStream writer = new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(out), 65536))) {
+			byte[][][] pair;
+			while((pair = reader.next()) != null) {
+				if(table.matches(pair[0][1]) || (pair[1] != null && table.matches(pair[1][1]))) {
+					secondRoundPairs++;
+					writeRecord(writer, pair[0]);
+					if(pair[1] != null) {
+						writeRecord(writer, pair[1]);
+					}
+				}
+			}
+		}finally {
+			if(cache != null) {
+				cache.delete();
+			}
+		}
+
+		Telemetry.reads(readsIn, basesIn);
+		try(FileWriter writer = new FileWriter(log)) {
+			writer.write("Input reads:\t" + readsIn + System.lineSeparator());
+			writer.write("Input bases:\t" + basesIn + System.lineSeparator());
+			writer.write("First round pairs:\t" + firstRoundPairs + System.lineSeparator());
+			writer.write("Second round kmers:\t" + table.size() + System.lineSeparator());
+			writer.write("Second round pairs:\t" + secondRoundPairs + System.lineSeparator());
+		}
+		return true;
+	}
+
+	private static final byte[] NEWLINE = {'\n'};
+
+	private static void writeRecord(OutputStream out, byte[][] record) throws IOException {
+		for(byte[] line : record) {
+			out.write(line, 0, line.length);
+			out.write(NEWLINE, 0, 1);
+		}
+	}
+
+	static List<SequenceReader> open(List<String> files) throws IOException {
+		ArrayList<SequenceReader> readers = new ArrayList<SequenceReader>();
+		for(String file : files) {
+			readers.add(new SequenceReader(new File(file)));
+		}
+		return readers;
+	}
+
+	// Reads fastq records in pairs, from two files in lockstep or from consecutive records of one interleaved file.
+	// Records are copied out of the readers, as the second record of an interleaved pair reuses the reader's buffers.
+	// A record is its header, sequence, '+' and quality lines. Also used by ReadPairDetector
+	static class PairReader implements AutoCloseable {
+
+		private static final byte[] PLUS = {'+'};
+
+		private final List<SequenceReader> readers;
+
+		PairReader(List<SequenceReader> readers) {
+			this.readers = readers;
+		}
+
+		byte[][][] next() throws IOException {
+			byte[][] first = readRecord(readers.getFirst());
+			if(first == null) {
+				return null;
+			}
+			byte[][] second = readRecord(readers.getLast());
+			return new byte[][][] {first, second};
+		}
+
+		private static byte[][] readRecord(SequenceReader in) throws IOException {
+			if(!in.next()) {
+				return null;
+			}
+			byte[] header = new byte[in.getHeaderLength() + 1];
+			header[0] = '@';
+			System.arraycopy(in.getHeader(), 0, header, 1, in.getHeaderLength());
+			return new byte[][] {header, Arrays.copyOf(in.getSequence(), in.getSequenceLength()), PLUS,
+					Arrays.copyOf(in.getQuality(), in.getQualityLength())};
+		}
+
+		public void close() throws IOException {
+			for(SequenceReader reader : readers) {
+				reader.close();
+			}
+		}
+	}
+
+	// Kmers of reference sequences, and every kmer within hdist substitutions of them, matched against reads as BBDuk
+	// matches them with its defaults (rcomp=t maskmiddle=t). A kmer is keyed by the larger of its forward and reverse
+	// encoding with the middle base masked, or the middle two of an even k. Reference kmers with anything but A, C, G and
+	// T in them are left out. In reads such a base encodes as A on both strands: with hdist 0 it restarts the kmer, and
+	// kmers are looked up again from where the base is in the masked middle, otherwise it is read as it is
+	private static class KmerFilter {
+
+		private static final byte[] NUMBER = new byte[128];
+		private static final byte[] COMPLEMENT = new byte[128];
+		private static final boolean[] DEFINED = new boolean[128];
+		static {
+			String bases = "ACGT";
+			for(int i = 0; i < 4; i++) {
+				NUMBER[bases.charAt(i)] = (byte)i;
+				COMPLEMENT[bases.charAt(i)] = (byte)(3 - i);
+				DEFINED[bases.charAt(i)] = true;
+			}
+		}
+
+		private final int k;
+		private final int hdist;
+		private final long mask;
+		private final long middleMask;
+		private final int minLength;
+		private final LongHashSet table = new LongHashSet(1 << 16);
+		// Keys of the reference kmers themselves, so those also reached as a variant of another one still get their own
+		// variants
+		private final LongHashSet seeds = new LongHashSet(1 << 10);
+
+		KmerFilter(int k, int hdist) {
+			int middle = 2 - (k & 1);
+			this.k = k;
+			this.hdist = hdist;
+			this.mask = (1L << (2 * k)) - 1;
+			this.middleMask = ~(((1L << (2 * middle)) - 1) << (2 * ((k - middle) / 2)));
+			this.minLength = (k - middle) / 2;
+		}
+
+		long size() {
+			return table.size() + seeds.size();
+		}
+
+		void add(byte[] seq) {
+			long kmer = 0;
+			long rkmer = 0;
+			int length = 0;
+			for(int i = 0; i < seq.length; i++) {
+				int b = seq[i] & 0x7F;
+				kmer = ((kmer << 2) | NUMBER[b]) & mask;
+				rkmer = (rkmer >>> 2) | ((long)COMPLEMENT[b] << (2 * (k - 1)));
+				if(!DEFINED[b]) {
+					length = 0;
+					rkmer = 0;
+				}else if(++length >= k && seeds.add(key(kmer, rkmer))) {
+					addVariants(kmer, 0, hdist);
+				}
+			}
+		}
+
+		// Stores kmer and every kmer that differs from it by up to distance substitutions at positions from onwards,
+		// the masked middle left out
+		private void addVariants(long kmer, int from, int distance) {
+			table.add(key(kmer, reverseComplement(kmer)));
+			for(int position = from; position < k && distance > 0; position++) {
+				int shift = 2 * position;
+				if((middleMask & (3L << shift)) == 0) {
+					continue;
+				}
+				long base = (kmer >>> shift) & 3;
+				for(long other = 0; other < 4; other++) {
+					if(other != base) {
+						addVariants((kmer & ~(3L << shift)) | (other << shift), position + 1, distance - 1);
+					}
+				}
+			}
+		}
+
+		boolean matches(byte[] seq) {
+			long kmer = 0;
+			long rkmer = 0;
+			int length = 0;
+			for(int i = 0; i < seq.length; i++) {
+				int b = seq[i] & 0x7F;
+				kmer = ((kmer << 2) | NUMBER[b]) & mask;
+				rkmer = (rkmer >>> 2) | ((long)COMPLEMENT[b] << (2 * (k - 1)));
+				if(hdist < 1 && !DEFINED[b]) {
+					length = 0;
+					rkmer = 0;
+				}else {
+					length++;
+				}
+				if(i >= k - 1 && length >= minLength && table.contains(key(kmer, rkmer))) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private long key(long kmer, long rkmer) {
+			return Math.max(kmer, rkmer) & middleMask;
+		}
+
+		private long reverseComplement(long kmer) {
+			long rc = 0;
+			for(int i = 0; i < k; i++) {
+				rc = (rc << 2) | (3 - (kmer & 3));
+				kmer >>>= 2;
+			}
+			return rc;
+		}
+	}
+
+	// Keeps the decompressed reads of pass 1 in memory chunks, and moves them to an uncompressed file on disk once they
+	// outgrow the cache limit
+	private class ReadCache extends OutputStream {
+
+		private final File spillFile;
+		private final ArrayList<byte[]> chunks = new ArrayList<byte[]>();
+		private int position = CHUNK;
+		private long size = 0;
+		private OutputStream spill = null;
+
+		ReadCache(File spillFile) {
+			this.spillFile = spillFile;
+		}
+
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte)b}, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			while(len > 0) {
+				if(spill != null) {
+					spill.write(b, off, len);
+					return;
+				}
+				if(size >= cacheLimit) {
+					spill = new BufferedOutputStream(new FileOutputStream(spillFile), 65536);
+					for(int i = 0; i < chunks.size(); i++) {
+						spill.write(chunks.get(i), 0, i == chunks.size() - 1 ? position : CHUNK);
+					}
+					chunks.clear();
+					continue;
+				}
+				if(position == CHUNK) {
+					chunks.add(new byte[CHUNK]);
+					position = 0;
+				}
+				int n = Math.min(len, CHUNK - position);
+				System.arraycopy(b, off, chunks.getLast(), position, n);
+				position += n;
+				size += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		InputStream openInput() throws IOException {
+			if(spill != null) {
+				spill.close();
+				return new BufferedInputStream(new FileInputStream(spillFile), 65536);
+			}
+			ArrayList<InputStream> parts = new ArrayList<InputStream>();
+			for(int i = 0; i < chunks.size(); i++) {
+				parts.add(new ByteArrayInputStream(chunks.get(i), 0, i == chunks.size() - 1 ? position : CHUNK));
+			}
+			return new BufferedInputStream(new SequenceInputStream(Collections.enumeration(parts)), 65536);
+		}
+
+		void delete() {
+			chunks.clear();
+			spillFile.delete();
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package ca.canada.inspection.commandpcr;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// HammingKernel on the Vector API. Every lane of a byte vector is one window: position p of the pattern is compared to
+// the target bytes at start + p of all the windows in one load, AND and compare, and the lanes that miss get one more
+// mismatch. The windows of a vector stop together once every one of them is past the limit. Only built with the vector
+// profile and loaded when the JVM has the jdk.incubator.vector module, see HammingKernel.get()
+final class VectorHammingKernel extends HammingKernel {
+
+	private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+
+	public String name() {
+		return "vector " + SPECIES.vectorBitSize() + " bit";
+	}
+
+	public void count(byte[] target, byte[] pattern, int from, int to, int limit, byte[] counts, int threePrimeFrom, int threePrimeTo,
+			byte[] threePrime) {
+		// Lanes count in bytes, longer patterns or limits could overflow them
+		if(pattern.length > Byte.MAX_VALUE || limit >= Byte.MAX_VALUE) {
+			HammingKernel.count(target, pattern, from, to, from, limit, counts, threePrimeFrom, threePrimeTo, threePrime);
+			return;
+		}
+		int width = SPECIES.length();
+		ByteVector zero = ByteVector.zero(SPECIES);
+		ByteVector one = ByteVector.broadcast(SPECIES, (byte)1);
+		byte cap = (byte)(limit + 1);
+		int start = from;
+		for(; start + width <= to; start += width) {
+			ByteVector found = zero;
+			ByteVector end = zero;
+			for(int p = 0; p < pattern.length; p++) {
+				VectorMask<Byte> miss = ByteVector.fromArray(SPECIES, target, start + p).and(pattern[p]).compare(VectorOperators.EQ, (byte)0);
+				found = found.add(one, miss);
+				if(p >= threePrimeFrom && p < threePrimeTo) {
+					end = end.add(one, miss);
+				}
+				if(!found.compare(VectorOperators.LE, (byte)limit).anyTrue()) {
+					break;
+				}
+			}
+			found.min(cap).intoArray(counts, start - from);
+			if(threePrime != null) {
+				end.min(cap).intoArray(threePrime, start - from);
+			}
+		}
+		// The windows left over are fewer than a vector
+		HammingKernel.count(target, pattern, start, to, from, limit, counts, threePrimeFrom, threePrimeTo, threePrime);
+	}
+}
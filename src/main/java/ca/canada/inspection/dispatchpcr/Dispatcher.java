@@ -1,10 +1,14 @@
 package ca.canada.inspection.dispatchpcr;
 
 import java.io.File;
+import java.io.IOException;
 
 import org.apache.commons.cli.*;
 
 import ca.canada.inspection.commandpcr.CommandMain;
+import ca.canada.inspection.commandpcr.CommandMethods;
+import ca.canada.inspection.commandpcr.PcrServer;
+import ca.canada.inspection.commandpcr.SampleStore;
 import ca.canada.inspection.insilicopcr.MainRun;
 
 public class Dispatcher {
@@ -39,6 +43,74 @@ public class Dispatcher {
 		numMismatches.setRequired(false);
 		options.addOption(numEvalue);
 		
+		Option search = new Option("s", "search", true, "Primer search engine, either native or blast. Default is native.");
+		search.setRequired(false);
+		options.addOption(search);
+		
+		Option embedded = Option.builder().longOpt("embedded")
+				.desc("Run BBDuk and Tadpole inside this JVM instead of one java process per call. Give this JVM a large -Xmx. Not with --serve.").build();
+		options.addOption(embedded);
+		
+		Option combinedBait = Option.builder().longOpt("combined-bait")
+				.desc("Do both rounds of read baiting in a single pass over the reads instead of two BBDuk calls.").build();
+		options.addOption(combinedBait);
+		
+		Option cacheDir = Option.builder().longOpt("cache").hasArg()
+				.desc("Directory of cached primer hits, default is result_cache in the output directory. Reruns only search the samples and primers that are not cached yet.").build();
+		options.addOption(cacheDir);
+		
+		Option maxAmplicon = Option.builder().longOpt("max-amplicon").hasArg()
+				.desc("Longest PCR product to report, in bp. Default is 10000.").build();
+		options.addOption(maxAmplicon);
+		
+		Option keepBlastReports = Option.builder().longOpt("keep-blast-reports")
+				.desc("With -s blast, also write every sample's full blastn report to detailed_report.").build();
+		options.addOption(keepBlastReports);
+		
+		Option blastBatch = Option.builder().longOpt("blast-batch")
+				.desc("With -s blast, search many samples per multi-threaded blastn call instead of one call per sample file.").build();
+		options.addOption(blastBatch);
+		
+		Option readPairs = Option.builder().longOpt("read-pairs")
+				.desc("Find the products of paired fastq samples on their read pairs, and only bait and assemble samples with targets longer than their fragments.").build();
+		options.addOption(readPairs);
+		
+		Option resume = Option.builder().longOpt("resume")
+				.desc("Pick up a stopped run into the same output directory, skipping the stages its samples finished.").build();
+		options.addOption(resume);
+		
+		Option processTimeout = Option.builder().longOpt("process-timeout").hasArg()
+				.desc("Kill BBTools and blastn calls that run longer than this many minutes and fail their sample. Default is no limit.").build();
+		options.addOption(processTimeout);
+		
+		Option serve = Option.builder().longOpt("serve").hasArg()
+				.desc("Run as a local server on this port, taking jobs of sample paths over HTTP instead of reading -i. -o is the work directory.").build();
+		options.addOption(serve);
+		
+		Option panels = Option.builder().longOpt("panels").hasArg()
+				.desc("With --serve, a directory of primer files, one panel per file named after it. Default is the single -p panel.").build();
+		options.addOption(panels);
+		
+		Option shard = Option.builder().longOpt("shard").hasArg()
+				.desc("Run only shard i of N of the samples of -i, given as i/N, into the shards folder of -o. Shards share the result cache of -o.").build();
+		options.addOption(shard);
+		
+		Option mergeShards = Option.builder().longOpt("merge-shards")
+				.desc("Merge the finished shards in -o into its consolidated report and QA log, then exit.").build();
+		options.addOption(mergeShards);
+		
+		Option specificity = Option.builder().longOpt("specificity").hasArg()
+				.desc("Screen every genome of -i against the whole panel and write a primer by genome hit matrix, dense or sparse, with per assay inclusivity and exclusivity, instead of the report.").build();
+		options.addOption(specificity);
+		
+		Option targets = Option.builder().longOpt("targets").hasArg()
+				.desc("With --specificity, a file of assay and genome pairs, tab separated, naming the genomes each assay should detect.").build();
+		options.addOption(targets);
+		
+		Option importStore = Option.builder().longOpt("import-store").hasArg()
+				.desc("Add the fasta samples of -i to the packed sample store in this directory, creating it if needed, then exit. A store directory can then be given as -i.").build();
+		options.addOption(importStore);
+		
 		Option help = new Option("h", "help", true, "Print help message and usage");
 		help.setRequired(false);
 		options.addOption(help);
@@ -61,12 +133,15 @@ public class Dispatcher {
 		
 		if(args.length > 0) {
 			try{
-				File inputFile = new File(cmd.getOptionValue("input"));
+				if(cmd.getOptionValue("import-store") != null) {
+					SampleStore.importSamples(new File(cmd.getOptionValue("import-store")), CommandMethods.createSampleDict(new File(cmd.getOptionValue("input"))));
+					return;
+				}
 				File outDir = new File(cmd.getOptionValue("output"));
-				File primerFile = new File(cmd.getOptionValue("primers"));
 				int threads = Runtime.getRuntime().availableProcessors();
 				int mismatches = 0;
 				double evalue = Double.parseDouble("1e10");
+				String searchEngine = "native";
 				if(cmd.getOptionValue("threads") != null) {
 					threads = Integer.parseInt(cmd.getOptionValue("threads"));
 				}
@@ -76,9 +151,87 @@ public class Dispatcher {
 				if(cmd.getOptionValue("evalue") != null) {
 					evalue = Double.parseDouble(cmd.getOptionValue("evalue"));
 				}
+				if(cmd.getOptionValue("search") != null) {
+					searchEngine = cmd.getOptionValue("search");
+					if(!searchEngine.equals("native") && !searchEngine.equals("blast")) {
+						System.out.println("Search engine must be either native or blast");
+						System.exit(-1);
+					}
+				}
+				
+				
+				if(cmd.hasOption("merge-shards")) {
+					if(!CommandMethods.mergeShards(outDir)) {
+						System.exit(-1);
+					}
+					return;
+				}
 				
-				CommandMain main = new CommandMain(inputFile, outDir, primerFile, threads, mismatches, evalue);
+				if(cmd.getOptionValue("serve") != null) {
+					// A BBTools error that ends its JVM would end the server and every job on it, see EmbeddedBBTools
+					if(cmd.hasOption("embedded")) {
+						System.out.println("--embedded cannot be used with --serve");
+						System.exit(-1);
+					}
+					// Every panel gets an engine of its own, with the same settings, in a folder of its own
+					File[] primerFiles = {new File(cmd.getOptionValue("primers"))};
+					if(cmd.getOptionValue("panels") != null) {
+						primerFiles = new File(cmd.getOptionValue("panels")).listFiles(file -> file.isFile() && !file.getName().startsWith("."));
+					}
+					PcrServer server = new PcrServer(outDir, threads);
+					for(File primerFile : primerFiles) {
+						String id = PcrServer.panelID(primerFile);
+						File panelDir = new File(outDir.getAbsolutePath() + File.separator + "panels" + File.separator + id);
+						CommandMain main = new CommandMain(null, panelDir, primerFile, threads, mismatches, evalue, searchEngine);
+						configure(main, cmd);
+						server.addPanel(id, main);
+					}
+					server.start(Integer.parseInt(cmd.getOptionValue("serve")));
+					Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+					return;
+				}
+				
+				File inputFile = new File(cmd.getOptionValue("input"));
+				File primerFile = new File(cmd.getOptionValue("primers"));
+				if(cmd.getOptionValue("specificity") != null) {
+					String format = cmd.getOptionValue("specificity");
+					if(!format.equals("dense") && !format.equals("sparse")) {
+						System.out.println("--specificity must be either dense or sparse");
+						System.exit(-1);
+					}
+					CommandMain main = new CommandMain(inputFile, outDir, primerFile, threads, mismatches, evalue, searchEngine);
+					configure(main, cmd);
+					main.runSpecificity(format.equals("dense"), cmd.getOptionValue("targets") != null ? new File(cmd.getOptionValue("targets")) : null);
+					return;
+				}
+				if(cmd.getOptionValue("shard") != null) {
+					// A shard writes into a folder of its own, next to the other shards of the batch
+					String value = cmd.getOptionValue("shard");
+					int index = value.matches("\\d+/\\d+") ? Integer.parseInt(value.split("/")[0]) : 0;
+					int count = value.matches("\\d+/\\d+") ? Integer.parseInt(value.split("/")[1]) : 0;
+					if(index < 1 || index > count) {
+						System.out.println("--shard must be i/N, with i from 1 to N");
+						System.exit(-1);
+					}
+					CommandMain main = new CommandMain(inputFile, CommandMethods.shardDir(outDir, index, count), primerFile, threads, mismatches, evalue, searchEngine);
+					main.setCacheDir(new File(outDir.getAbsolutePath() + File.separator + "result_cache"));
+					configure(main, cmd);
+					main.setShard(index, count);
+					main.run();
+					if(!main.getFailedSamples().isEmpty()) {
+						System.exit(-1);
+					}
+					return;
+				}
+				CommandMain main = new CommandMain(inputFile, outDir, primerFile, threads, mismatches, evalue, searchEngine);
+				configure(main, cmd);
 				main.run();
+				if(!main.getFailedSamples().isEmpty()) {
+					System.exit(-1);
+				}
+			}catch(IOException e) {
+				e.printStackTrace();
+				System.exit(-1);
 			}catch(NullPointerException e) {
 				e.printStackTrace();
 				System.out.println("If using the program with arguments from commandline or terminal, you must provide at least i, o, and p arguments");
@@ -93,4 +246,23 @@ public class Dispatcher {
 			MainRun.main(args);
 		}
 	}
+	
+	// Settings shared by a run and every panel of a server
+	private static void configure(CommandMain main, CommandLine cmd) {
+		main.setEmbedded(cmd.hasOption("embedded"));
+		main.setCombinedBait(cmd.hasOption("combined-bait"));
+		if(cmd.getOptionValue("cache") != null) {
+			main.setCacheDir(new File(cmd.getOptionValue("cache")));
+		}
+		main.setKeepBlastReports(cmd.hasOption("keep-blast-reports"));
+		main.setBlastBatch(cmd.hasOption("blast-batch"));
+		main.setReadPairs(cmd.hasOption("read-pairs"));
+		main.setResume(cmd.hasOption("resume"));
+		if(cmd.getOptionValue("max-amplicon") != null) {
+			main.setMaxAmplicon(Integer.parseInt(cmd.getOptionValue("max-amplicon")));
+		}
+		if(cmd.getOptionValue("process-timeout") != null) {
+			main.setProcessTimeout(Integer.parseInt(cmd.getOptionValue("process-timeout")));
+		}
+	}
 }
@@ -10,8 +10,13 @@ public class BlastResult {
 	private final int end;
 	private final int length;
 	private final String seq;
+	private final int strand; // 1 when the primer matched the forward strand of the contig, -1 the reverse, 0 if unknown
 
 	public BlastResult(String name, String queryID, String subjectID, int mismatch, int start, int end, int length, String seq) {
+		this(name, queryID, subjectID, mismatch, start, end, length, seq, 0);
+	}
+	
+	public BlastResult(String name, String queryID, String subjectID, int mismatch, int start, int end, int length, String seq, int strand) {
 		this.name = name;
 		this.queryID = queryID;
 		this.subjectID = subjectID;
@@ -20,6 +25,7 @@ public class BlastResult {
 		this.end = end;
 		this.length = length;
 		this.seq = seq;
+		this.strand = strand;
 	}
 	
 	public String getName() {
@@ -53,4 +59,8 @@ public class BlastResult {
 	public String getSeq() {
 		return this.seq;
 	}
+	
+	public int getStrand() {
+		return this.strand;
+	}
 }
\ No newline at end of file
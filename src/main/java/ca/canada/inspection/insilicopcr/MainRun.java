@@ -1,5 +1,7 @@
 package ca.canada.inspection.insilicopcr;
 
+import ca.canada.inspection.commandpcr.DependencyManifest;
+import ca.canada.inspection.commandpcr.Telemetry;
 import ca.canada.inspection.dispatchpcr.Dispatcher;
 
 import javafx.application.Application;
@@ -32,8 +34,6 @@ import javafx.scene.control.Tooltip;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.*;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
@@ -68,40 +68,7 @@ public class MainRun extends Application {
 	private Button gelButton;
 	
 	public void start(Stage primaryStage) {
-        double memJava;
-        if(System.getProperties().getProperty("os.name").contains("Windows")) {
-			String[] command = {"wmic", "computersystem", "get", "TotalPhysicalMemory"};
-			try {
-				String line;
-				ArrayList<String> output = new ArrayList<String>();
-				Process p = Runtime.getRuntime().exec(command);
-				BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
-				while((line = reader.readLine()) != null) {
-					output.add(line);
-				}
-				String fullOutput = String.join("", output);
-				String trimmedOutput = fullOutput.split("\\s+")[1];
-				memJava = Double.parseDouble(trimmedOutput) / 1000000000;
-			}catch(IOException e) {
-				e.printStackTrace();
-			}
-		}else {
-			String[] command = {"grep", "MemTotal", "/proc/meminfo"};
-			try {
-				String line;
-				ArrayList<String> output = new ArrayList<String>();
-				Process p = new ProcessBuilder(command).start();
-				BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
-				while((line = reader.readLine()) != null) {
-					output.add(line);
-				}
-				String fullOutput = String.join("",output);
-				String trimmedOutput = fullOutput.split("\\s+")[1];
-				memJava = Double.parseDouble(trimmedOutput) / 1000000000;
-			}catch(IOException e) {
-				e.printStackTrace();
-			}
-		}
+        double memJava = DependencyManifest.probeMemory() / 1000000000.0;
 		
 		GridPane pane = new GridPane();
 		ColumnConstraints cC = new ColumnConstraints();
@@ -474,59 +441,15 @@ public class MainRun extends Application {
 		}catch(IOException e) {
 			Methods.logMessage(outputField, Arrays.toString(e.getStackTrace()));
 		}
-		Path dir = Paths.get(codeParent);
 //		Methods.logMessage(outputField, codeLocation);  // Print location
-		Find.Finder finder = new Find.Finder("**bbmap", dir);
-		for(Path path: finder.run()) {
-			File directory = path.toFile();
-			for(File file : Objects.requireNonNull(directory.listFiles())) {
-                if (file.getName().contains("tadpole.sh")) {
-                    BBToolsLocation = path.toFile();
-                    break;
-                }
-			}
-		}
-		
-		Find.Finder finder2;
-		if(System.getProperties().getProperty("os.name").contains("Windows")) {
-			finder2 = new Find.Finder("**makeblastdb.exe", dir);
-		}else {
-			finder2 = new Find.Finder("**makeblastdb", dir);
-		}
-		for(Path path : finder2.run()) {
-			File blastdbpath = path.toFile();
-			BLASTLocation = blastdbpath.getParentFile();
-		}
+		// Found by walking the install folder on the first start, and read from its manifest after that
+		DependencyManifest manifest = DependencyManifest.load(new File(codeParent));
+		BBToolsLocation = manifest.getBBToolsLocation();
+		BLASTLocation = manifest.getBLASTLocation();
+		JavaLocation = manifest.getJavaLocation();
 		if(BBToolsLocation == null || BLASTLocation == null) {
 			Methods.logMessage(outputField, "BBToolsLocation or BLASTLocation is null");
 		}
-		
-		Find.Finder finder3;
-		if(System.getProperties().getProperty("os.name").contains("Windows")) {
-			finder3 = new Find.Finder("**windows/jdk-21.0.3", dir);
-		}else {
-			finder3 = new Find.Finder("**linux/jdk-21.0.3", dir);
-		}
-		for(Path path : finder3.run()) {
-			File javapath = path.toFile();
-			if(javapath.isDirectory()) {
-				for(File item : Objects.requireNonNull(javapath.listFiles())) {
-					if(item.isDirectory()) {
-						for(File item2 : Objects.requireNonNull(item.listFiles())) {
-							if(System.getProperties().getProperty("os.name").contains("Windows")) {
-								if(item2.getName().equals("java.exe")) {
-									JavaLocation = item.getAbsoluteFile();
-								}
-							}else {
-								if(item2.getName().equals("java")) {
-									JavaLocation = item.getAbsoluteFile();
-								}
-							}
-						}
-					}
-				}
-			}
-		}
 		if(System.getProperties().getProperty("os.name").contains("Windows")) {
 			javaCall = JavaLocation.getAbsolutePath() + sep + "java.exe";
 		}else {
@@ -686,10 +609,16 @@ public class MainRun extends Application {
 			}
 			try {
 				mainPool.shutdown();
-				while(!mainPool.getQueue().isEmpty()) {
-					updateProgress(mainPool.getCompletedTaskCount() + threads, mainPool.getTaskCount());
+				// Progress of the BLAST runs, with the time left logged every ten seconds or so
+				long startTime = System.nanoTime();
+				int polls = 0;
+				while(!mainPool.awaitTermination(500, TimeUnit.MILLISECONDS)) {
+					updateProgress(mainPool.getCompletedTaskCount(), mainPool.getTaskCount());
+					if(++polls % 20 == 0) {
+						Methods.logMessage(outputField, "BLAST " + mainPool.getCompletedTaskCount() + "/" + mainPool.getTaskCount() + " files, "
+								+ Telemetry.eta(startTime, mainPool.getCompletedTaskCount(), mainPool.getTaskCount()));
+					}
 				}
-				mainPool.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
 			}catch(InterruptedException e) {
 				e.printStackTrace();
 			}
@@ -11,6 +11,7 @@ public class Sample {
 	private final HashMap<String, ArrayList<BlastResult>> blastResults = new HashMap<String, ArrayList<BlastResult>>();
 	private String assemblyFile;
 	private final HashMap<String, String> contigDict = new HashMap<String, String>();
+	private final HashMap<String, Integer> contigLengths = new HashMap<String, Integer>();
 
 	public Sample() {
 		
@@ -78,4 +79,12 @@ public class Sample {
 	public HashMap<String, String> getContigDict(){
 		return this.contigDict;
 	}
+	
+	public void addContigLength(String acc, int length) {
+		this.contigLengths.put(acc, length);
+	}
+	
+	public HashMap<String, Integer> getContigLengths(){
+		return this.contigLengths;
+	}
 }
@@ -8,6 +8,9 @@ module ca.canada.inspection.insilicopcr {
     requires org.kordamp.bootstrapfx.core;
     requires org.apache.commons.cli;
     requires java.desktop;
+    requires java.management;
+    requires jdk.management;
+    requires jdk.httpserver;
 
     opens ca.canada.inspection.insilicopcr to javafx.fxml;
     exports ca.canada.inspection.insilicopcr;
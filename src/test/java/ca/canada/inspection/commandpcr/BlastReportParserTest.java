@@ -0,0 +1,164 @@
+package ca.canada.inspection.commandpcr;
+
+import ca.canada.inspection.insilicopcr.BlastResult;
+import ca.canada.inspection.insilicopcr.Sample;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import static ca.canada.inspection.commandpcr.TestSequences.randomBases;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Reads blastn reports into the hits the split based parse it replaced kept
+public class BlastReportParserTest {
+
+	private static final int MISMATCHES = 2;
+
+	@TempDir
+	File dir;
+
+	// A report several times the read buffer, with hits on both strands, hits that fail the length or mismatch filter,
+	// windows line ends and no line end on the last row
+	@Test
+	public void parsesLikeSplitReference() throws IOException {
+		HashMap<String, String> primers = primers();
+		Random random = new Random(3);
+		StringBuilder report = new StringBuilder(BlastReportParser.HEADER).append('\n');
+		for(int i = 0; i < 60000; i++) {
+			report.append(row(random, primers, "contig_" + i / 40)).append(random.nextInt(50) == 0 ? "\r\n" : "\n");
+		}
+		report.append(row(random, primers, "last"));
+		File file = new File(dir, "sample.tsv");
+		Files.writeString(file.toPath(), report);
+
+		ArrayList<String> expected = reference(Files.readAllLines(file.toPath()), primers);
+		Sample sample = sample("sample");
+		new BlastReportParser(primers, MISMATCHES).parse(file, sample);
+		assertEquals(expected, hits(sample));
+		assertTrue(expected.size() > 10000);
+
+		// Rows from a running blastn arrive a few bytes at a time, and lines straddle the reads
+		Sample streamed = sample("sample");
+		new BlastReportParser(primers, MISMATCHES).parse(trickle(Files.readAllBytes(file.toPath()), random), streamed);
+		assertEquals(expected, hits(streamed));
+	}
+
+	// Rows of a batch go to the sample their query id prefix names, without the prefix, and rows naming no sample of the
+	// batch are dropped
+	@Test
+	public void demultiplexesBatch() throws IOException {
+		HashMap<String, String> primers = primers();
+		Random random = new Random(8);
+		Sample[] batch = {sample("a"), sample("b"), sample("c")};
+		ArrayList<String> lines = new ArrayList<String>();
+		StringBuilder report = new StringBuilder();
+		for(int i = 0; i < 3000; i++) {
+			int index = random.nextInt(4);
+			String line = row(random, primers, "c" + i % 7);
+			lines.add(index + "\t" + line);
+			report.append(index == 3 ? "x" + line : BlastReportParser.batchID(index, "") + line).append('\n');
+		}
+		File file = new File(dir, "batch.tsv");
+		Files.writeString(file.toPath(), report);
+
+		new BlastReportParser(primers, MISMATCHES).parse(file, batch);
+		for(int index = 0; index < batch.length; index++) {
+			ArrayList<String> own = new ArrayList<String>();
+			for(String line : lines) {
+				if(line.startsWith(index + "\t")) {
+					own.add(line.substring(line.indexOf('\t') + 1));
+				}
+			}
+			assertEquals(reference(own, primers), hits(batch[index]), batch[index].getName());
+		}
+	}
+
+	// The filters and fields of the parse before BlastReportParser, one String per field of every line
+	private static ArrayList<String> reference(List<String> lines, HashMap<String, String> primers) {
+		ArrayList<String> hits = new ArrayList<String>();
+		for(String line : lines) {
+			if(line.equals("") || line.startsWith("qseqid")) {
+				continue;
+			}
+			String[] fields = line.split("\t");
+			int length = Integer.parseInt(fields[8]);
+			int weightedLength = primers.get(fields[1]).length();
+			int actualMismatches = Integer.parseInt(fields[3]);
+			if(length <= weightedLength && length >= (weightedLength - 2) && actualMismatches <= MISMATCHES) {
+				int strand = Integer.parseInt(fields[12]) <= Integer.parseInt(fields[13]) ? 1 : -1;
+				hits.add(String.join(" ", fields[0], fields[1], fields[3], fields[9], fields[10], fields[8], fields[14], String.valueOf(strand)));
+			}
+		}
+		hits.sort(null);
+		return hits;
+	}
+
+	private static ArrayList<String> hits(Sample sample) {
+		ArrayList<String> hits = new ArrayList<String>();
+		for(ArrayList<BlastResult> results : sample.getBlastResults().values()) {
+			for(BlastResult result : results) {
+				assertEquals(sample.getName(), result.getName());
+				hits.add(String.join(" ", result.getQueryID(), result.getSubjectID(), String.valueOf(result.getMismatch()),
+						String.valueOf(result.getStart()), String.valueOf(result.getEnd()), String.valueOf(result.getLength()),
+						result.getSeq(), String.valueOf(result.getStrand())));
+			}
+		}
+		hits.sort(null);
+		return hits;
+	}
+
+	// A row of -outfmt "6 qseqid sseqid positive mismatch gaps evalue bitscore slen length qstart qend qseq sstart send sseq"
+	private static String row(Random random, HashMap<String, String> primers, String contig) {
+		String[] names = primers.keySet().toArray(new String[0]);
+		Arrays.sort(names);
+		String primer = names[random.nextInt(names.length)];
+		int slen = primers.get(primer).length();
+		int length = slen - random.nextInt(5) + (random.nextInt(10) == 0 ? 1 : 0);
+		int mismatch = random.nextInt(MISMATCHES + 2);
+		int qstart = 1 + random.nextInt(1000000);
+		int qend = qstart + length - 1;
+		String sseq = randomBases(random, length);
+		int sstart = 1 + random.nextInt(slen - Math.min(length, slen) + 1);
+		int send = sstart + Math.min(length, slen) - 1;
+		boolean minus = random.nextBoolean();
+		return String.join("\t", contig, primer, String.valueOf(length - mismatch), String.valueOf(mismatch), "0",
+				random.nextInt(1000) + "e-" + random.nextInt(20), String.valueOf(20 + random.nextInt(30)), String.valueOf(slen),
+				String.valueOf(length), String.valueOf(qstart), String.valueOf(qend), randomBases(random, length),
+				String.valueOf(minus ? send : sstart), String.valueOf(minus ? sstart : send), sseq);
+	}
+
+	private static HashMap<String, String> primers() {
+		HashMap<String, String> primers = new HashMap<String, String>();
+		primers.put("AS1-F", "CGCAACACCGTGAAGCACGG");
+		primers.put("AS1-R", "GGCCGTCATATCTCCCTTTTT");
+		primers.put("AS2-F", "ACGTRACGTACGTACGTAC");
+		primers.put("AS2-P", "GATCCTAGGCATTGCAAGTCGATCG");
+		return primers;
+	}
+
+	private static Sample sample(String name) {
+		Sample sample = new Sample();
+		sample.setName(name);
+		return sample;
+	}
+
+	private static InputStream trickle(byte[] bytes, Random random) {
+		return new ByteArrayInputStream(bytes) {
+			public synchronized int read(byte[] b, int off, int len) {
+				return super.read(b, off, Math.min(len, 1 + random.nextInt(300)));
+			}
+		};
+	}
+}
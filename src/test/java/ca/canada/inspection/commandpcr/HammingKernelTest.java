@@ -0,0 +1,194 @@
+package ca.canada.inspection.commandpcr;
+
+import ca.canada.inspection.insilicopcr.BlastResult;
+import ca.canada.inspection.insilicopcr.Sample;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static ca.canada.inspection.commandpcr.TestSequences.mutate;
+import static ca.canada.inspection.commandpcr.TestSequences.randomBases;
+import static ca.canada.inspection.commandpcr.TestSequences.reverseComplement;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Mismatch counts of the kernels, and the sites of the native search, against a position by position reference.
+// HammingKernel.get() is the vector kernel when the tests run with -Pvector, the scalar one otherwise
+public class HammingKernelTest {
+
+	private static final String CODES = "ACGTRYSWKMBDHVN";
+	private static final byte[] MASKS = {1, 2, 4, 8, 5, 10, 6, 9, 12, 3, 14, 13, 11, 7, 15};
+	// Mostly A, C, G and T, with the odd N
+	private static final String CONTIG_CODES = "ACGT".repeat(8) + "N";
+
+	// Block bounds that are not multiples of any vector width, patterns up to the longest the vector lanes count, limits
+	// up to the pattern length, and 3' stretches anywhere in the pattern, empty or left out. The 3' counts are checked
+	// on the windows within the limit, the only ones they mean anything for
+	@Test
+	public void countsMatchReference() {
+		Random random = new Random(5);
+		for(int trial = 0; trial < 300; trial++) {
+			byte[] target = new byte[1 + random.nextInt(700)];
+			for(int i = 0; i < target.length; i++) {
+				target[i] = random.nextInt(20) == 0 ? 0 : (byte)(1 << random.nextInt(4));
+			}
+			byte[] pattern = new byte[1 + random.nextInt(Math.min(target.length, trial % 10 == 0 ? 140 : 30))];
+			for(int p = 0; p < pattern.length; p++) {
+				pattern[p] = MASKS[random.nextInt(random.nextBoolean() ? 4 : MASKS.length)];
+			}
+			int starts = target.length - pattern.length + 1;
+			int from = random.nextInt(starts);
+			int to = from + random.nextInt(starts - from + 1);
+			int limit = random.nextInt(pattern.length + 1);
+			int threePrimeFrom = random.nextInt(pattern.length + 1);
+			int threePrimeTo = threePrimeFrom + random.nextInt(pattern.length - threePrimeFrom + 1);
+
+			byte[] expected = new byte[to - from];
+			byte[] expectedEnd = new byte[to - from];
+			for(int start = from; start < to; start++) {
+				int found = 0;
+				for(int p = 0; p < pattern.length; p++) {
+					boolean miss = (pattern[p] & target[start + p]) == 0;
+					found += miss ? 1 : 0;
+					expectedEnd[start - from] += miss && p >= threePrimeFrom && p < threePrimeTo ? 1 : 0;
+				}
+				expected[start - from] = (byte)Math.min(found, limit + 1);
+			}
+			for(HammingKernel kernel : new HammingKernel[] {HammingKernel.scalar(), HammingKernel.get()}) {
+				byte[] counts = new byte[to - from];
+				byte[] threePrime = trial % 5 == 0 ? null : new byte[to - from];
+				kernel.count(target, pattern, from, to, limit, counts, threePrimeFrom, threePrimeTo, threePrime);
+				assertArrayEquals(expected, counts, kernel.name() + " trial " + trial);
+				for(int i = 0; threePrime != null && i < counts.length; i++) {
+					if(counts[i] <= limit) {
+						assertEquals(expectedEnd[i], threePrime[i], kernel.name() + " trial " + trial + " window " + (from + i));
+					}
+				}
+			}
+		}
+	}
+
+	// Seeded primers, a primer too degenerate to seed with up to one mismatch that goes through the kernel, and contigs
+	// with other bases in them
+	@Test
+	public void searchFindsEverySite() {
+		Random random = new Random(13);
+		HashMap<String, String> primers = new HashMap<String, String>();
+		String plain = randomPrimer(random, 22, 0);
+		String degenerate = randomPrimer(random, 20, 2);
+		String unseedable = randomPrimer(random, 3, 0) + "NNNNNNNNNNNNNN" + randomPrimer(random, 3, 0);
+		primers.put("plain", plain);
+		primers.put("degenerate", degenerate);
+		primers.put("unseedable", unseedable);
+
+		for(int mismatches = 0; mismatches <= 3; mismatches++) {
+			NativePrimerSearch search = new NativePrimerSearch(mismatches);
+			search.prepare(primers, null);
+			int reported = 0;
+			for(int c = 0; c < 20; c++) {
+				StringBuilder contig = new StringBuilder(randomBases(random, 2000 + random.nextInt(3000), CONTIG_CODES));
+				for(String primer : primers.values()) {
+					for(int copy = 0; copy < 3; copy++) {
+						String site = mutate(concrete(primer, random), random, random.nextInt(mismatches + 2));
+						contig.insert(random.nextInt(contig.length()), random.nextBoolean() ? site : reverseComplement(site));
+					}
+				}
+				byte[] seq = contig.toString().getBytes();
+				Sample sample = new Sample();
+				sample.setName("s");
+				search.search(seq, seq.length, sample, "c" + c);
+
+				TreeSet<String> found = new TreeSet<String>();
+				for(ArrayList<BlastResult> results : sample.getBlastResults().values()) {
+					for(BlastResult result : results) {
+						found.add(result.getSubjectID() + " " + result.getStart() + " " + result.getEnd() + " " + result.getStrand() + " " + result.getMismatch());
+					}
+				}
+				assertEquals(reference(primers, seq, mismatches), found, "mismatches " + mismatches + " contig " + c);
+				reported += found.size();
+			}
+			assertTrue(reported > 0);
+		}
+	}
+
+	// A primer no longer than the mismatches is left out, and the others are searched as without it
+	@Test
+	public void leavesOutPrimersTooShortToSeed() {
+		Random random = new Random(17);
+		HashMap<String, String> primers = new HashMap<String, String>();
+		primers.put("plain", randomPrimer(random, 22, 0));
+		primers.put("degenerate", randomPrimer(random, 20, 2));
+		HashMap<String, String> withShort = new HashMap<String, String>(primers);
+		withShort.put("short", "ACG");
+
+		NativePrimerSearch search = new NativePrimerSearch(3);
+		search.prepare(withShort, null);
+		StringBuilder contig = new StringBuilder(randomBases(random, 3000, CONTIG_CODES));
+		for(String primer : primers.values()) {
+			contig.insert(random.nextInt(contig.length()), mutate(concrete(primer, random), random, 2));
+		}
+		byte[] seq = contig.toString().getBytes();
+		Sample sample = new Sample();
+		sample.setName("s");
+		search.search(seq, seq.length, sample, "c");
+
+		TreeSet<String> found = new TreeSet<String>();
+		for(ArrayList<BlastResult> results : sample.getBlastResults().values()) {
+			for(BlastResult result : results) {
+				found.add(result.getSubjectID() + " " + result.getStart() + " " + result.getEnd() + " " + result.getStrand() + " " + result.getMismatch());
+			}
+		}
+		assertEquals(reference(primers, seq, 3), found);
+		assertTrue(found.size() >= 2);
+	}
+
+	// Every start and strand of every primer, counted position by position
+	private static TreeSet<String> reference(HashMap<String, String> primers, byte[] seq, int mismatches) {
+		TreeSet<String> sites = new TreeSet<String>();
+		for(String name : primers.keySet()) {
+			byte[] forward = primers.get(name).getBytes();
+			byte[][] strands = {forward, NativePrimerSearch.reverseComplement(forward)};
+			for(int strand = 0; strand < 2; strand++) {
+				byte[] pattern = strands[strand];
+				for(int start = 0; start + pattern.length <= seq.length; start++) {
+					int found = 0;
+					for(int p = 0; p < pattern.length; p++) {
+						int code = NativePrimerSearch.baseCode(seq[start + p]);
+						found += code < 0 || (MASKS[CODES.indexOf(pattern[p])] & (1 << code)) == 0 ? 1 : 0;
+					}
+					if(found <= mismatches) {
+						sites.add(name + " " + (start + 1) + " " + (start + pattern.length) + " " + (strand == 0 ? 1 : -1) + " " + found);
+					}
+				}
+			}
+		}
+		return sites;
+	}
+
+	private static String randomPrimer(Random random, int length, int degenerate) {
+		char[] primer = randomBases(random, length, CONTIG_CODES).replace('N', 'A').toCharArray();
+		for(int i = 0; i < degenerate; i++) {
+			primer[random.nextInt(length)] = CODES.charAt(4 + random.nextInt(CODES.length() - 4));
+		}
+		return new String(primer);
+	}
+
+	// One of the sequences a degenerate primer stands for
+	private static String concrete(String primer, Random random) {
+		StringBuilder site = new StringBuilder();
+		for(char code : primer.toCharArray()) {
+			byte mask = MASKS[CODES.indexOf(code)];
+			int base;
+			do {
+				base = random.nextInt(4);
+			}while((mask & (1 << base)) == 0);
+			site.append("ACGT".charAt(base));
+		}
+		return site.toString();
+	}
+}
@@ -0,0 +1,91 @@
+package ca.canada.inspection.commandpcr;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+// Report rows come out in one order whatever order they were written in
+public class ReportWriterTest {
+
+	private static final String HEADER = "Sample\tGene\tGenomeLocation\tAmpliconSize\tContig";
+
+	@TempDir
+	File dir;
+
+	// By sample, gene and contig as text, then by the numeric start of the amplicon, 0 when there is none, then by the
+	// rest of the row
+	@Test
+	public void mergeSortsRows() throws IOException {
+		List<String> sorted = Arrays.asList(
+				"s1\tAS1\t900-1200\t301\tc1",
+				"s1\tAS1\t10000-10301\t302\tc1",
+				"s1\tAS1\t10000-10301\t302\tc1\textra",
+				"s1\tAS1\t5-200\t196\tc2",
+				"s1\tAS2\t1-100\t100\tc1",
+				"s10\tAS1\t1-100\t100\tc1",
+				"s2\tAS1\tnone\t0\tc1",
+				"s2\tAS1\t1-100\t100\tc1");
+		ArrayList<String> shuffled = new ArrayList<String>(sorted);
+		Collections.shuffle(shuffled, new Random(3));
+		File first = report("first.tsv", shuffled.subList(0, 4));
+		File second = report("second.tsv", shuffled.subList(4, shuffled.size()));
+		File merged = new File(dir, "merged/report.tsv");
+
+		ReportWriter.merge(Arrays.asList(second, first), merged);
+
+		ArrayList<String> expected = new ArrayList<String>();
+		expected.add(HEADER);
+		expected.addAll(sorted);
+		assertEquals(expected, Files.readAllLines(merged.toPath()));
+	}
+
+	// The same rows in any split and order merge into the same file
+	@Test
+	public void mergeIgnoresSplit() throws IOException {
+		ArrayList<String> rows = new ArrayList<String>();
+		Random random = new Random(11);
+		for(int i = 0; i < 200; i++) {
+			int start = random.nextInt(100000);
+			rows.add("s" + random.nextInt(5) + "\tAS" + random.nextInt(3) + "\t" + start + "-" + (start + 150) + "\t151\tc" + random.nextInt(4));
+		}
+		File whole = report("whole.tsv", rows);
+		Collections.shuffle(rows, new Random(5));
+		File a = report("a.tsv", rows.subList(0, 70));
+		File b = report("b.tsv", rows.subList(70, 71));
+		File c = report("c.tsv", rows.subList(71, rows.size()));
+
+		ReportWriter.merge(Arrays.asList(whole), new File(dir, "one/report.tsv"));
+		ReportWriter.merge(Arrays.asList(c, a, b), new File(dir, "three/report.tsv"));
+
+		assertEquals(Files.readString(new File(dir, "one/report.tsv").toPath()), Files.readString(new File(dir, "three/report.tsv").toPath()));
+	}
+
+	@Test
+	public void mergeRejectsOtherColumns() throws IOException {
+		File pcr = report("pcr.tsv", Arrays.asList("s1\tAS1\t1-100\t100\tc1"));
+		File qpcr = new File(dir, "qpcr.tsv");
+		Files.writeString(qpcr.toPath(), HEADER + "\tProbe" + System.lineSeparator());
+
+		assertThrows(IOException.class, () -> ReportWriter.merge(Arrays.asList(pcr, qpcr), new File(dir, "merged.tsv")));
+	}
+
+	private File report(String name, List<String> rows) throws IOException {
+		File file = new File(dir, name);
+		ArrayList<String> lines = new ArrayList<String>();
+		lines.add(HEADER);
+		lines.addAll(rows);
+		Files.write(file.toPath(), lines);
+		return file;
+	}
+}
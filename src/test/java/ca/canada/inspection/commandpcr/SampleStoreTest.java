@@ -0,0 +1,156 @@
+package ca.canada.inspection.commandpcr;
+
+import ca.canada.inspection.insilicopcr.Sample;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Random;
+
+import static ca.canada.inspection.commandpcr.TestSequences.randomBases;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Packs fasta samples into a store and reads them back
+public class SampleStoreTest {
+
+	// Contigs of mostly A, C, G and T, with an N in about every 21 bases
+	private static final String CONTIG_CODES = "ACGT".repeat(5) + "N";
+
+	@TempDir
+	File dir;
+
+	// Lengths that end on every position of a packed byte, and runs of other bases at the ends, next to each other and
+	// across byte boundaries
+	@Test
+	public void roundTripsShortContigs() throws IOException {
+		LinkedHashMap<String, String> contigs = new LinkedHashMap<String, String>();
+		contigs.put("one", "A");
+		contigs.put("two", "CG");
+		contigs.put("three", "TTA");
+		contigs.put("four", "ACGT");
+		contigs.put("five", "GATTC");
+		contigs.put("seven", "CCCAGGT");
+		contigs.put("edges", "NACGTACGTRY");
+		contigs.put("runs", "ACNNNNNGTRYKMSWACGTBDHVN");
+		contigs.put("lower", "acgtnacgtr");
+		contigs.put("all_other", "NNNNNNNNN");
+		File store = importSample("short", contigs);
+
+		assertEquals(expected(contigs), readBack(store, "short"));
+	}
+
+	// Contigs long enough to fill the packing buffer in their middle, and one starting right after
+	@Test
+	public void roundTripsAcrossBufferFlushes() throws IOException {
+		Random random = new Random(7);
+		LinkedHashMap<String, String> contigs = new LinkedHashMap<String, String>();
+		contigs.put("long", randomBases(random, 300001, CONTIG_CODES));
+		contigs.put("after", randomBases(random, 13, CONTIG_CODES));
+		contigs.put("longer", randomBases(random, 700003, CONTIG_CODES));
+		File store = importSample("big", contigs);
+
+		assertEquals(expected(contigs), readBack(store, "big"));
+		assertEquals(contigs.get("long").length() + contigs.get("after").length() + contigs.get("longer").length(),
+				SampleStore.bases(query(store, "big")));
+	}
+
+	// An import that died while appending its record leaves part of it, which reads as no sample and is cut off by the
+	// next import
+	@Test
+	public void dropsPartialRecordOnImport() throws IOException {
+		LinkedHashMap<String, String> first = new LinkedHashMap<String, String>();
+		first.put("a1", "ACGTACGTAC");
+		LinkedHashMap<String, String> second = new LinkedHashMap<String, String>();
+		second.put("b1", "GGGNNCCC");
+		second.put("b2", "TTTTA");
+		File store = importSample("first", first);
+		long complete = new File(store, SampleStore.INDEX_NAME).length();
+		importSample("second", second);
+		long full = new File(store, SampleStore.INDEX_NAME).length();
+		try(RandomAccessFile index = new RandomAccessFile(new File(store, SampleStore.INDEX_NAME), "rw")) {
+			index.setLength(complete + (full - complete) / 2);
+		}
+
+		assertEquals(1, SampleStore.open(store).createSampleDict().size());
+		importSample("second", second);
+		assertEquals(full, new File(store, SampleStore.INDEX_NAME).length());
+		assertEquals(2, SampleStore.open(store).createSampleDict().size());
+		assertEquals(expected(first), readBack(store, "first"));
+		assertEquals(expected(second), readBack(store, "second"));
+	}
+
+	// The hits of a stored sample are cached apart from those of the files it came from
+	@Test
+	public void storedDigestNamesFormat() throws IOException {
+		LinkedHashMap<String, String> contigs = new LinkedHashMap<String, String>();
+		contigs.put("c1", "ACGTRYACGT");
+		File store = importSample("sample", contigs);
+		Sample files = sample("sample", new File(dir, "sample.fasta"));
+		Sample stored = SampleStore.open(store).createSampleDict().get("sample");
+
+		assertEquals(ResultCache.sampleDigest(files), SampleStore.digest(stored));
+		assertNotEquals(ResultCache.sampleDigest(files), ResultCache.sampleDigest(stored));
+	}
+
+	private File importSample(String name, LinkedHashMap<String, String> contigs) throws IOException {
+		File fasta = new File(dir, name + ".fasta");
+		StringBuilder text = new StringBuilder();
+		for(String id : contigs.keySet()) {
+			text.append('>').append(id).append(" desc of ").append(id).append('\n');
+			String seq = contigs.get(id);
+			// Wrapped as fasta files usually are
+			for(int i = 0; i < seq.length(); i += 60) {
+				text.append(seq, i, Math.min(seq.length(), i + 60)).append('\n');
+			}
+		}
+		Files.writeString(fasta.toPath(), text);
+		File store = new File(dir, "store");
+		HashMap<String, Sample> sampleDict = new HashMap<String, Sample>();
+		sampleDict.put(name, sample(name, fasta));
+		SampleStore.importSamples(store, sampleDict);
+		return store;
+	}
+
+	private static Sample sample(String name, File fasta) {
+		Sample sample = new Sample();
+		sample.setName(name);
+		sample.setFileType("fasta");
+		sample.setFile(fasta.getAbsolutePath());
+		return sample;
+	}
+
+	private static String query(File store, String name) throws IOException {
+		return SampleStore.open(store).createSampleDict().get(name).getFiles().getFirst();
+	}
+
+	private static LinkedHashMap<String, String> readBack(File store, String name) throws IOException {
+		LinkedHashMap<String, String> contigs = new LinkedHashMap<String, String>();
+		try(SampleStore.Cursor cursor = SampleStore.cursor(query(store, name))) {
+			while(cursor.next()) {
+				byte[] seq = new byte[cursor.getLength() + 3];
+				int length = cursor.decode(seq);
+				String header = new String(cursor.getHeader());
+				assertTrue(header.endsWith(" desc of " + header.substring(0, header.indexOf(' '))), header);
+				contigs.put(header.substring(0, header.indexOf(' ')), new String(seq, 0, length));
+			}
+		}
+		return contigs;
+	}
+
+	// Upper cased, with everything other than A, C, G and T as N
+	private static LinkedHashMap<String, String> expected(LinkedHashMap<String, String> contigs) {
+		LinkedHashMap<String, String> expected = new LinkedHashMap<String, String>();
+		for(String id : contigs.keySet()) {
+			expected.put(id, contigs.get(id).toUpperCase().replaceAll("[^ACGT]", "N"));
+		}
+		return expected;
+	}
+}
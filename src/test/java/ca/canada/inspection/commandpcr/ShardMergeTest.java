@@ -0,0 +1,122 @@
+package ca.canada.inspection.commandpcr;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import static ca.canada.inspection.commandpcr.TestSequences.mutate;
+import static ca.canada.inspection.commandpcr.TestSequences.randomBases;
+import static ca.canada.inspection.commandpcr.TestSequences.reverseComplement;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Sharded runs of a small batch of genomes merge into the report a single run writes
+public class ShardMergeTest {
+
+	private static final String FORWARD = "CGCAACACCGTGAAGCACGG";
+	private static final String REVERSE = "GGCCGTCATATCTCCCTTTTT";
+	private static final String PROBE = "CTACTCCGCACCTACTCACACTTAA";
+	private static final String DEGENERATE_FORWARD = "ACGTRACGTACGTACGTAC";
+	private static final String SECOND_REVERSE = "TTTTTGGGGGCCCCCAAAAA";
+	private static final String SECOND_PROBE = "GATCCTAGGCATTGCAAGTCGATCG";
+	private static final int GENOMES = 9;
+	private static final int SHARDS = 3;
+
+	@TempDir
+	File dir;
+
+	@Test
+	public void mergedShardsMatchSingleRun() throws IOException {
+		File input = new File(dir, "genomes");
+		writeGenomes(input, new Random(17));
+		File primers = new File(dir, "primers.fasta");
+		Files.writeString(primers.toPath(), ">AS1-F\n" + FORWARD + "\n>AS1-R\n" + REVERSE + "\n>AS1-P\n" + PROBE
+				+ "\n>AS2-F\n" + DEGENERATE_FORWARD + "\n>AS2-R\n" + SECOND_REVERSE + "\n>AS2-P\n" + SECOND_PROBE + "\n");
+
+		File single = new File(dir, "single");
+		run(new CommandMain(input, single, primers, 2, 1, 0.001, "native"), single);
+
+		File sharded = new File(dir, "sharded");
+		for(int index = 1; index <= SHARDS; index++) {
+			File shardDir = CommandMethods.shardDir(sharded, index, SHARDS);
+			CommandMain shard = new CommandMain(input, shardDir, primers, 2, 1, 0.001, "native");
+			shard.setCacheDir(new File(sharded, "result_cache"));
+			shard.setShard(index, SHARDS);
+			run(shard, shardDir);
+		}
+		assertTrue(CommandMethods.mergeShards(sharded));
+
+		String expected = Files.readString(report(single).toPath());
+		assertEquals(expected, Files.readString(report(sharded).toPath()));
+		// Every genome with a product is in the report, with both assays, so the comparison covers them all
+		HashSet<String> samples = new HashSet<String>();
+		HashSet<String> assays = new HashSet<String>();
+		List<String> rows = Files.readAllLines(report(single).toPath());
+		for(String row : rows.subList(1, rows.size())) {
+			samples.add(row.split("\t")[0]);
+			assays.add(row.split("\t")[1]);
+		}
+		assertEquals(GENOMES - 1, samples.size());
+		assertEquals(2, assays.size());
+	}
+
+	@Test
+	public void mergeNeedsEveryShard() throws IOException {
+		File input = new File(dir, "genomes");
+		writeGenomes(input, new Random(29));
+		File primers = new File(dir, "primers.fasta");
+		Files.writeString(primers.toPath(), ">AS1-F\n" + FORWARD + "\n>AS1-R\n" + REVERSE + "\n");
+
+		File sharded = new File(dir, "sharded");
+		for(int index = 1; index < SHARDS; index++) {
+			File shardDir = CommandMethods.shardDir(sharded, index, SHARDS);
+			CommandMain shard = new CommandMain(input, shardDir, primers, 1, 0, 0.001, "native");
+			shard.setShard(index, SHARDS);
+			run(shard, shardDir);
+		}
+		assertFalse(CommandMethods.mergeShards(sharded));
+		assertFalse(report(sharded).exists());
+	}
+
+	private static void run(CommandMain main, File outDir) {
+		main.run();
+		// run() reports failures on the console only, a finished run leaves its report behind
+		assertTrue(report(outDir).isFile(), "no report in " + outDir);
+	}
+
+	private static File report(File outDir) {
+		return new File(outDir, "consolidated_report" + File.separator + "report.tsv");
+	}
+
+	// Genomes of different sizes, so shards are unbalanced by count, with zero to three products each: forward primer,
+	// probe and reverse complemented reverse primer, or the same of the degenerate assay with a mismatch in its reverse
+	// primer. The last genome has none
+	private static void writeGenomes(File input, Random random) throws IOException {
+		input.mkdirs();
+		for(int g = 0; g < GENOMES; g++) {
+			StringBuilder fasta = new StringBuilder();
+			int contigs = 1 + g % 3;
+			for(int c = 0; c < contigs; c++) {
+				StringBuilder seq = new StringBuilder(randomBases(random, 500 + random.nextInt(3000 * (g + 1))));
+				if(g < GENOMES - 1) {
+					int products = c == 0 ? 1 + random.nextInt(2) : random.nextInt(2);
+					for(int p = 0; p < products; p++) {
+						String product = (g + p) % 3 == 2
+								? DEGENERATE_FORWARD.replace('R', 'G') + randomBases(random, 80 + random.nextInt(200)) + SECOND_PROBE + mutate(reverseComplement(SECOND_REVERSE), random, 1, 3, SECOND_REVERSE.length() - 3)
+								: FORWARD + randomBases(random, 40 + random.nextInt(300)) + PROBE + randomBases(random, 30) + reverseComplement(REVERSE);
+						seq.insert(random.nextInt(seq.length()), random.nextBoolean() ? product : reverseComplement(product));
+					}
+				}
+				fasta.append(">g").append(g).append("_c").append(c).append('\n').append(seq).append('\n');
+			}
+			Files.writeString(new File(input, "genome" + g + ".fasta").toPath(), fasta);
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package ca.canada.inspection.commandpcr;
+
+import java.util.Random;
+
+// Random sequences, and edits of them, that the tests build their genomes, reads and primer sites from
+final class TestSequences {
+
+	private TestSequences() {
+	}
+
+	// A, C, G and T only
+	static String randomBases(Random random, int length) {
+		return randomBases(random, length, "ACGT");
+	}
+
+	// Every base drawn from codes, so a code that is in there more often comes up more often
+	static String randomBases(Random random, int length, String codes) {
+		StringBuilder seq = new StringBuilder(length);
+		for(int i = 0; i < length; i++) {
+			seq.append(codes.charAt(random.nextInt(codes.length())));
+		}
+		return seq.toString();
+	}
+
+	static String reverseComplement(String seq) {
+		return new String(NativePrimerSearch.reverseComplement(seq.getBytes()));
+	}
+
+	// The sequence with changes substitutions at random positions, each to another of A, C, G, T and N. A position can
+	// be picked twice, so it may end up with fewer
+	static String mutate(String seq, Random random, int changes) {
+		return mutate(seq, random, changes, 0, seq.length());
+	}
+
+	// The same, with the substitutions at positions from up to to (exclusive) only
+	static String mutate(String seq, Random random, int changes, int from, int to) {
+		char[] bases = seq.toCharArray();
+		for(int i = 0; i < changes; i++) {
+			int at = from + random.nextInt(to - from);
+			bases[at] = "ACGTN".replace(String.valueOf(bases[at]), "").charAt(random.nextInt(4));
+		}
+		return new String(bases);
+	}
+}
@@ -0,0 +1,277 @@
+package ca.canada.inspection.commandpcr;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.zip.GZIPOutputStream;
+
+import static ca.canada.inspection.commandpcr.TestSequences.randomBases;
+import static ca.canada.inspection.commandpcr.TestSequences.reverseComplement;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+// Combined baiting keeps the pairs the two BBDuk rounds keep. Checked against a position by position reference of the
+// two rounds on reads of A, C, G and T only, and on reads with Ns against BBDuk itself when the tests are given a
+// BBTools folder, mvn test -Dbbtools=<folder of current>. Both are given the primers expanded, as a run gives them
+public class TwoStageBaiterTest {
+
+	private static final int K = 27;
+	private static final int PAIRS = 400;
+	private static final int READ_LENGTH = 75;
+	private static final String CODES = "ACGTRYSWKMBDHVN";
+	private static final String[] BASES = {"A", "C", "G", "T", "AG", "CT", "GC", "AT", "GT", "AC", "GCT", "AGT", "ACT", "ACG", "ACGT"};
+
+	@TempDir
+	File dir;
+
+	@Test
+	public void keepsReferencePairs() throws IOException {
+		Random random = new Random(19);
+		HashMap<String, String> primers = new HashMap<String, String>();
+		String genome = randomBases(random, 2500);
+		primers.put("AS1-F", genome.substring(700, 720));
+		primers.put("AS1-R", reverseComplement(genome.substring(960, 982)));
+		primers.put("AS2-F", degenerate(genome.substring(1800, 1824)));
+		List<String> reads = writeReads(genome, random, false);
+
+		for(int mismatches = 0; mismatches <= 1; mismatches++) {
+			File out = new File(dir, "baited" + mismatches + ".fastq.gz");
+			assertTrue(new TwoStageBaiter(CommandMethods.expandPrimers(primers), 20, mismatches, 256L << 20).run(reads, out, new File(dir, "bait.log")));
+
+			TreeSet<String> expected = reference(primers, 20, mismatches, pairs(reads));
+			assertEquals(expected, names(out), "mismatches " + mismatches);
+			// Both rounds keep something, and the second round leaves reads out
+			assertTrue(expected.size() > 10 && expected.size() < PAIRS, expected.size() + " pairs");
+		}
+	}
+
+	// Run by hand on BBTools, as the two rounds of baiting of a run call it
+	@Test
+	public void keepsBBDukPairs() throws IOException {
+		String bbtools = System.getProperty("bbtools");
+		assumeTrue(bbtools != null && new File(bbtools, "current").isDirectory(), "no -Dbbtools folder");
+		EmbeddedBBTools tools = new EmbeddedBBTools(new File(bbtools));
+		Random random = new Random(23);
+		HashMap<String, String> primers = new HashMap<String, String>();
+		String genome = randomBases(random, 2500);
+		primers.put("AS1-F", genome.substring(1100, 1120));
+		primers.put("AS1-R", reverseComplement(genome.substring(1400, 1421)));
+		primers.put("AS2-F", degenerate(genome.substring(300, 324)));
+		HashMap<String, String> expanded = CommandMethods.expandPrimers(primers);
+		File primerFasta = new File(dir, "primer_tmp.fasta");
+		CommandMethods.writePrimerFasta(expanded, primerFasta);
+		List<String> reads = writeReads(genome, random, true);
+
+		for(int mismatches = 0; mismatches <= 1; mismatches++) {
+			File first = new File(dir, "first" + mismatches + ".fastq.gz");
+			File second = new File(dir, "second" + mismatches + ".fastq.gz");
+			assertTrue(tools.run("jgi.BBDuk", new String[] {"ref=" + primerFasta, "k=20", "in1=" + reads.get(0), "in2=" + reads.get(1),
+					"hdist=" + mismatches, "threads=1", "overwrite=t", "interleaved=t", "outm=" + first}, new File(dir, "bbduk1.log")));
+			assertTrue(tools.run("jgi.BBDuk", new String[] {"ref=" + first, "in1=" + reads.get(0), "in2=" + reads.get(1),
+					"hdist=" + mismatches, "threads=1", "overwrite=t", "interleaved=t", "outm=" + second}, new File(dir, "bbduk2.log")));
+			File out = new File(dir, "baited" + mismatches + ".fastq.gz");
+			assertTrue(new TwoStageBaiter(expanded, 20, mismatches, 256L << 20).run(reads, out, new File(dir, "bait.log")));
+
+			assertEquals(names(second), names(out), "mismatches " + mismatches);
+			assertFalse(names(out).isEmpty());
+		}
+	}
+
+	// A read kmer of the first round that is also one substitution from an earlier one still brings every kmer within
+	// hdist of itself into the table, here a kmer two substitutions from the earlier one
+	@Test
+	public void keepsVariantsOfEveryBaitedKmer() throws IOException {
+		Random random = new Random(41);
+		String primer = randomBases(random, 20);
+		String kmer = randomBases(random, K);
+		String variant = kmer.substring(0, 3) + other(kmer.charAt(3)) + kmer.substring(4);
+		String secondVariant = variant.substring(0, 20) + other(variant.charAt(20)) + variant.substring(21);
+		HashMap<String, String> primers = new HashMap<String, String>();
+		primers.put("AS1-F", primer);
+		List<String> reads = writePairs(Arrays.asList(new String[] {primer + kmer, randomBases(random, READ_LENGTH)},
+				new String[] {primer + variant, randomBases(random, READ_LENGTH)},
+				new String[] {secondVariant, randomBases(random, READ_LENGTH)},
+				new String[] {randomBases(random, READ_LENGTH), randomBases(random, READ_LENGTH)}));
+		File out = new File(dir, "baited.fastq.gz");
+
+		assertTrue(new TwoStageBaiter(primers, 20, 1, 256L << 20).run(reads, out, new File(dir, "bait.log")));
+		assertEquals(new TreeSet<String>(Arrays.asList("pair0", "pair1", "pair2")), names(out));
+	}
+
+	// A primer whose every kmer has a degenerate base baits the reads of any sequence it stands for
+	@Test
+	public void keepsDegeneratePrimerPairs() throws IOException {
+		Random random = new Random(37);
+		String site = randomBases(random, 20);
+		String primer = site.substring(0, 4) + "N" + site.substring(5, 15) + (site.charAt(15) == 'A' || site.charAt(15) == 'G' ? "R" : "Y") + site.substring(16);
+		HashMap<String, String> primers = new HashMap<String, String>();
+		primers.put("AS1-F", primer);
+		List<String> reads = writePairs(Arrays.asList(new String[] {randomBases(random, 30) + site + randomBases(random, 25), randomBases(random, READ_LENGTH)},
+				new String[] {randomBases(random, READ_LENGTH), randomBases(random, 25) + reverseComplement(site) + randomBases(random, 30)},
+				new String[] {randomBases(random, READ_LENGTH), randomBases(random, READ_LENGTH)}));
+
+		for(int mismatches = 0; mismatches <= 1; mismatches++) {
+			File out = new File(dir, "baited" + mismatches + ".fastq.gz");
+			assertTrue(new TwoStageBaiter(CommandMethods.expandPrimers(primers), 20, mismatches, 256L << 20).run(reads, out, new File(dir, "bait.log")));
+			assertEquals(new TreeSet<String>(Arrays.asList("pair0", "pair1")), names(out), "mismatches " + mismatches);
+		}
+	}
+
+	// A kmer table over its share of the heap leaves the sample to BBDuk, without output
+	@Test
+	public void declinesOverHeapLimit() throws IOException {
+		Random random = new Random(31);
+		HashMap<String, String> primers = new HashMap<String, String>();
+		String genome = randomBases(random, 2500);
+		primers.put("AS1-F", genome.substring(700, 720));
+		File out = new File(dir, "baited.fastq.gz");
+		File log = new File(dir, "bait.log");
+
+		assertFalse(new TwoStageBaiter(primers, 20, 1, 1L << 16).run(writeReads(genome, random, true), out, log));
+		assertFalse(out.exists());
+		assertTrue(log.isFile());
+	}
+
+	// First round, pairs with a read window within mismatches of a klength long piece of a primer, either strand, where
+	// a degenerate base matches any base it stands for. Second round, pairs with a K long read window within mismatches
+	// of one of the first round reads, either strand. The middle base of an odd window or the middle two of an even one
+	// do not count
+	private static TreeSet<String> reference(HashMap<String, String> primers, int klength, int mismatches, List<String[]> pairs) {
+		ArrayList<String> primerKmers = new ArrayList<String>();
+		for(String primer : primers.values()) {
+			for(int i = 0; i + klength <= primer.length(); i++) {
+				primerKmers.add(primer.substring(i, i + klength));
+				primerKmers.add(reverseComplement(primer.substring(i, i + klength)));
+			}
+		}
+		ArrayList<String> firstRound = new ArrayList<String>();
+		for(String[] pair : pairs) {
+			if(hasWindow(pair[1], primerKmers, klength, mismatches) || hasWindow(pair[2], primerKmers, klength, mismatches)) {
+				firstRound.add(pair[1]);
+				firstRound.add(pair[2]);
+			}
+		}
+		ArrayList<String> readKmers = new ArrayList<String>();
+		for(String read : firstRound) {
+			for(int i = 0; i + K <= read.length(); i++) {
+				readKmers.add(read.substring(i, i + K));
+				readKmers.add(reverseComplement(read.substring(i, i + K)));
+			}
+		}
+		TreeSet<String> kept = new TreeSet<String>();
+		for(String[] pair : pairs) {
+			if(hasWindow(pair[1], readKmers, K, mismatches) || hasWindow(pair[2], readKmers, K, mismatches)) {
+				kept.add(pair[0]);
+			}
+		}
+		return kept;
+	}
+
+	private static boolean hasWindow(String read, List<String> kmers, int k, int mismatches) {
+		int middle = 2 - (k & 1);
+		for(int start = 0; start + k <= read.length(); start++) {
+			for(String kmer : kmers) {
+				int found = 0;
+				for(int p = 0; p < k && found <= mismatches; p++) {
+					boolean masked = p >= (k - middle) / 2 && p < (k + middle) / 2;
+					found += !masked && !BASES[CODES.indexOf(kmer.charAt(p))].contains(read.substring(start + p, start + p + 1)) ? 1 : 0;
+				}
+				if(found <= mismatches) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	// Pairs of reads off both strands of the genome, with a few substitutions, Ns among them if asked for, the first
+	// mates in a plain file and the second in a gzipped one
+	private List<String> writeReads(String genome, Random random, boolean withNs) throws IOException {
+		ArrayList<String[]> pairs = new ArrayList<String[]>();
+		for(int i = 0; i < PAIRS; i++) {
+			int insert = 180 + random.nextInt(120);
+			int start = random.nextInt(genome.length() - insert + 1);
+			String fragment = genome.substring(start, start + insert);
+			if(random.nextBoolean()) {
+				fragment = reverseComplement(fragment);
+			}
+			pairs.add(new String[] {substitute(fragment.substring(0, READ_LENGTH), random, withNs),
+					substitute(reverseComplement(fragment).substring(0, READ_LENGTH), random, withNs)});
+		}
+		return writePairs(pairs);
+	}
+
+	// Pairs named pair0 on, in the order given
+	private List<String> writePairs(List<String[]> pairs) throws IOException {
+		File first = new File(dir, "reads_R1.fastq");
+		File second = new File(dir, "reads_R2.fastq.gz");
+		try(OutputStream out1 = new FileOutputStream(first); OutputStream out2 = new GZIPOutputStream(new FileOutputStream(second))) {
+			for(int i = 0; i < pairs.size(); i++) {
+				out1.write(("@pair" + i + " 1:N:0\n" + pairs.get(i)[0] + "\n+\n" + "I".repeat(pairs.get(i)[0].length()) + "\n").getBytes());
+				out2.write(("@pair" + i + " 2:N:0\n" + pairs.get(i)[1] + "\n+\n" + "I".repeat(pairs.get(i)[1].length()) + "\n").getBytes());
+			}
+		}
+		return Arrays.asList(first.getAbsolutePath(), second.getAbsolutePath());
+	}
+
+	// Name and the two reads of every pair
+	private static List<String[]> pairs(List<String> reads) throws IOException {
+		ArrayList<String[]> pairs = new ArrayList<String[]>();
+		try(TwoStageBaiter.PairReader reader = new TwoStageBaiter.PairReader(TwoStageBaiter.open(reads))) {
+			byte[][][] pair;
+			while((pair = reader.next()) != null) {
+				pairs.add(new String[] {name(pair[0][0]), new String(pair[0][1]), new String(pair[1][1])});
+			}
+		}
+		return pairs;
+	}
+
+	private static TreeSet<String> names(File interleaved) throws IOException {
+		TreeSet<String> names = new TreeSet<String>();
+		try(TwoStageBaiter.PairReader reader = new TwoStageBaiter.PairReader(TwoStageBaiter.open(Arrays.asList(interleaved.getAbsolutePath())))) {
+			byte[][][] pair;
+			while((pair = reader.next()) != null) {
+				assertEquals(name(pair[0][0]), name(pair[1][0]));
+				names.add(name(pair[0][0]));
+			}
+		}
+		return names;
+	}
+
+	private static String name(byte[] header) {
+		String text = new String(header);
+		return text.substring(1, text.indexOf(' '));
+	}
+
+	private static String substitute(String read, Random random, boolean withNs) {
+		String codes = withNs ? "ACGTN" : "ACGT";
+		char[] bases = read.toCharArray();
+		for(int i = 0; i < bases.length; i++) {
+			if(random.nextInt(25) == 0) {
+				bases[i] = codes.replace(String.valueOf(bases[i]), "").charAt(random.nextInt(codes.length() - 1));
+			}
+		}
+		return new String(bases);
+	}
+
+	private static char other(char base) {
+		return base == 'A' ? 'C' : 'A';
+	}
+
+	// A primer with an R in its third base, which only its expansions bait with
+	private static String degenerate(String primer) {
+		return primer.substring(0, 2) + "R" + primer.substring(3);
+	}
+}